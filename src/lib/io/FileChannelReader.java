@@ -0,0 +1,43 @@
+package lib.io;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A PositionalReader backed by FileChannel.read(ByteBuffer,long),
+ * which does not move the channel position and so needs no locking.
+ */
+public class FileChannelReader implements PositionalReader {
+
+    public FileChannelReader(Path path) throws IOException {
+        channel = FileChannel.open(path,StandardOpenOption.READ);
+    }
+
+    final FileChannel channel;
+
+    @Override
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        var buf = ByteBuffer.wrap(b,off,len);
+        while (buf.hasRemaining()) {
+            var n = channel.read(buf, position + buf.position() - off);
+            if (n < 0) break;
+        }
+        return buf.position() - off;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
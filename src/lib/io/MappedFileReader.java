@@ -0,0 +1,111 @@
+package lib.io;
+
+import java.io.IOException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A PositionalReader over a memory-mapped file.
+ * <p>
+ * Reads are copied straight out of the mapping, without a system call.
+ * Files over 2GB are mapped in several chunks.
+ * The channel is closed once the file is mapped; close() unmaps the file
+ * right away where the JVM allows it, and otherwise the mapping stays
+ * valid until the reader is garbage collected.
+ */
+public class MappedFileReader implements PositionalReader {
+
+    static final int kChunkSize = 1 << 30;
+
+    final MappedByteBuffer[] chunks;
+    final int chunkSize;
+    final long length;
+
+    public MappedFileReader(Path path) throws IOException {
+        this(path,kChunkSize);
+    }
+
+    // Map the file in chunks of chunkSize bytes; smaller chunks are for tests.
+    public MappedFileReader(Path path, int chunkSize) throws IOException {
+        this.chunkSize = chunkSize;
+        try (var channel = FileChannel.open(path,StandardOpenOption.READ)) {
+            length = channel.size();
+            chunks = new MappedByteBuffer[(int)((length + chunkSize - 1) / chunkSize)];
+            for (var i = 0; i < chunks.length; i++) {
+                var pos = (long)i * chunkSize;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(chunkSize, length - pos));
+            }
+        }
+    }
+
+    @Override
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        if (position >= length) {
+            return 0;
+        }
+        var n = (int) Math.min(len, length - position);
+        for (var done = 0; done < n; ) {
+            var p = position + done;
+            var chunk = chunks[(int)(p / chunkSize)];
+            var index = (int)(p % chunkSize);
+            var k = Math.min(n - done, chunk.capacity() - index);
+            chunk.get(index, b, off + done, k); // absolute get; leaves the buffer position alone
+            done += k;
+        }
+        return n;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Unmap the file.
+     * REQUIRES: no read is in progress, and none follows;
+     * touching an unmapped chunk would crash the JVM.
+     */
+    @Override
+    public void close() {
+        for (var i = 0; i < chunks.length; i++) {
+            var chunk = chunks[i];
+            chunks[i] = null; // a later read fails with a NullPointerException instead
+            if (chunk != null && unmapper != null) {
+                try {
+                    unmapper.invokeExact((ByteBuffer) chunk);
+                }
+                catch (Throwable e) {
+                    // leave the mapping to the garbage collector
+                }
+            }
+        }
+    }
+
+    // sun.misc.Unsafe.invokeCleaner(ByteBuffer) bound to the Unsafe instance,
+    // or null where the JVM does not offer it.
+    static final MethodHandle unmapper = unmapper();
+
+    static MethodHandle unmapper() {
+        try {
+            var unsafe = Class.forName("sun.misc.Unsafe");
+            var field = unsafe.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                .findVirtual(unsafe, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                .bindTo(field.get(null));
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+package lib.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A read-only file that is read at explicit offsets.
+ * <p>
+ * A PositionalReader keeps no current position,
+ * so any number of threads may read from it at the same time.
+ */
+public interface PositionalReader extends Closeable {
+
+    /**
+     * Reads up to len bytes starting at the given file position; like pread(2).
+     *
+     * @param  position  the file position at which the read starts
+     * @param  b  the buffer into which the data is read
+     * @param  off  the start offset in b
+     * @param  len  the maximum number of bytes to read
+     * @return the number of bytes read, less than len only at the end of the file
+     * @throws IOException - if an I/O error occurs
+     */
+    int read(long position, byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Returns the length of the file.
+     *
+     * @return the length of this file, measured in bytes.
+     * @throws IOException - if an I/O error occurs
+     */
+    long length() throws IOException;
+}
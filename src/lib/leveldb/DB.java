@@ -23,19 +23,49 @@ public interface DB extends Iterable<Map.Entry<Slice,Slice>>, Closeable {
 
         Builder reuseLogs(boolean b);            // bool reuse_logs;
         Builder paranoidChecks(boolean b);       // bool paranoid_checks;
+        Builder pipelinedWrite(boolean b);       // bool enable_pipelined_write;
+        Builder allowConcurrentMemtableWrite(boolean b); // bool allow_concurrent_memtable_write;
 
         Builder maxFileSize(int i);              // size_t max_file_size;
         Builder maxOpenFiles(int i);             // int max_open_files;
         Builder writeBufferSize(int i);          // size_t write_buffer_size;
+        Builder maxWriteBufferNumber(int i);     // int max_write_buffer_number;
+        Builder minWriteBufferNumberToMerge(int i); // int min_write_buffer_number_to_merge;
         Builder blockCacheSize(int i);           // Cache* block_cache;
         Builder blockSize(int i);                // size_t block_size;
         Builder blockRestartInterval(int i);     // int block_restart_interval;
+        Builder partitionedIndex(boolean b);     // IndexType index_type = kTwoLevelIndexSearch; bool partition_filters;
+        Builder metadataBlockSize(int i);        // uint64_t metadata_block_size;
+        Builder dataBlockHashIndex(boolean b);   // DataBlockIndexType data_block_index_type = kDataBlockBinaryAndHash;
+        Builder allowMmapReads(boolean b);       // bool allow_mmap_reads;
+        Builder maxMmapBytes(long l);            // cap on the table bytes mapped at once, until unmapped on close
 
         Builder comparator(Comparator c);        // const Comparator* comparator;
         Builder env(Env e);                      // Env* env;
-                                                 // Cache* block_cache;
+        Builder blockCache(BlockCacheType t);    // Cache* block_cache;
+        Builder compressedCacheSize(long l);     // std::shared_ptr<SecondaryCache> secondary_cache;
         Builder compression(CompressionType c);  // CompressionType compression;
         Builder filterPolicy(FilterPolicy f);    // const FilterPolicy* filter_policy;
+        Builder compactionFilter(CompactionFilter f); // const CompactionFilter* compaction_filter;
+        Builder memTable(MemTableType t);        // std::shared_ptr<MemTableRepFactory> memtable_factory;
+
+        Builder walFlushPolicy(FlushPolicy p);   // bool manual_wal_flush;
+        Builder walBytesPerFlush(int i);         // size_t writable_file_max_buffer_size;
+        Builder walFlushMillis(int i);
+        Builder recycleLogFileNum(int i);        // size_t recycle_log_file_num;
+        Builder preallocateLogs(boolean b);      // bool allow_fallocate;
+        Builder recoveryThreads(int i);          // threads used to replay the logs on open
+        Builder maxBackgroundCompactions(int i); // int max_background_compactions;
+        Builder maxSubcompactions(int i);        // uint32_t max_subcompactions;
+        Builder compactionStyle(CompactionStyle s); // CompactionStyle compaction_style;
+        Builder universalSizeRatio(int i);       // unsigned int compaction_options_universal.size_ratio;
+        Builder universalMaxSizeAmplificationPercent(int i); // unsigned int compaction_options_universal.max_size_amplification_percent;
+        Builder fifoMaxTableFilesSize(long l);   // uint64_t compaction_options_fifo.max_table_files_size;
+        Builder ttl(long seconds);               // uint64_t ttl;
+
+        Builder delayedWriteRate(int i);         // uint64_t delayed_write_rate;
+        Builder softPendingCompactionBytesLimit(long l); // uint64_t soft_pending_compaction_bytes_limit;
+        Builder hardPendingCompactionBytesLimit(long l); // uint64_t hard_pending_compaction_bytes_limit;
 
         /**
          * Open the database at the specified path.
@@ -65,6 +95,25 @@ public interface DB extends Iterable<Map.Entry<Slice,Slice>>, Closeable {
         boolean keyMayMatch(Slice key, Slice filter);
     }
 
+    /**
+     * Sees the values of user keys as compactions rewrite them, and may remove
+     * or replace them; for expiring or collecting data without a separate pass.
+     * Only values that no snapshot can see are passed, and not those still in
+     * the memtables. Compactions run on several threads at once, so filter()
+     * must be thread-safe.
+     */
+    interface CompactionFilter {
+        String name();
+
+        /**
+         * @param  level  the level the value is compacted from
+         * @param  key  the user key
+         * @param  value  the current value
+         * @return value to keep it, another Slice to replace it, or null to remove the key
+         */
+        Slice filter(int level, Slice key, Slice value);
+    }
+
     enum CompressionType {
 
         NoCompression(0x00),
@@ -76,6 +125,33 @@ public interface DB extends Iterable<Map.Entry<Slice,Slice>>, Closeable {
         public final int code;
     }
 
+    enum FlushPolicy {
+
+        EveryRecord,    // write each log record out as it is added
+        EveryGroup,     // write out once per group commit; the default
+        Periodic        // write out when walBytesPerFlush are buffered or walFlushMillis have passed
+    }
+
+    enum MemTableType {
+
+        SkipList,       // ordered on insert; the default
+        Vector,         // unordered appends, sorted when read; for bulk loads
+        HashLinkList    // hashed by user key; for point lookups
+    }
+
+    enum BlockCacheType {
+
+        LRU,            // least recently used goes first; the default
+        TinyLFU         // admits blocks by use frequency; resists long scans
+    }
+
+    enum CompactionStyle {
+
+        Leveled,        // each level ten times the one above; the default
+        Universal,      // merges runs of similar size; writes less, takes more space
+        Fifo            // never merges; drops the oldest tables past a size or age limit
+    }
+
     // Map<String,String> getProperties();
     <T> T getProperty(String key);
 
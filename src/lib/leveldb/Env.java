@@ -5,11 +5,14 @@ import java.io.OutputStream;
 import java.io.IOException;
 
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 
 import java.util.concurrent.Future;
 
-import lib.io.SeekableInputStream;
+import lib.io.MappedFileReader;
+import lib.io.PositionalReader;
 
 /**
  * An Env is an interface used by the leveldb implementation
@@ -35,13 +38,26 @@ public interface Env {
 
     /**
      * Create a brand new random access read-only file with the specified name.
-     * The returned file should only be accessed by one thread at a time.
+     * The returned file is read at explicit offsets
+     * and may be accessed by any number of threads at once.
      *
      * @param  fname  the path to the file to open
-     * @return a new input stream
+     * @return a new positional reader
+     * @throws IOException - if an I/O error occurs
+     */
+    PositionalReader newRandomAccessFile(Path fname) throws IOException;
+
+    /**
+     * Map a read-only file with the specified name into memory.
+     * Reads from the returned file are served from the mapping without a system call.
+     *
+     * @param  fname  the path to the file to map
+     * @return a new positional reader over the mapping
      * @throws IOException - if an I/O error occurs
      */
-    SeekableInputStream newRandomAccessFile(Path fname) throws IOException;
+    default PositionalReader newMappedFile(Path fname) throws IOException {
+        return new MappedFileReader(fname);
+    }
 
     /**
      * Create an object that writes to a new file with the specified name.
@@ -65,6 +81,28 @@ public interface Env {
      */
     OutputStream newAppendableFile(Path fname) throws IOException;
 
+    /**
+     * Create a channel that writes to the file with the specified name.
+     * If "append" is set, the contents of an existing file are kept
+     * and the channel is positioned at its end, from where the caller may reposition it;
+     * otherwise any existing file is truncated.
+     * Used for log files, which do their own buffering.
+     * The returned channel should only be accessed by one thread at a time.
+     *
+     * @param  fname  the path to the file to open
+     * @param  append  whether to keep the existing contents of the file
+     * @return a new file channel
+     * @throws IOException - if an I/O error occurs
+     */
+    default FileChannel newWritableChannel(Path fname, boolean append) throws IOException {
+        if (append) {
+            var c = FileChannel.open(fname, StandardOpenOption.WRITE, StandardOpenOption.CREATE );
+            return c.position(c.size());
+        }
+        return FileChannel.open(fname,
+            StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING );
+    }
+
     /**
      * Checks if a named file exists.
      *
@@ -198,6 +236,35 @@ public interface Env {
      */
     Future<?> schedule(Runnable task);
 
+    /**
+     * The thread pools that background work is scheduled to.
+     * Memtable flushes run in the HIGH pool, so they are not queued behind long compactions in the LOW pool.
+     */
+    enum Priority { LOW, HIGH }
+
+    /**
+     * Arrange to run a Runnable function once in a thread of the given pool.
+     * An Env without separate pools may run every function as schedule(task) does.
+     *
+     * @param  task  the function to be run
+     * @param  pri  the pool to run it in
+     * @return a Future that can be used to track the task
+     */
+    default Future<?> schedule(Runnable task, Priority pri) {
+        return schedule(task);
+    }
+
+    /**
+     * Make sure the given pool has at least the specified number of background threads.
+     * Pools only grow; they are shared by every database opened with this Env.
+     *
+     * @param  number  the number of threads wanted
+     * @param  pri  the pool to grow
+     */
+    default void setBackgroundThreads(int number, Priority pri) {
+        // nothing to do
+    }
+
     /**
      * Returns the number of micro-seconds since some fixed point in time.
      * Only useful for computing deltas of time.
@@ -206,6 +273,15 @@ public interface Env {
      */
     long nowMicros();
 
+    /**
+     * Returns the number of seconds since the Epoch, 1970-01-01 00:00:00 (UTC).
+     *
+     * @return the current time in seconds
+     */
+    default long currentTime() { // Status GetCurrentTime(int64_t* unix_time);
+        return System.currentTimeMillis() / 1000;
+    }
+
     /**
      * Sleep/delay the thread for the prescribed number of micro-seconds.
      *
@@ -0,0 +1,99 @@
+package lib.leveldb.db;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bump allocator over large byte[] blocks (util/arena.cc).
+ *
+ * Memory handed out by the arena is addressed by a long
+ * - the block number (plus one) in the high word and the offset in the low word -
+ * so a zero address is never returned.
+ * Nothing is freed until the arena itself is dropped.
+ *
+ * Allocation is thread-safe and takes no lock but to start a new block:
+ * each allocation bumps the pointer of the current block with an atomic add.
+ * The bytes themselves must be published to other threads by the caller
+ * (e.g. by linking them into a SkipList).
+ */
+class Arena {
+
+    static final int kBlockSize = 8192;
+
+    volatile byte[][] blocks = new byte[16][];
+    int numBlocks; // guarded by this
+
+    // The block being allocated from, and the bytes of it handed out so far;
+    // replaced as a whole once it fills up.
+    static final class Current {
+        final int index;
+        final AtomicInteger ptr = new AtomicInteger();
+        Current(int index) { this.index = index; }
+    }
+    volatile Current current;
+
+    // Total memory usage of the arena.
+    volatile long memoryUsage;
+
+    /**
+     * Return the address of a newly allocated range of "bytes" bytes.
+     */
+    long allocate(int bytes) {
+        // The semantics of what to return are a bit messy if we allow
+        // 0-byte allocations, so we disallow them here (we don't need
+        // them for our internal use).
+        assert (bytes > 0);
+        if (bytes > kBlockSize / 4) {
+            // Object is more than a quarter of our block size.  Allocate it separately
+            // to avoid wasting too much space in leftover bytes.
+            return address(newBlock(bytes), 0);
+        }
+        for (;;) {
+            var c = current;
+            if (c != null) {
+                // Past the end of the block, the bytes are left unused.
+                var p = c.ptr.getAndAdd(bytes);
+                if (p <= kBlockSize - bytes) {
+                    return address(c.index, p);
+                }
+            }
+            // We waste the remaining space in the current block.
+            synchronized (this) {
+                if (current == c) {
+                    current = new Current(newBlock(kBlockSize));
+                }
+            }
+        }
+    }
+
+    synchronized int newBlock(int blockBytes) {
+        var b = blocks;
+        if (numBlocks == b.length) {
+            b = Arrays.copyOf(b, numBlocks * 2);
+        }
+        b[numBlocks] = new byte[blockBytes];
+        blocks = b;
+        memoryUsage += blockBytes;
+        return numBlocks++;
+    }
+
+    /**
+     * Returns an estimate of the total memory usage of data allocated by the arena.
+     */
+    long memoryUsage() {
+        return memoryUsage + (blocks.length * 8L);
+    }
+
+    static long address(int index, int offset) {
+        return ((long)(index + 1) << 32) | offset;
+    }
+
+    byte[] block(long address) {
+        return blocks[(int)(address >>> 32) - 1];
+    }
+
+    static int offset(long address) {
+        return (int) address;
+    }
+
+}
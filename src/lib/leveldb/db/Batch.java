@@ -8,6 +8,7 @@ import lib.leveldb.Slice;
 import lib.leveldb.DB.WriteBatch;
 import lib.leveldb.io.ByteDecoder;
 import lib.leveldb.io.ByteEncoder;
+import static lib.leveldb.io.ByteEncoder.*;
 
 interface Batch {
 
@@ -27,10 +28,15 @@ interface Batch {
 
     /**
      *  A modifiable WriteBatch implementation.
+     *  Entries are encoded into rep as they are added,
+     *  so contents() is the log record itself.
      */
     abstract class Write extends Rep implements WriteBatch {
-        Item head, tail;
-        int approximateSize; // this assumes the average size of varint length prefix is 2
+        final ByteEncoder rep = new ByteEncoder();
+
+        Write() {
+            clear();
+        }
 
         // Set the count for the number of entries in the batch.
         void setCount(int count) {
@@ -42,83 +48,53 @@ interface Batch {
         }
 
         int byteSize() {
-            return kHeader + approximateSize;
+            return rep.size();
         }
+        // The returned slice shares rep; it is valid until the batch is next modified.
         Slice contents() {
-            return encode(sequence,count,head);
-        }
-
-        void add(Slice key, Slice value) {
-            var item = new Item();
-            item.key = key;
-            item.value = value;
-
-            if (head == null) {
-                head = tail = item;
-            } else {
-                tail.link = item;
-                tail = item;
-            }
-            count += 1;
+            var s = rep.asSlice();
+            encodeFixed64(sequence,s.data,0);
+            encodeFixed32(count,s.data,8);
+            return s;
         }
 
         void append(Write batch) {
-            for (Entry<Slice,Slice> e : batch) {
-                add(e.getKey(),e.getValue());
-            }
+            var src = batch.rep.asSlice();
+            rep.write(src.data, kHeader, src.length - kHeader);
+            count += batch.count;
         }
 
         @Override
         public WriteBatch put(Slice key, Slice value) {
-            add(key,value);
-            approximateSize += ( 5 + key.length + value.length );
-            // or ( 1 + width(key.length) + key.length + width(value.length) + value.length )
+            count += 1;
+            rep.putFixed8(DbFormat.kTypeValue);
+            rep.putLengthPrefixedSlice(key);
+            rep.putLengthPrefixedSlice(value);
             return this;
         }
         @Override
         public WriteBatch delete(Slice key) {
-            add(key,null);
-            approximateSize += ( 3 + key.length );
-            // or ( 1 + width(key.length) + key.length )
+            count += 1;
+            rep.putFixed8(DbFormat.kTypeDeletion);
+            rep.putLengthPrefixedSlice(key);
             return this;
         }
         @Override
         public WriteBatch clear() {
-            head = tail = null;
+            rep.clear();
+            rep.putFixed64(0); // room for the header
+            rep.putFixed32(0);
             count = 0;
-            approximateSize = 0;
             return this;
         }
         @Override
         public Iterator<Entry<Slice, Slice>> iterator() {
-            return iterate(head);
+            var s = rep.asSlice();
+            var buf = new ByteDecoder().wrap(s.data, kHeader, s.length - kHeader);
+            return decode(buf,count);
         }
     }
 
-    class Item {
-        Item link;
-        Slice key, value;
-    }
-
-    static Cursor<Slice,Slice> iterate(Item items) {
-        return new Cursor<Slice,Slice>() {
-            Item que = items;
-            Item next;
-            @Override
-            public boolean hasNext() {
-                return que != null;
-            }
-            @Override
-            public Entry<Slice,Slice> next() {
-                next = que;
-                que = que.link;
-                return this;
-            }
-            @Override public Slice getKey() { return next.key; }
-            @Override public Slice getValue() { return next.value; }
-        };
-    }
-
     // WriteBatch header is an 8-byte sequence number followed by a 4-byte count.
     static final int kHeader = 12;
 
@@ -133,24 +109,6 @@ interface Batch {
     //    len: varint32
     //    data: uint8[len]
 
-    @SuppressWarnings("resource")
-    static Slice encode(long sequence, int count, Item items) {
-        var buf = new ByteEncoder();
-        buf.putFixed64(sequence);
-        buf.putFixed32(count);
-        for (var i = items; i != null; i = i.link) {
-            if (i.value != null) {
-                buf.putFixed8(DbFormat.kTypeValue);
-                buf.putLengthPrefixedSlice(i.key);
-                buf.putLengthPrefixedSlice(i.value);
-            } else {
-                buf.putFixed8(DbFormat.kTypeDeletion);
-                buf.putLengthPrefixedSlice(i.key);
-            }
-        }
-        return buf.asSlice();
-    }
-
     /**
      *  A partial, read-only WriteBatch implementation for decoding LOG files.
      */
@@ -2,6 +2,7 @@ package lib.leveldb.db;
 
 import java.io.Closeable;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
@@ -23,6 +24,8 @@ class Block implements Closeable {
 
     final int restarts;    // Number of uint32_t entries in restart array
     final int trailer;     // Offset of restart array (list of fixed32)
+    final int buckets;     // Offset of the hash index, if any
+    final int numBuckets;  // 0 without a hash index
 
     TOC toc;               // restart keys and offsets
 
@@ -32,6 +35,18 @@ class Block implements Closeable {
         this.cmp = cmp;
         restarts = restartCount(contents);
         trailer = restartOffset(contents,restarts);
+        numBuckets = hashIndexSize(contents);
+        buckets = trailer + restarts * sizeof_uint32_t;
+    }
+
+    // An opaque block, such as a filter partition, that is cached for its contents alone.
+    Block(Slice contents) {
+        assert (contents.offset == 0);
+        this.contents = contents;
+        this.cmp = null;
+        restarts = 0;
+        trailer = contents.length;
+        buckets = numBuckets = 0;
     }
 
     @Override
@@ -42,11 +57,24 @@ class Block implements Closeable {
     }
 
     static int restartCount(Slice block) {
-        return decodeFixed32( block.data, ((block.offset + block.length) - sizeof_uint32_t) );
+        return footer(block) & ~BlockBuilder.kHashIndexFlag;
     }
 
     static int restartOffset(Slice block, int count) {
-        return (block.offset + block.length) - ((count + 1) * sizeof_uint32_t);
+        var end = (block.offset + block.length) - sizeof_uint32_t;
+        var hashIndex = hashIndexSize(block);
+        if (hashIndex > 0) end -= 2 + hashIndex;
+        return end - (count * sizeof_uint32_t);
+    }
+
+    static int footer(Slice block) {
+        return decodeFixed32( block.data, ((block.offset + block.length) - sizeof_uint32_t) );
+    }
+
+    // The number of hash buckets, or 0 if the block has no hash index.
+    static int hashIndexSize(Slice block) {
+        return (footer(block) & BlockBuilder.kHashIndexFlag) == 0 ? 0
+             : decodeFixed16( block.data, ((block.offset + block.length) - sizeof_uint32_t - 2) );
     }
 
     static class Element {
@@ -129,7 +157,9 @@ class Block implements Closeable {
         return new Slice( buf, e.deltaOffset + e.unsharedBytes, e.valueLength );
     }
     static InternalKey key(Element e, byte[] d) {
-        return parseInternalKey( d,0, e.sharedBytes + e.unsharedBytes );
+        // copy, since d is overwritten as the iterator advances
+        var n = e.sharedBytes + e.unsharedBytes;
+        return parseInternalKey( Arrays.copyOf(d,n),0, n );
     }
     static byte[] delta(Element e, byte[] buf, byte[] d) {
         var n = e.sharedBytes + e.unsharedBytes;
@@ -142,98 +172,65 @@ class Block implements Closeable {
     }
 
     Entry<InternalKey,Slice> seek(InternalKey k) {
+        if (numBuckets > 0) {
+            // The hash index names the restart interval holding the user key,
+            // unless keys in several intervals hash to the same bucket.
+            var u = k.userKey;
+            var b = BlockBuilder.bucket(BlockBuilder.hash(u.data,u.offset,u.length), numBuckets);
+            var r = contents.data[buckets + b] & 0x0ff;
+            if (r == BlockBuilder.kNoEntry) {
+                return null; // no match
+            }
+            if (r != BlockBuilder.kCollision) {
+                return scan(k,restartPoint(r));
+            }
+        }
         // Binary search in restart array to find the last restart point
         // with a key <= target
         var r = BinarySearch.floor(toc(),k,cmp);
-        if (r != 0) return null;
-        // Linear search (within restart block) for first key >= target
+        if (r < 0) r = 0;
+        // Linear search (from the restart point) for first key >= target
         return seek(k,r);
     }
 
-    Entry<InternalKey,Slice> seek(InternalKey k, int r) {
-        var bc = cmp.comparator();
-
-        var key = k.userKey.data;
-        var keyOff = k.userKey.offset;
-        var keyPos = keyOff;
-        var keyLen = k.userKey.length;
-
-        var delta = contents.data;
-        var deltaLen = 0;
+    int restartPoint(int r) {
+        return decodeFixed32(contents.data, trailer + r * sizeof_uint32_t);
+    }
 
-        var iter = elements(r);
-        Element e = null;
+    Entry<InternalKey,Slice> seek(InternalKey k, int r) {
+        return scan(k,toc.offset[r]);
+    }
 
-        // find element where k.userKey == delta.key
+    Entry<InternalKey,Slice> scan(InternalKey k, int start) {
+        var iter = newIterator(elements(start,trailer-start));
         while (iter.hasNext()) {
-            e = iter.next();
-
-            if (e.unsharedBytes <= sizeof_SequenceAndType) {
-                // ignore elements where only the sequence number changed
+            iter.next();
+            var found = iter.getKey();
+            if (cmp.compare(found,k) < 0) {
                 continue;
             }
-
-            var p = keyOff + e.sharedBytes;
-            if (keyPos < p) {
-                // last difference is within shared key bytes;
-                // skip this element since key comparison result would be the same
-                continue;
-            }
-            keyPos = p;
-
-            deltaLen = e.unsharedBytes - sizeof_SequenceAndType;
-            p = bc.compare( key,keyPos,keyLen, delta,e.deltaOffset,deltaLen );
-            if (p < 0) {
+            var u = found.userKey;
+            var key = k.userKey;
+            if (cmp.comparator().compare(u.data,u.offset,u.length,key.data,key.offset,key.length) != 0) {
                 // no match; key will be less than all subsequent keys
                 return null;
             }
-            if (p > 0) {
-                // key is greater than current element; retain diff point for next round
-                keyPos = p - 1;
-                continue;
-            }
-            // keys.match; get nearest sequence number
-            break;
+            var value = (valueType(found) == kTypeValue) ? iter.getValue() : null;
+            return entry(new InternalKey(key,found.sequence_type),value);
         }
-
-        var keySeq = sequenceNumber(k);
-        var deltaSeq = nextSeq(0, delta, e.deltaOffset+deltaLen, sizeof_SequenceAndType );
-
-        // find element where k.sequence >= delta.sequence
-        while (keySeq < decodeSequence(deltaSeq)) {
-            if (!iter.hasNext()) {
-                return null;
-            }
-            e = iter.next();
-            if (e.unsharedBytes > sizeof_SequenceAndType) {
-                // key has changed; skip rest of block
-                return null;
-            }
-            var u = e.unsharedBytes * 8;
-            deltaSeq = (deltaSeq << u) >>> u;
-            deltaSeq = nextSeq(deltaSeq,delta,e.deltaOffset,e.unsharedBytes);
-        }
-
-        var found = new InternalKey( k.userKey, decodeSequenceAndType(deltaSeq) );
-        var value = (valueType(found) == kTypeValue)
-                  ? new Slice( delta, e.deltaOffset + e.unsharedBytes, e.valueLength )
-                  : null;
-
-        return entry(found,value);
+        return null;
     }
 
-    static long nextSeq(long l, byte[] b, int i, int n) {
-        switch (n) {
-            case 8: l |= ((b[i++] & 0x0ffL)      );
-            case 7: l |= ((b[i++] & 0x0ffL) <<  8);
-            case 6: l |= ((b[i++] & 0x0ffL) << 16);
-            case 5: l |= ((b[i++] & 0x0ffL) << 24);
-            case 4: l |= ((b[i++] & 0x0ffL) << 32);
-            case 3: l |= ((b[i++] & 0x0ffL) << 40);
-            case 2: l |= ((b[i++] & 0x0ffL) << 48);
-            case 1: l |= ((b[i  ] & 0x0ffL) << 56);
-        }
-        return l;
+    // The value of the entry at restart point r;
+    // every entry of an index block is a restart point.
+    Slice restartValue(int r) {
+        var b = contents.data;
+        var l = new long[1];
+        var off = Varint.load(l,b,toc().offset[r]); // sharedBytes; should be 0
+        off = Varint.load(l,b,off); // unsharedBytes
+        var keyLength = (int) l[0];
+        off = Varint.load(l,b,off); // valueLength
+        return new Slice(b, off + keyLength, (int) l[0]);
     }
 
     class TOC implements BinarySearch.Array<InternalKey> {
@@ -1,6 +1,7 @@
 package lib.leveldb.db;
 
 import java.util.List;
+import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Comparator;
 
@@ -35,6 +36,17 @@ import static lib.leveldb.db.DbFormat.*;
  *     num_restarts: uint32
  * </pre>
  * restarts[i] contains the offset within the block of the ith restart point.
+ * <p>
+ * A data block may also carry a hash index of its user keys,
+ * between the restart array and a num_restarts with its high bit set:
+ * <pre>
+ *     restarts: uint32[num_restarts]
+ *     buckets: uint8[num_buckets]
+ *     num_buckets: uint16
+ *     num_restarts | kHashIndexFlag: uint32
+ * </pre>
+ * buckets[hash(user_key) % num_buckets] holds the restart interval the key is in,
+ * kNoEntry if no key hashes there, or kCollision if keys in different intervals do.
  */
 class BlockBuilder {
 
@@ -49,6 +61,11 @@ class BlockBuilder {
     InternalKey lastKey;
     byte[] lastKeyData;
 
+    boolean hashIndex;      // build a hash index of the user keys
+    int[] keyHashes = new int[0];
+    int[] keyRestarts = new int[0];
+    int numKeys;
+
     BlockBuilder(int blockRestartInterval, Comparator<InternalKey> comparator) {
         this.blockRestartInterval = blockRestartInterval;
         this.comparator = comparator;
@@ -69,6 +86,11 @@ class BlockBuilder {
         finished = false;
         lastKey = null;
         lastKeyData = new byte[0];
+        numKeys = 0;
+    }
+
+    BlockBuilder hashIndex(boolean b) {
+        hashIndex = b; return this;
     }
 
     /**
@@ -111,12 +133,43 @@ class BlockBuilder {
         if (value.length > 0) {
             buffer.write( value.data, value.offset, value.length );
         }
+        if (hashIndex) {
+            addHash(keyData, keyData.length - sizeof_SequenceAndType);
+        }
         // Update state
         lastKeyData = keyData;
         lastKey = key;
         counter++;
     }
 
+    void addHash(byte[] userKey, int length) {
+        if (numKeys == keyHashes.length) {
+            keyHashes = Arrays.copyOf(keyHashes, numKeys * 2 + 16);
+            keyRestarts = Arrays.copyOf(keyRestarts, numKeys * 2 + 16);
+        }
+        keyHashes[numKeys] = hash(userKey, 0, length);
+        keyRestarts[numKeys] = restarts.size() - 1;
+        numKeys++;
+    }
+
+    static final int kHashIndexFlag = 1 << 31;
+    static final int kMaxRestarts = 253;      // restart numbers must fit in a bucket
+    static final int kCollision = 254;
+    static final int kNoEntry = 255;
+    static final double kUtilRatio = 0.75;    // keys per bucket
+
+    static int hash(byte[] b, int off, int len) {
+        return Slice.hash(b, off, len, 0x9ae16a3b);
+    }
+
+    static int bucket(int hash, int numBuckets) {
+        return Integer.remainderUnsigned(hash, numBuckets);
+    }
+
+    int numBuckets() {
+        return Math.min(0xffff, Math.max(1, (int)(numKeys / kUtilRatio)));
+    }
+
     static int commonPrefix(byte[] a, byte[] b) {
         var k = a.length < b.length ? a.length : b.length;
         for (var i = 0; i < k; i++) {
@@ -134,7 +187,26 @@ class BlockBuilder {
         for (var i : restarts) {
             buffer.putFixed32(i);
         }
-        buffer.putFixed32(restarts.size());
+        if (hashIndex && restarts.size() <= kMaxRestarts) {
+            var numBuckets = numBuckets();
+            var buckets = new byte[numBuckets];
+            Arrays.fill(buckets, (byte) kNoEntry);
+            for (var i = 0; i < numKeys; i++) {
+                var b = bucket(keyHashes[i], numBuckets);
+                var r = buckets[b] & 0x0ff;
+                if (r == kNoEntry) {
+                    buckets[b] = (byte) keyRestarts[i];
+                } else if (r != keyRestarts[i]) {
+                    buckets[b] = (byte) kCollision;
+                }
+            }
+            buffer.write(buckets, 0, numBuckets);
+            buffer.putFixed8(numBuckets);
+            buffer.putFixed8(numBuckets >>> 8);
+            buffer.putFixed32(restarts.size() | kHashIndexFlag);
+        } else {
+            buffer.putFixed32(restarts.size());
+        }
         finished = true;
         return buffer.asSlice();
     }
@@ -147,7 +219,8 @@ class BlockBuilder {
     int currentSizeEstimate() {
         return (buffer.size() +                       // Raw data buffer
                (restarts.size() * sizeof_uint32_t) +  // Restart array
-               (sizeof_uint32_t) );                   // Restart array length
+               (sizeof_uint32_t) +                    // Restart array length
+               (hashIndex ? numBuckets() + 2 : 0) );  // Hash index
     }
 
     /**
@@ -0,0 +1,305 @@
+package lib.leveldb.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import lib.util.concurrent.MutexLock;
+
+import lib.leveldb.Slice;
+
+/**
+ * A sharded LRU cache of table blocks, bounded by the bytes the blocks hold.
+ * <p>
+ * Keys are spread over 2^kNumShardBits shards, each an access-ordered map
+ * behind its own lock, so concurrent readers seldom wait for each other.
+ * A block that an iterator is positioned on is pinned and is not evicted
+ * until the iterator moves on; the cache may run over its capacity while
+ * everything that could be evicted is pinned.
+ * <p>
+ * If a CompressedBlockCache is attached, evicted blocks are handed down to it.
+ */
+class BlockCache {
+
+    static final int kNumShardBits = 4;
+
+    /**
+     * A cached block; pinned while refs > 0.
+     */
+    static class Handle {
+        final long key;
+        final Block block;
+        final int charge;
+        int refs; // guarded by the shard lock
+
+        Handle(long key, Block block) {
+            this.key = key;
+            this.block = block;
+            this.charge = block.contents.length;
+        }
+    }
+
+    /**
+     * One shard of the cache and its replacement policy; plain LRU here.
+     * All methods require the shard mutex to be held.
+     */
+    class Shard {
+        final MutexLock mutex = new MutexLock();
+        final LinkedHashMap<Long,Handle> lru = new LinkedHashMap<>(16, 0.75f, true);
+        final HashMap<Integer,HashSet<Long>> files = new HashMap<>(); // keys of the cached blocks by file
+        final long capacity;
+        long usage;
+        long pinnedUsage;
+        ArrayList<Handle> demoted; // evicted blocks for the secondary cache
+
+        Shard(long capacity) {
+            this.capacity = capacity;
+        }
+
+        // Return the block for key, recording the access.
+        Handle get(long key) {
+            return lru.get(key);
+        }
+
+        // Return the block for key without counting it as a new access;
+        // the miss that led to this insert was counted already.
+        Handle peek(long key) {
+            return lru.get(key);
+        }
+
+        // Add a block not already in the shard.
+        void add(Handle h) {
+            lru.put(h.key,h);
+            usage += h.charge;
+        }
+
+        // Remove the block for key; one that is pinned stays readable until released.
+        Handle remove(long key) {
+            var h = lru.remove(key);
+            if (h != null) usage -= h.charge;
+            return h;
+        }
+
+        // Index a block just added, so that eraseFile() finds it without a sweep.
+        void index(long key) {
+            files.computeIfAbsent(fileId(key), (f) -> new HashSet<>()).add(key);
+        }
+
+        void unindex(long key) {
+            var keys = files.get(fileId(key));
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                files.remove(fileId(key));
+            }
+        }
+
+        // Drop unpinned blocks, least recently used first, until the shard fits.
+        void evict() {
+            var i = lru.values().iterator();
+            while (usage > capacity && i.hasNext()) {
+                var h = i.next();
+                if (h.refs == 0) {
+                    i.remove();
+                    evicted(h);
+                }
+            }
+        }
+
+        void evicted(Handle h) {
+            unindex(h.key);
+            usage -= h.charge;
+            evictions.increment();
+            if (secondary != null) {
+                if (demoted == null) demoted = new ArrayList<>();
+                demoted.add(h);
+            }
+        }
+
+        // Take the blocks evicted since the last call.
+        ArrayList<Handle> demoted() {
+            var d = demoted;
+            demoted = null;
+            return d;
+        }
+    }
+
+    final Shard[] shards;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder inserts = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    CompressedBlockCache secondary;
+
+    BlockCache(long capacity) {
+        shards = new Shard[1 << kNumShardBits];
+        var perShard = (capacity + shards.length - 1) / shards.length;
+        for (var i = 0; i < shards.length; i++) {
+            shards[i] = newShard(perShard);
+        }
+    }
+
+    Shard newShard(long capacity) {
+        return new Shard(capacity);
+    }
+
+    BlockCache secondary(CompressedBlockCache cache) {
+        secondary = cache; return this;
+    }
+
+    Shard shard(long key) {
+        // Cache keys are {fileNumber,offset}; mix both halves before picking a shard.
+        var h = key * 0x9E3779B97F4A7C15L;
+        return shards[(int)(h >>> (64 - kNumShardBits))];
+    }
+
+    /**
+     * Look up the block for key; a block found is returned pinned.
+     */
+    Handle lookup(long key) {
+        var s = shard(key);
+        s.mutex.lock();
+        try (s.mutex) {
+            var h = s.get(key);
+            if (h == null) {
+                misses.increment();
+                return null;
+            }
+            pin(s,h);
+            hits.increment();
+            return h;
+        }
+    }
+
+    /**
+     * Add the block for key and return it pinned.
+     * If another reader cached the same block first, that one is returned instead.
+     */
+    Handle insert(long key, Block block) {
+        var s = shard(key);
+        Handle h;
+        ArrayList<Handle> demoted;
+        s.mutex.lock();
+        try (s.mutex) {
+            h = s.peek(key);
+            if (h == null) {
+                h = new Handle(key,block);
+                s.add(h);
+                s.index(key);
+                inserts.increment();
+            }
+            pin(s,h);
+            s.evict();
+            demoted = s.demoted();
+        }
+        demote(demoted);
+        return h;
+    }
+
+    /**
+     * Unpin a block returned by lookup() or insert().
+     */
+    void release(Handle h) {
+        var s = shard(h.key);
+        ArrayList<Handle> demoted = null;
+        s.mutex.lock();
+        try (s.mutex) {
+            assert (h.refs > 0);
+            if (--h.refs == 0) {
+                s.pinnedUsage -= h.charge;
+                s.evict();
+                demoted = s.demoted();
+            }
+        }
+        demote(demoted);
+    }
+
+    /**
+     * Drop the block for key, here and in the secondary cache.
+     */
+    void erase(long key) {
+        var s = shard(key);
+        s.mutex.lock();
+        try (s.mutex) {
+            if (s.remove(key) != null) s.unindex(key);
+        }
+        if (secondary != null) {
+            secondary.erase(key);
+        }
+    }
+
+    /**
+     * Drop every block of a table file, as found in each shard's file index.
+     */
+    void eraseFile(int fileId) {
+        for (var s : shards) {
+            s.mutex.lock();
+            try (s.mutex) {
+                var keys = s.files.remove(fileId);
+                if (keys != null) {
+                    for (var key : keys) s.remove(key);
+                }
+            }
+        }
+        if (secondary != null) {
+            secondary.eraseFile(fileId);
+        }
+    }
+
+    // Compress evicted blocks into the secondary cache, outside the shard lock.
+    void demote(ArrayList<Handle> demoted) {
+        if (demoted != null) {
+            for (var h : demoted) {
+                secondary.insert(h.key, h.block.contents);
+            }
+        }
+    }
+
+    /**
+     * Return the contents of a block that is only in the secondary cache.
+     */
+    Slice promote(long key) {
+        return (secondary != null) ? secondary.lookup(key) : null;
+    }
+
+    static int fileId(long key) {
+        return (int)(key >>> 32); // see TableFile.cacheKey()
+    }
+
+    static void pin(Shard s, Handle h) {
+        if (h.refs++ == 0) {
+            s.pinnedUsage += h.charge;
+        }
+    }
+
+    long usage() {
+        var total = 0L;
+        for (var s : shards) {
+            s.mutex.lock();
+            try (s.mutex) {
+                total += s.usage;
+            }
+        }
+        return total;
+    }
+
+    long pinnedUsage() {
+        var total = 0L;
+        for (var s : shards) {
+            s.mutex.lock();
+            try (s.mutex) {
+                total += s.pinnedUsage;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + hits.sum() + ", misses: " + misses.sum() +
+               ", inserts: " + inserts.sum() + ", evictions: " + evictions.sum() +
+               ", usage: " + usage() + ", pinned: " + pinnedUsage();
+    }
+}
@@ -0,0 +1,57 @@
+package lib.leveldb.db;
+
+import lib.leveldb.Slice;
+import lib.leveldb.db.Versions.Compaction;
+import static lib.leveldb.db.DbFormat.*;
+
+/**
+ * Decides which files are compacted, and where a flushed memtable goes;
+ * one for each compaction style.
+ * <p>
+ * All methods are called with the DB mutex held.
+ */
+interface CompactionPicker {
+
+    /**
+     * Pick the inputs for a new compaction, or return NULL if there is
+     * nothing to do or all candidates conflict with compactions in progress.
+     */
+    Compaction pickCompaction(VersionSet vset);
+
+    /**
+     * Pick the inputs for a manual compaction of the files in "level" that
+     * overlap [begin,end], or return NULL if there is nothing to do;
+     * see VersionSet.compactRange().
+     */
+    default Compaction compactRange(VersionSet vset, int level, InternalKey begin, InternalKey end) {
+        return vset.compactRange(level, begin, end);
+    }
+
+    /**
+     * Return the level for a new table flushed from the memtables.
+     */
+    default int levelForMemTableOutput(Version v, Slice smallestUserKey, Slice largestUserKey) {
+        return v.pickLevelForMemTableOutput(smallestUserKey, largestUserKey);
+    }
+
+    /**
+     * Adjust the compaction scores computed for a new version;
+     * see VersionSet.finalize().
+     */
+    default void finalize(VersionSet vset, Version v) {}
+
+    /**
+     * Returns true if new tables get their creation time recorded in the MANIFEST.
+     * Only the styles that age tables out need it; without it the MANIFEST
+     * stays in leveldb's format.
+     */
+    default boolean recordsCreationTime() {
+        return false;
+    }
+
+    /**
+     * Levels compacted into the next level by size, as in leveldb.
+     */
+    CompactionPicker leveled = Versions::pickCompaction;
+
+}
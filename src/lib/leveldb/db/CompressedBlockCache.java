@@ -0,0 +1,220 @@
+package lib.leveldb.db;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.LongAdder;
+
+import lib.util.concurrent.MutexLock;
+
+import lib.leveldb.Slice;
+import lib.leveldb.io.SnappyDecoder;
+import lib.leveldb.io.SnappyEncoder;
+
+/**
+ * A second tier below the BlockCache that keeps Snappy-compressed copies of
+ * the blocks it evicts, in direct (off-heap) buffers.
+ * <p>
+ * A block found here costs a decompression instead of a file read, and its
+ * bytes do not count against the Java heap. Each shard writes its blocks
+ * one after another into a ring of fixed-size slabs; when the ring wraps,
+ * the oldest slab is cleared as a whole, so eviction is first-in first-out
+ * and the slabs never fragment.
+ */
+class CompressedBlockCache {
+
+    static final int kSlabSize = 1 << 20;
+
+    static class Entry {
+        final long key;
+        final int slab, offset, length;
+        final boolean compressed;
+
+        Entry(long key, int slab, int offset, int length, boolean compressed) {
+            this.key = key;
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+            this.compressed = compressed;
+        }
+    }
+
+    class Shard {
+        final MutexLock mutex = new MutexLock();
+        final HashMap<Long,Entry> index = new HashMap<>();
+        final HashMap<Integer,HashSet<Long>> files = new HashMap<>(); // keys in index by file
+        final ArrayDeque<Entry> fifo = new ArrayDeque<>(); // oldest first
+        final ByteBuffer[] slabs;  // allocated as the ring first reaches them
+        final int slabSize;
+        int slab, position;        // where the next block is written
+        long usage;
+
+        Shard(long capacity) {
+            slabSize = (int) Math.min(kSlabSize, capacity);
+            slabs = new ByteBuffer[(int) Math.max(1, capacity / Math.max(1, slabSize))];
+        }
+
+        // REQUIRES: mutex is held
+        void put(long key, Slice data, boolean compressed) {
+            var length = data.length;
+            if (position + length > slabSize) {
+                slab = (slab + 1) % slabs.length;
+                position = 0;
+                clear(slab);
+            }
+            if (slabs[slab] == null) {
+                slabs[slab] = ByteBuffer.allocateDirect(slabSize);
+            }
+            slabs[slab].put(position, data.data, data.offset, length);
+            var e = new Entry(key, slab, position, length, compressed);
+            position += length;
+            index.put(key,e);
+            files.computeIfAbsent(BlockCache.fileId(key), (f) -> new HashSet<>()).add(key);
+            fifo.addLast(e);
+            usage += length;
+        }
+
+        // REQUIRES: mutex is held
+        // An erased block's bytes stay in its slab until the ring reaches it.
+        void remove(long key) {
+            var e = index.remove(key);
+            if (e != null) removed(e);
+        }
+
+        // REQUIRES: mutex is held
+        void removed(Entry e) {
+            usage -= e.length;
+            var keys = files.get(BlockCache.fileId(e.key));
+            if (keys != null && keys.remove(e.key) && keys.isEmpty()) {
+                files.remove(BlockCache.fileId(e.key));
+            }
+        }
+
+        // REQUIRES: mutex is held
+        // Drop the blocks in a slab that is about to be written over.
+        void clear(int slab) {
+            while (!fifo.isEmpty() && fifo.peekFirst().slab == slab) {
+                var e = fifo.removeFirst();
+                if (index.remove(e.key, e)) {
+                    removed(e);
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    final Shard[] shards;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder inserts = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    CompressedBlockCache(long capacity) {
+        shards = new Shard[1 << BlockCache.kNumShardBits];
+        var perShard = capacity / shards.length;
+        for (var i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(perShard);
+        }
+    }
+
+    Shard shard(long key) {
+        var h = key * 0x9E3779B97F4A7C15L;
+        return shards[(int)(h >>> (64 - BlockCache.kNumShardBits))];
+    }
+
+    /**
+     * Return the contents of the block for key, if they are cached.
+     */
+    Slice lookup(long key) {
+        var s = shard(key);
+        byte[] data;
+        boolean compressed;
+        s.mutex.lock();
+        try (s.mutex) {
+            var e = s.index.get(key);
+            if (e == null) {
+                misses.increment();
+                return null;
+            }
+            data = new byte[e.length];
+            s.slabs[e.slab].get(e.offset, data);
+            compressed = e.compressed;
+        }
+        hits.increment();
+        return compressed ? SnappyDecoder.decode(data,0,data.length) : new Slice(data);
+    }
+
+    /**
+     * Keep a copy of a block's contents, compressed if that saves at least 12.5%.
+     */
+    void insert(long key, Slice contents) {
+        var s = shard(key);
+        s.mutex.lock();
+        try (s.mutex) {
+            if (s.index.containsKey(key)) {
+                return;
+            }
+        }
+        if (contents.length > s.slabSize) {
+            return;
+        }
+        var data = contents;
+        var compressed = false;
+        var encoded = SnappyEncoder.encode(contents);
+        if (encoded.length < contents.length - (contents.length / 8)) {
+            data = encoded;
+            compressed = true;
+        }
+        s.mutex.lock();
+        try (s.mutex) {
+            if (!s.index.containsKey(key)) {
+                s.put(key, data, compressed);
+                inserts.increment();
+            }
+        }
+    }
+
+    void erase(long key) {
+        var s = shard(key);
+        s.mutex.lock();
+        try (s.mutex) {
+            s.remove(key);
+        }
+    }
+
+    void eraseFile(int fileId) {
+        for (var s : shards) {
+            s.mutex.lock();
+            try (s.mutex) {
+                var keys = s.files.remove(fileId);
+                if (keys != null) {
+                    for (var key : keys) {
+                        var e = s.index.remove(key);
+                        if (e != null) s.usage -= e.length;
+                    }
+                }
+            }
+        }
+    }
+
+    long usage() {
+        var total = 0L;
+        for (var s : shards) {
+            s.mutex.lock();
+            try (s.mutex) {
+                total += s.usage;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + hits.sum() + ", misses: " + misses.sum() +
+               ", inserts: " + inserts.sum() + ", evictions: " + evictions.sum() +
+               ", usage: " + usage();
+    }
+}
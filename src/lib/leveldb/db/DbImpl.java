@@ -1,6 +1,8 @@
 package lib.leveldb.db;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 
 import java.io.IOException;
@@ -10,9 +12,13 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.LinkedHashMap;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 import java.util.logging.Level;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -23,8 +29,10 @@ import lib.util.concurrent.MutexLock;
 import lib.leveldb.Env;
 import lib.leveldb.Slice;
 import lib.leveldb.Cursor;
+import lib.leveldb.DB;
 import lib.leveldb.DB.Snapshot;
 import lib.leveldb.DB.FilterPolicy;
+import lib.leveldb.DB.CompactionFilter;
 import static lib.leveldb.db.DbUtil.*;
 import static lib.leveldb.db.DbFormat.*;
 import static lib.leveldb.db.FileName.*;
@@ -42,12 +50,32 @@ class DbImpl {
     boolean createIfMissing;
     boolean reuseLogs;
     boolean paranoidChecks;
+    boolean pipelinedWrite;
+    boolean allowConcurrentMemtableWrite;
 
     int writeBufferSize;
+    int maxWriteBufferNumber;        // the memtable being written to plus the immutable ones
+    int minWriteBufferNumberToMerge; // immutable memtables written out together
     int blockRestartInterval;
 
     int compression;
     int blockSize;
+    int indexPartitionSize;          // 0 for a single index block per table
+    boolean dataBlockHashIndex;      // data blocks carry a hash index of their user keys
+
+    DB.MemTableType memTableType;
+
+    DB.FlushPolicy walFlushPolicy;
+    int walBytesPerFlush;
+    int walFlushMillis;
+
+    int recycleLogFileNum;
+    boolean preallocateLogs;
+
+    int recoveryThreads;
+
+    // Paces writes while compaction falls behind
+    WriteController writeController;
 
     // table_cache_ provides its own synchronization
     TableCache tableCache;
@@ -60,15 +88,201 @@ class DbImpl {
     AtomicBoolean shuttingDown = new AtomicBoolean();
     Condition bgCv = mutex.newCondition(); // Signalled when background work finishes
 
-    // Has a background compaction been scheduled or is running?
-    AtomicBoolean bgCompactionScheduled = new AtomicBoolean();
+    // Background compactions scheduled or running, at most maxBackgroundCompactions.
+    int bgCompactionScheduled;
+    int maxBackgroundCompactions;
+
+    // Shards a level-0 compaction may be split into, run in parallel on the LOW pool.
+    int maxSubcompactions;
+
+    // Has a memtable flush been scheduled or is running?
+    boolean bgFlushScheduled;
 
     // Have we encountered a background error in paranoid mode?
     Exception bgError; // Status bg_error_;
 
+    MemTable newMemTable() {
+        return new MemTable(internalComparator,memTableType,writeBufferSize);
+    }
+
+    // Logs written in this session in recyclable format.
+    Set<Long> recyclableLogs = new HashSet<>();
+    // Obsolete logs kept to be reused as new logs, oldest first.
+    Deque<Long> logsToRecycle = new ArrayDeque<>(); // log_recycle_files_
+
+    /**
+     * Create the file for log "number", recycling an obsolete log if one is
+     * pooled, or else taking the spare log if it has been preallocated.
+     * REQUIRES: mutex_ is held
+     */
+    LogWriter newLogWriter(long number) throws IOException {
+        assert (mutex.isHeldByCurrentThread());
+        var fname = logFileName(dbname,number);
+        FileChannel channel;
+        var old = logsToRecycle.poll();
+        Path spare;
+        if (old != null) {
+            // The blocks of the old file are already allocated;
+            // its stale records are told apart by their log number.
+            info("Recycling log #{0,number} as #{1,number}", old, number );
+            env.renameFile(logFileName(dbname,old),fname);
+            channel = env.newWritableChannel(fname,true).position(0);
+        } else if ((spare = takeSpareLog()) != null) {
+            env.renameFile(spare,fname);
+            channel = env.newWritableChannel(fname,true).position(0);
+        } else {
+            channel = env.newWritableChannel(fname,false);
+        }
+        if (recycleLogFileNum > 0) {
+            recyclableLogs.add(number);
+        }
+        prepareSpareLog();
+        return logWriter(channel,number,0);
+    }
+
+    /**
+     * Continue writing log "number" at "offset", the end of its last record.
+     */
+    LogWriter openLogWriter(long number, long offset) throws IOException {
+        var channel = env.newWritableChannel(logFileName(dbname,number),true).position(offset);
+        return logWriter(channel,number,offset);
+    }
+
+    LogWriter logWriter(FileChannel channel, long number, long offset) throws IOException {
+        var blocks = (walFlushPolicy == DB.FlushPolicy.Periodic) ? walBytesPerFlush / LogFormat.kBlockSize : 1;
+        var file = new LogFile(channel, blocks); // logfile_
+        var log = new LogWriter(file,offset)
+            .flushRecords(walFlushPolicy == DB.FlushPolicy.EveryRecord);
+        return (recycleLogFileNum > 0) ? log.recycle(number) : log;
+    }
+
+    static final ByteBuffer zeroBlock = ByteBuffer.allocateDirect(LogFormat.kBlockSize);
+
+    // The next log, allocated in the background while the current one fills up,
+    // so that a memtable switch only renames it; null while none is being prepared.
+    CompletableFuture<Path> spareLog;
+    long spareLogNumber;
+
+    // REQUIRES: mutex_ is held
+    // Start preallocating a spare log unless one is on its way, or there is
+    // an obsolete log to recycle instead.
+    void prepareSpareLog() {
+        assert (mutex.isHeldByCurrentThread());
+        if (!preallocateLogs || spareLog != null || !logsToRecycle.isEmpty() || shuttingDown.get()) {
+            return;
+        }
+        var number = versions.newFileNumber();
+        var fname = tempFileName(dbname,number);
+        var spare = new CompletableFuture<Path>();
+        pendingOutputs.add(number);
+        spareLogNumber = number;
+        spareLog = spare;
+        env.schedule(() -> {
+            try (var channel = env.newWritableChannel(fname,false)) {
+                preallocate(channel);
+                spare.complete(fname);
+            }
+            catch (Throwable e) {
+                spare.completeExceptionally(e);
+            }
+        }, Env.Priority.HIGH);
+    }
+
+    // REQUIRES: mutex_ is held
+    // The spare log if it is ready; a new log never waits for one.
+    Path takeSpareLog() {
+        assert (mutex.isHeldByCurrentThread());
+        if (spareLog == null || !spareLog.isDone()) {
+            return null;
+        }
+        var spare = spareLog;
+        spareLog = null;
+        pendingOutputs.remove(spareLogNumber); // a failed one is deleted as obsolete
+        try {
+            return spare.join();
+        }
+        catch (CompletionException e) {
+            info("Preallocating log failed: {0}", e.getCause());
+            return null;
+        }
+    }
+
+    // Allocate the blocks of a log up front and sync them, so that syncs of the
+    // log's records do not also have to journal the growth of the file.  Java has
+    // no fallocate(), so write zeros; the log reader takes a zero header as the
+    // end of the log.
+    void preallocate(FileChannel channel) throws IOException {
+        var blocks = (writeBufferSize + writeBufferSize / 10) / LogFormat.kBlockSize + 1;
+        for (var i = 0; i < blocks; i++) {
+            var zeros = zeroBlock.duplicate();
+            while (zeros.hasRemaining()) {
+                channel.write(zeros);
+            }
+        }
+        channel.force(true);
+    }
+
+    // Write out buffered log records as the flush policy requires.
+    // Called after each group commit; REQUIRES: the caller is the only log writer.
+    void flushLog(LogWriter log, boolean sync) throws IOException {
+        var file = (LogFile) log.out;
+        if (sync) {
+            file.sync(); // logfile_->Sync();
+        } else if (walFlushPolicy == DB.FlushPolicy.EveryGroup) {
+            file.flush();
+        } else if (walFlushPolicy == DB.FlushPolicy.Periodic) {
+            if (file.sinceFlush() >= walFlushMillis * 1_000_000L) {
+                file.flush();
+            }
+        }
+    }
+
     MemTable memTable = null; // mem_
-    MemTable immuTable = null; // imm_ Memtable being compacted
-    AtomicReference has_imm = new AtomicReference(immuTable);  // So bg thread can detect non-NULL imm_
+    Deque<MemTable> immuTables = new ArrayDeque<>(); // imm_ Memtables waiting to be compacted, newest first
+    AtomicReference has_imm = new AtomicReference();  // So bg thread can detect non-empty imm_
+    boolean flushRequested; // write out the immutable memtables even if too few to merge
+
+    // The memtables and version that get() reads from; replaced under mutex_, read without it.
+    volatile SuperVersion superVersion;
+
+    // REQUIRES: mutex_ is held
+    // Publish the current memtables and version to readers.
+    void installSuperVersion() {
+        assert (mutex.isHeldByCurrentThread());
+        var old = superVersion;
+        superVersion = new SuperVersion(memTable, immuTables.toArray(new MemTable[immuTables.size()]), versions.current());
+        if (old != null && old.unref()) {
+            old.cleanup();
+        }
+    }
+
+    // Pin the published memtables and version without taking the mutex.
+    SuperVersion acquireSuperVersion() {
+        for (;;) {
+            var sv = superVersion;
+            if (sv.tryRef()) {
+                return sv;
+            }
+            // A newer one was installed and the last reference to this one dropped; retry.
+        }
+    }
+
+    void releaseSuperVersion(SuperVersion sv) {
+        if (sv.unref()) {
+            mutex.lock();
+            try (mutex) {
+                sv.cleanup();
+            }
+        }
+    }
+
+    // REQUIRES: mutex_ is held
+    // Are there enough immutable memtables to write out a level-0 table?
+    boolean flushPending() {
+        assert (mutex.isHeldByCurrentThread());
+        return !immuTables.isEmpty() &&
+            (flushRequested || immuTables.size() >= minWriteBufferNumberToMerge);
+    }
 
     // Set of table files to protect from deletion because they are part of ongoing compactions.
     Set<Long> pendingOutputs = new HashSet<>();
@@ -81,6 +295,7 @@ class DbImpl {
     int seed;  // For sampling.
 
     FilterPolicy filterPolicy;
+    CompactionFilter compactionFilter;
 
     InternalKeyComparator internalComparator;
 
@@ -103,11 +318,25 @@ class DbImpl {
         return snapshots.entrySet().iterator().next().getValue();
     }
 
+    long snapshotsNewestNumber() {
+        var newest = 0L;
+        for (var sequence : snapshots.values()) {
+            newest = Math.max(newest, sequence);
+        }
+        return newest;
+    }
+
+    // Snapshots carry their sequence number, so that get() can read one without the mutex.
+    static class SequenceSnapshot implements Snapshot {
+        final long sequence;
+        SequenceSnapshot(long s) { sequence = s; }
+    }
+
     Snapshot getSnapshot() {
         mutex.open();
         try (mutex) {
-            var key = new Snapshot(){};
             var value = versions.lastSequence();
+            var key = new SequenceSnapshot(value);
             snapshots.put(key,value);
             return key;
         }
@@ -126,6 +355,13 @@ class DbImpl {
         return snapshots.get(key);
     }
 
+    long sequence(Snapshot key) {
+        if (key instanceof SequenceSnapshot s) {
+            return s.sequence;
+        }
+        throw new IllegalArgumentException("not a Snapshot: "+key);
+    }
+
     void verify(Snapshot key) {
         if (!snapshots.containsKey(key)) {
             throw new IllegalArgumentException("not a Snapshot: "+key);
@@ -175,6 +411,14 @@ class DbImpl {
                 case kLogFile:
                     keep = ((number >= versions.logNumber()) ||
                             (number == versions.prevLogNumber()));
+                    if (!keep && logsToRecycle.contains(number)) {
+                        keep = true; // already pooled
+                    } else if (!keep && recyclableLogs.remove(number) &&
+                               logsToRecycle.size() < recycleLogFileNum) {
+                        info("Recycle log #{0,number}", number );
+                        logsToRecycle.add(number);
+                        keep = true;
+                    }
                     break;
                 case kDescriptorFile:
                     // Keep my manifest file, and any newer incarnations'
@@ -249,7 +493,8 @@ class DbImpl {
     class IterState {
         MutexLock mu;
         Version version;
-        MemTable mem, imm;
+        MemTable mem;
+        MemTable[] imm;
         Cursor<InternalKey,Slice> iter;
         long latestSnapshot;
         int seed;
@@ -285,21 +530,22 @@ class DbImpl {
         var list = new ArrayList<Cursor<InternalKey,Slice>>();
         list.add(memTable.newIterator());
         memTable.ref();
-        if (immuTable != null) {
-            list.add(immuTable.newIterator());
-            immuTable.ref();
+        for (var imm : immuTables) {
+            list.add(imm.newIterator());
+            imm.ref();
         }
         versions.current().addIterators(fillCache,list);
 
         cleanup.mu = mutex;
         cleanup.mem = memTable;
-        cleanup.imm = immuTable;
+        cleanup.imm = immuTables.toArray(new MemTable[immuTables.size()]);
         cleanup.version = versions.current();
 
         cleanup.iter =
             new MergingIterator(internalComparator, list.toArray(new Cursor[list.size()])) {
                 @Override
                 public void close() {
+                    super.close();
                     cleanupIteratorState(cleanup);
                 }
                 // internal_iter->RegisterCleanup(CleanupIteratorState, cleanup, NULL);
@@ -312,7 +558,7 @@ class DbImpl {
     void cleanupIteratorState(IterState state) {
         try (var l = state.mu.open()) {
             state.mem.unref();
-            if (state.imm != null) state.imm.unref();
+            for (var imm : state.imm) imm.unref();
             state.version.unref();
         }
         // delete state;
@@ -5,7 +5,11 @@ import java.io.OutputStream;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import lib.leveldb.Env;
 import lib.leveldb.Slice;
 import lib.leveldb.db.Versions.Compaction;
 import static lib.leveldb.db.DbUtil.*;
@@ -64,10 +68,13 @@ class DbImplBg extends DbImplFg {
         mutex.lock();
         try (mutex)  // MutexLock l(&mutex_);
         {
-            while (immuTable != null && bgError == null) {
+            while (!immuTables.isEmpty() && bgError == null) {
+                // Memtables switched after ours may be too few to merge; flush them too.
+                flushRequested = true;
+                maybeScheduleCompaction();
                 bgCv.awaitUninterruptibly();
             }
-            if (immuTable != null) {
+            if (!immuTables.isEmpty()) {
                 throw fault(bgError);
             }
         }
@@ -142,169 +149,261 @@ class DbImplBg extends DbImplFg {
         s.bytesWritten += bytesWritten;
     }
 
+    /**
+     * Start whatever background work there is room for.
+     * <p>
+     * Memtable flushes have a lane of their own in the HIGH priority pool, so
+     * a flush never waits behind a long compaction. Up to maxBackgroundCompactions
+     * compactions run in the LOW priority pool, provided they touch different
+     * files and key ranges; each one is picked, and its inputs marked, before
+     * it is scheduled. A manual compaction runs alone.
+     */
     @Override
     void maybeScheduleCompaction() {
         assert (mutex.isHeldByCurrentThread());
-        if (bgCompactionScheduled.get()) {
-            // Already scheduled
-        } else if (shuttingDown.get()) {
+        if (shuttingDown.get()) {
             // DB is being deleted; no more background compactions
         } else if (bgError != null) {
             // Already got an error; no more changes
-        } else if (immuTable == null &&
-                   manualCompaction == null &&
-                   !versions.needsCompaction()) {
-            // No work to be done
         } else {
-            bgCompactionScheduled.set(true); // bg_compaction_scheduled_ = true;
-            env.schedule(BGWork); // env_->Schedule(&DBImpl::BGWork, this);
+            if (flushPending() && !bgFlushScheduled) {
+                bgFlushScheduled = true;
+                env.schedule(BGFlush, Env.Priority.HIGH);
+            }
+            if (manualCompaction != null) {
+                // Let the compactions in progress finish first.
+                if (bgCompactionScheduled == 0) {
+                    bgCompactionScheduled++;
+                    env.schedule(() -> backgroundCall(null), Env.Priority.LOW);
+                }
+            } else {
+                while (bgCompactionScheduled < maxBackgroundCompactions) {
+                    var c = versions.picker.pickCompaction(versions);
+                    if (c == null) {
+                        break; // No work to be done
+                    }
+                    versions.registerCompaction(c);
+                    bgCompactionScheduled++;
+                    env.schedule(() -> backgroundCall(c), Env.Priority.LOW);
+                }
+            }
         }
     }
 
     // void DBImpl::BGWork(void* db) {
     //   reinterpret_cast<DBImpl*>(db)->BackgroundCall();
     // }
-    Runnable BGWork = this::backgroundCall;
+    Runnable BGFlush = this::backgroundFlush;
+
+    void backgroundFlush() {
+        mutex.lock();
+        try (mutex)
+        {
+            assert (bgFlushScheduled);
+            if (shuttingDown.get()) {
+                // No more background work when shutting down.
+            } else if (bgError != null) {
+                // No more background work after a background error.
+            } else if (flushPending()) {
+                try {
+                    compactMemTable();
+                }
+                catch (Exception e) {
+                    recordBackgroundError(e);
+                }
+            }
+
+            bgFlushScheduled = false;
 
-    void backgroundCall() {
+            // The new level-0 file may call for a compaction,
+            // and more memtables may have filled up meanwhile.
+            maybeScheduleCompaction();
+            bgCv.signalAll();  // Wakeup MakeRoomForWrite() if necessary
+        }
+    }
+
+    // c is NULL for a manual compaction
+    void backgroundCall(Compaction c) {
         mutex.lock();
         try (mutex)
         {
-            assert (bgCompactionScheduled.get());
+            assert (bgCompactionScheduled > 0);
             if (shuttingDown.get()) {
                 // No more background work when shutting down.
             } else if (bgError != null) {
                 // No more background work after a background error.
             } else {
-                backgroundCompaction();
+                try {
+                    backgroundCompaction(c);
+                }
+                catch (Exception e) {
+                    recordBackgroundError(e);
+                }
+            }
+            if (c != null) {
+                // In case it did not run
+                versions.unregisterCompaction(c);
+                c.releaseInputs();
             }
 
-            bgCompactionScheduled.set(false);
+            bgCompactionScheduled--;
 
             // Previous compaction may have produced too many files in a level,
             // so reschedule another compaction if needed.
             maybeScheduleCompaction();
             bgCv.signalAll();
         }
-        catch (Exception e) {
-            recordBackgroundError(e);
-        }
     }
 
-    void backgroundCompaction() {
+    void backgroundCompaction(Compaction c) {
         assert (mutex.isHeldByCurrentThread());
 
-        if (immuTable != null) {
-            compactMemTable();
-            return;
-        }
-
-        Compaction c;
-        var isManual = (manualCompaction != null);
+        var failed = false;
+        var isManual = (c == null);
+        var m = manualCompaction;
         InternalKey manualEnd = null;
         if (isManual) {
-            var m = manualCompaction;
-            c = versions.compactRange(m.level, m.begin, m.end);
+            if (m == null) {
+                return; // cancelled
+            }
+            c = versions.picker.compactRange(versions, m.level, m.begin, m.end);
             m.done = (c == null);
             if (c != null) {
                 manualEnd = c.input(0, c.numInputFiles(0) - 1).largest;
+                versions.registerCompaction(c);
             }
             info("Manual compaction at level-{0,number} from {1} .. {1}; will stop at {3}",
                  m.level,
                  (m.begin != null ? string(m.begin) : "(begin)"),
                  (m.end != null ? string(m.end) : "(end)"),
                  (m.done ? "(end)" : string(manualEnd)));
-        } else {
-            c = Versions.pickCompaction(versions);
         }
 
+        try {
+            compact(c, isManual);
+        }
+        catch (Exception e) { // if (!status.ok()) {
+            failed = true;
+            throw e;
+        }
+        finally {
+            if (c != null) {
+                versions.unregisterCompaction(c);
+                c.releaseInputs();
+            }
+            // delete c;
+
+            // if (status.ok()) {
+            //   // Done
+            // } else if (shutting_down_.Acquire_Load()) {
+            //   // Ignore compaction errors found during shutting down
+            // } else {
+            //   Log(options_.info_log,
+            //       "Compaction error: %s", status.ToString().c_str());
+            // }
+
+            if (isManual) {
+                if (failed) { // if (!status.ok()) {
+                    m.done = true;
+                }
+                if (!m.done) {
+                   // We only compacted part of the requested range.
+                   // Update *m to the range that is left to be compacted.
+                   m.tmpStorage = manualEnd;
+                   m.begin = m.tmpStorage;
+                }
+                if (manualCompaction == m) {
+                    manualCompaction = null;
+                }
+            }
+        }
+    }
+
+    void compact(Compaction c, boolean isManual) {
         if (c == null) {
             // Nothing to do
+        } else if (c.isDeletion()) {
+            // Drop the inputs; nothing is written
+            c.addInputDeletions(c.edit());
+            versions.logAndApply(c.edit(),mutex);
+            installSuperVersion();
+            info("Dropped {0,number} files of level-{1,number} {2,number} bytes: {3}",
+                 c.numInputFiles(0),
+                 c.level(),
+                 versions.totalFileSize(c.inputs[0]),
+                 versions.levelSummary());
+            c.releaseInputs();
+            deleteObsoleteFiles();
         } else if (!isManual && c.isTrivialMove()) {
             // Move file to next level
             assert (c.numInputFiles(0) == 1);
             var f = c.input(0, 0);
             c.edit().deleteFile(c.level(), f.number);
-            c.edit().addFile(c.level() + 1, f.number, f.fileSize,
-                             f.smallest, f.largest);
+            c.edit().addFile(c.outputLevel(), f.number, f.fileSize,
+                             f.smallest, f.largest, f.creationTime);
             versions.logAndApply(c.edit(),mutex);
+            installSuperVersion();
             // if (!status.ok()) {
             //   RecordBackgroundError(status);
             // }
             info("Moved #{0,number} to level-{1,number} {2,number} bytes {3}: {4}",
                  f.number,
-                 c.level() + 1,
+                 c.outputLevel(),
                  f.fileSize,
                  "ok", // status.ToString().c_str(),
                  versions.levelSummary());
         } else {
             var compact = new CompactionState();
             compact.compaction = c;
-            compact.doCompactionWork();
-            // if (!status.ok()) {
-            //   RecordBackgroundError(status);
-            // }
-            compact.cleanupCompaction();
-            // delete compact;
+            try {
+                compact.doCompactionWork();
+            }
+            finally {
+                compact.cleanupCompaction();
+                // delete compact;
+            }
             c.releaseInputs();
             deleteObsoleteFiles();
         }
-        // delete c;
-
-        // if (status.ok()) {
-        //   // Done
-        // } else if (shutting_down_.Acquire_Load()) {
-        //   // Ignore compaction errors found during shutting down
-        // } else {
-        //   Log(options_.info_log,
-        //       "Compaction error: %s", status.ToString().c_str());
-        // }
-
-        if (isManual) {
-            var m = manualCompaction;
-            // if (!status.ok()) {
-            //   m->done = true;
-            // }
-            if (!m.done) {
-               // We only compacted part of the requested range.
-               // Update *m to the range that is left to be compacted.
-               m.tmpStorage = manualEnd;
-               m.begin = m.tmpStorage;
-            }
-            manualCompaction = null;
-        }
     }
 
     /**
-     * Compact the in-memory write buffer to disk.
-     * Switches to a new log-file/memtable and writes a new descriptor iff successful.
+     * Compact the in-memory write buffers to disk.
+     * The immutable memtables waiting at the start are merged into one table;
+     * writes a new descriptor iff successful.
      * Errors are recorded in bg_error_.
      * // EXCLUSIVE_LOCKS_REQUIRED(mutex_);
      */
     void compactMemTable() {
         assert (mutex.isHeldByCurrentThread());
-        assert (immuTable != null);
+        assert (!immuTables.isEmpty());
 
-        // Save the contents of the memtable as a new Table
+        // Memtables made immutable while this one is written wait for the next flush.
+        var mems = new ArrayList<MemTable>(immuTables);
+        var newest = mems.get(0);
+        flushRequested = false;
+
+        // Save the contents of the memtables as a new Table
         var edit = new VersionEdit();
-        var base = versions.current();
-        base.ref();
-        writeLevel0Table(immuTable, edit, base);
-        base.unref();
+        var meta = writeLevel0Table(mems, edit);
 
         if (shuttingDown.get()) {
             throw fault("Deleting DB during memtable compaction");
         }
 
-        // Replace immutable memtable with the generated Table
+        // Replace immutable memtables with the generated Table
         edit.setPrevLogNumber(0);
-        edit.setLogNumber(logfileNumber);  // Earlier logs no longer needed
+        edit.setLogNumber(newest.nextLogNumber);  // Earlier logs no longer needed
         versions.logAndApply(edit, mutex);
+        pendingOutputs.remove(meta.number);
 
         // Commit to the new state
-        immuTable.unref();
-        immuTable = null;
-        has_imm.set(null);
+        for (var mem : mems) {
+            immuTables.removeLastOccurrence(mem);
+            mem.unref();
+        }
+        has_imm.set(flushPending() ? immuTables.peekFirst() : null);
+        installSuperVersion();
         deleteObsoleteFiles();
     }
 
@@ -317,6 +416,10 @@ class DbImplBg extends DbImplFg {
     // we can drop all entries for the same key with sequence numbers < S.
     long smallestSnapshot;
 
+    // Values newer than the latest snapshot are seen by none, and are passed
+    // through the compaction filter.
+    long latestSnapshot;
+
     // Files produced by compaction
     class Output {
         long number;
@@ -335,158 +438,301 @@ class DbImplBg extends DbImplFg {
         return outputs.isEmpty() ? null : outputs.get(outputs.size()-1);
     }
 
+    // The input files below level(); a universal compaction reads several levels.
+    int numLowerInputFiles() {
+        var n = 0;
+        for (var which = 1; which < compaction.numInputLevels(); which++) {
+            n += compaction.numInputFiles(which);
+        }
+        return n;
+    }
+
     // Status DBImpl::DoCompactionWork(CompactionState* compact)
     void doCompactionWork() {
         var startMicros = env.nowMicros();
-        var immMicros = 0;  // Micros spent doing imm_ compactions
 
         info("Compacting {0,number}@{1,number} + {2,number}@{3,number} files",
              compaction.numInputFiles(0),
              compaction.level(),
-             compaction.numInputFiles(1),
-             compaction.level() + 1);
+             numLowerInputFiles(),
+             compaction.outputLevel());
 
         assert (versions.numLevelFiles(compaction.level()) > 0);
         assert (builder == null);
         assert (outfile == null);
         if (snapshots.isEmpty()) {
             smallestSnapshot = versions.lastSequence();
+            latestSnapshot = 0;
         } else {
             smallestSnapshot = snapshotsOldestNumber();
+            latestSnapshot = snapshotsNewestNumber();
         }
 
+        long bytesRead=0, bytesWritten=0, timeUsed;
+
         // Release mutex while we're actually doing the compaction work
         mutex.unlock();
+        try {
+            var boundaries = boundaries();
+            if (boundaries.isEmpty()) {
+                processKeyRange(null,null);
+            } else {
+                runSubcompactions(boundaries);
+            }
 
-        var input = compaction.makeInputIterator(versions);
-        // Iterator* input = versions_->MakeInputIterator(compact->compaction);
-        // input->SeekToFirst();
+            timeUsed = env.nowMicros() - startMicros;
 
-        // ParsedInternalKey ikey;
-        Slice currentUserKey = null;
-        var hasCurrentUserKey = false;
-        var lastSequenceForKey = kMaxSequenceNumber;
-        while (input.hasNext() && !shuttingDown.get()) { // for (; input->Valid() && !shutting_down_.Acquire_Load(); ) {
-            input.next();
-
-            // Prioritize immutable compaction work
-            if (has_imm.get() != null) { // has_imm_.NoBarrier_Load() != NULL) {
-                var immStart = env.nowMicros();
-                mutex.lock();
-                if (immuTable != null) {
-                    compactMemTable();
-                    bgCv.signalAll();  // Wakeup MakeRoomForWrite() if necessary
+            for (var which = 0; which < compaction.numInputLevels(); which++) {
+                for (var i = 0; i < compaction.numInputFiles(which); i++) {
+                    bytesRead += compaction.input(which,i).fileSize;
                 }
-                mutex.unlock();
-                immMicros += (env.nowMicros() - immStart);
             }
-
-            var key = input.getKey();
-            if (compaction.shouldStopBefore(key) &&
-                builder != null)
-            {
-                finishCompactionOutputFile(); // status = FinishCompactionOutputFile(compact, input);
-                // if (!status.ok()) {
-                //   break;
-                //  }
+            for (var i = 0; i < outputs.size(); i++) {
+                bytesWritten += outputs.get(i).fileSize;
             }
 
-            // Handle key/value, add to state, etc.
-            var drop = false;
-            if (validInternalKey(key)) { // if (!ParseInternalKey(key, &ikey)) {
-                // Do not hide error keys
-                currentUserKey = null; // current_user_key.clear();
-                hasCurrentUserKey = false;
-                lastSequenceForKey = kMaxSequenceNumber;
-            } else {
-                if (!hasCurrentUserKey ||
-                    userComparator().compare(key.userKey,
-                                             currentUserKey) != 0) {
-                    // First occurrence of this user key
-                    currentUserKey = key.userKey; // current_user_key.assign(ikey.user_key.data(), ikey.user_key.size());
-                    hasCurrentUserKey = true;
-                    lastSequenceForKey = kMaxSequenceNumber;
-                }
-
-                if (lastSequenceForKey <= smallestSnapshot) {
-                    // Hidden by an newer entry for same user key
-                    drop = true;    // (A)
-                } else if (valueType(key) == kTypeDeletion &&
-                           sequenceNumber(key) <= smallestSnapshot &&
-                           compaction.isBaseLevelForKey(key.userKey)) {
-                    // For this user key:
-                    // (1) there is no data in higher levels
-                    // (2) data in lower levels will have larger sequence numbers
-                    // (3) data in layers that are being compacted here and have
-                    //     smaller sequence numbers will be dropped in the next
-                    //     few iterations of this loop (by rule (A) above).
-                    // Therefore this deletion marker is obsolete and can be dropped.
-                    drop = true;
-                }
+        }
+        finally {
+            mutex.lock();
+        }
+        addCompactionStats(compaction.outputLevel(), timeUsed, bytesRead, bytesWritten);
 
-                lastSequenceForKey = sequenceNumber(key);
-            }
+        installCompactionResults();
+        // if (!status.ok()) {
+        //   RecordBackgroundError(status);
+        // }
 
-            // if 0 log(); below
+        info("compacted to: {0}", versions.levelSummary());
+    }
 
-            if (!drop) {
-                // Open output file if necessary
-                if (builder == null) {
-                    openCompactionOutputFile();
+    // Merge the inputs with user keys in [begin,end) into new output files;
+    // NULL means an open end.
+    void processKeyRange(Slice begin, Slice end) {
+        var input = compaction.makeInputIterator(versions,begin,end);
+        // Iterator* input = versions_->MakeInputIterator(compact->compaction);
+        // input->SeekToFirst();
+        try {
+            // ParsedInternalKey ikey;
+            Slice currentUserKey = null;
+            var hasCurrentUserKey = false;
+            var lastSequenceForKey = kMaxSequenceNumber;
+            while (input.hasNext() && !shuttingDown.get()) { // for (; input->Valid() && !shutting_down_.Acquire_Load(); ) {
+                input.next();
+
+                // Immutable memtables are flushed in their own lane (see maybeScheduleCompaction),
+                // so there is no need to stop here to write them out.
+
+                var key = input.getKey();
+                var value = input.getValue();
+                if (compaction.shouldStopBefore(key) &&
+                    builder != null)
+                {
+                    finishCompactionOutputFile(); // status = FinishCompactionOutputFile(compact, input);
                     // if (!status.ok()) {
                     //   break;
-                    // }
+                    //  }
                 }
-                if (builder.numEntries == 0) {
-                    currentOutput().smallest = key;
+
+                // Handle key/value, add to state, etc.
+                var drop = false;
+                if (!validInternalKey(key)) { // if (!ParseInternalKey(key, &ikey)) {
+                    // Do not hide error keys
+                    currentUserKey = null; // current_user_key.clear();
+                    hasCurrentUserKey = false;
+                    lastSequenceForKey = kMaxSequenceNumber;
+                } else {
+                    if (!hasCurrentUserKey ||
+                        userComparator().compare(key.userKey,
+                                                 currentUserKey) != 0) {
+                        // First occurrence of this user key
+                        currentUserKey = key.userKey; // current_user_key.assign(ikey.user_key.data(), ikey.user_key.size());
+                        hasCurrentUserKey = true;
+                        lastSequenceForKey = kMaxSequenceNumber;
+                    }
+
+                    if (lastSequenceForKey <= smallestSnapshot) {
+                        // Hidden by an newer entry for same user key
+                        drop = true;    // (A)
+                    } else if (compactionFilter != null &&
+                               valueType(key) == kTypeValue &&
+                               sequenceNumber(key) > latestSnapshot) {
+                        // No snapshot can see this value, so the user may remove or change it.
+                        // A removed value turns into a deletion marker, which hides the older
+                        // values of the key and is itself dropped by the rule below if it can be.
+                        var newValue = compactionFilter.filter(compaction.level(), key.userKey, value);
+                        if (newValue == null) {
+                            key = internalKey(key.userKey, sequenceNumber(key), kTypeDeletion);
+                            value = MemTable.deleted;
+                        } else {
+                            value = newValue;
+                        }
+                    }
+                    if (!drop &&
+                        valueType(key) == kTypeDeletion &&
+                        sequenceNumber(key) <= smallestSnapshot &&
+                        compaction.isBaseLevelForKey(key.userKey)) {
+                        // For this user key:
+                        // (1) there is no data in higher levels
+                        // (2) data in lower levels will have larger sequence numbers
+                        // (3) data in layers that are being compacted here and have
+                        //     smaller sequence numbers will be dropped in the next
+                        //     few iterations of this loop (by rule (A) above).
+                        // Therefore this deletion marker is obsolete and can be dropped.
+                        drop = true;
+                    }
+
+                    lastSequenceForKey = sequenceNumber(key);
                 }
-                currentOutput().largest = key;
-                builder.add(key, input.getValue());
 
-                // Close output file if it is big enough
-                if (builder.fileSize() >=
-                        compaction.maxOutputFileSize()) {
-                    finishCompactionOutputFile(); // status = FinishCompactionOutputFile(compact, input);
-                    // if (!status.ok()) {
-                    //   break;
-                    // }
+                // if 0 log(); below
+
+                if (!drop) {
+                    // Open output file if necessary
+                    if (builder == null) {
+                        openCompactionOutputFile();
+                        // if (!status.ok()) {
+                        //   break;
+                        // }
+                    }
+                    if (builder.numEntries == 0) {
+                        currentOutput().smallest = key;
+                    }
+                    currentOutput().largest = key;
+                    builder.add(key, value);
+
+                    // Close output file if it is big enough
+                    if (builder.fileSize() >=
+                            compaction.maxOutputFileSize()) {
+                        finishCompactionOutputFile(); // status = FinishCompactionOutputFile(compact, input);
+                        // if (!status.ok()) {
+                        //   break;
+                        // }
+                    }
                 }
-            }
-        } // while(!shuttingDown)
+            } // while(!shuttingDown)
 
-        if (shuttingDown.get()) { //   if (status.ok() && shutting_down_.Acquire_Load()) {
-            throw fault("Deleting DB during compaction"); // status = Status::IOError("Deleting DB during compaction");
+            if (shuttingDown.get()) { //   if (status.ok() && shutting_down_.Acquire_Load()) {
+                throw fault("Deleting DB during compaction"); // status = Status::IOError("Deleting DB during compaction");
+            }
+            if (builder != null) { //   if (status.ok() && compact->builder != NULL) {
+                finishCompactionOutputFile();
+            }
+            // if (status.ok()) {
+            //   status = input->status();
+            // }
         }
-        if (builder != null) { //   if (status.ok() && compact->builder != NULL) {
-            finishCompactionOutputFile();
+        finally {
+            input.close(); // delete input;
+            // input = NULL;
         }
-        // if (status.ok()) {
-        //   status = input->status();
-        // }
-        // delete input;
-        // input = NULL;
+    }
 
-        long bytesRead=0, bytesWritten=0;
-        long timeUsed = env.nowMicros() - startMicros - immMicros;
+    // Subcompactions, one for each shard of the key range; empty if not split.
+    List<CompactionState> subcompactions = List.of();
 
-        for (var which = 0; which < 2; which++) {
+    /**
+     * Pick the user keys at which to split the key range of this compaction,
+     * so that it can be run as up to maxSubcompactions shards in parallel.
+     * The split points are taken from the boundaries of the input files, which
+     * spread the shards roughly evenly over the data. Only compactions out of
+     * level-0 are split; the others cover a file or two of level-1 and are
+     * small already.
+     */
+    List<Slice> boundaries() {
+        if (maxSubcompactions <= 1 || compaction.level() != 0) {
+            return List.of();
+        }
+        var ucmp = userComparator();
+        var keys = new ArrayList<Slice>();
+        for (var which = 0; which < compaction.numInputLevels(); which++) {
             for (var i = 0; i < compaction.numInputFiles(which); i++) {
-                bytesRead += compaction.input(which,i).fileSize;
+                var f = compaction.input(which,i);
+                keys.add(f.smallest.userKey);
+                keys.add(f.largest.userKey);
             }
         }
-        for (var i = 0; i < outputs.size(); i++) {
-            bytesWritten += outputs.get(i).fileSize;
+        keys.sort(ucmp);
+        var distinct = new ArrayList<Slice>();
+        for (var i = 1; i < keys.size(); i++) { // the smallest key would start an empty shard
+            if (ucmp.compare(keys.get(i),keys.get(i-1)) != 0) {
+                distinct.add(keys.get(i));
+            }
         }
+        var m = distinct.size();
+        var n = Math.min(maxSubcompactions, m + 1);
+        var boundaries = new ArrayList<Slice>(n);
+        for (var i = 1; i < n; i++) {
+            boundaries.add(distinct.get(i * m / n));
+        }
+        return boundaries;
+    }
 
-        mutex.lock();
-        addCompactionStats(compaction.level()+1, timeUsed, bytesRead, bytesWritten);
-
-        installCompactionResults();
-        // if (!status.ok()) {
-        //   RecordBackgroundError(status);
-        // }
-
-        info("compacted to: {0}", versions.levelSummary());
+    /**
+     * Run the shards between the boundaries, each into its own output files,
+     * and collect their outputs here in key order so that they are installed
+     * together.  The shards are scheduled to the LOW pool; this thread runs
+     * the first, then every shard no pool thread has started yet, so that a
+     * pool busy with other compactions cannot keep it waiting.
+     * // LOCKS_EXCLUDED(mutex_)
+     */
+    void runSubcompactions(List<Slice> boundaries) {
+        var n = boundaries.size() + 1;
+        var subs = new ArrayList<CompactionState>(n);
+        for (var i = 0; i < n; i++) {
+            var sub = new CompactionState();
+            sub.compaction = compaction.subcompaction();
+            sub.smallestSnapshot = smallestSnapshot;
+            sub.latestSnapshot = latestSnapshot;
+            subs.add(sub);
+        }
+        subcompactions = subs;
+
+        var shards = new ArrayList<Runnable>(n);
+        var futures = new ArrayList<CompletableFuture<Void>>(n);
+        for (var i = 1; i < n; i++) {
+            var sub = subs.get(i);
+            var begin = boundaries.get(i-1);
+            var end = (i < n-1) ? boundaries.get(i) : null;
+            var started = new AtomicBoolean();
+            var future = new CompletableFuture<Void>();
+            Runnable shard = () -> {
+                if (started.compareAndSet(false,true)) {
+                    try {
+                        sub.processKeyRange(begin,end);
+                        future.complete(null);
+                    }
+                    catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+            };
+            shards.add(shard);
+            futures.add(future);
+            env.schedule(shard, Env.Priority.LOW);
+        }
+        Throwable error = null;
+        try {
+            subs.get(0).processKeyRange(null,boundaries.get(0));
+        }
+        catch (Throwable t) {
+            error = t;
+        }
+        for (var i = 0; i < shards.size(); i++) {
+            shards.get(i).run();
+            try {
+                futures.get(i).join();
+            }
+            catch (CompletionException e) {
+                if (error == null) error = e.getCause();
+            }
+        }
+        if (error != null) {
+            throw check(error);
+        }
+        for (var sub : subs) {
+            outputs.addAll(sub.outputs);
+            totalBytes += sub.totalBytes;
+        }
     }
 
 // #if 0
@@ -518,7 +764,13 @@ class DbImplBg extends DbImplFg {
         try {
             var fname = tableFileName(dbname, fileNumber);
             outfile = env.newWritableFile(fname);
-            builder = new TableBuilder(outfile,internalComparator);
+            builder =
+                new TableBuilder(outfile,internalComparator)
+                    .block(blockSize,blockRestartInterval)
+                    .partitionIndex(indexPartitionSize)
+                    .hashIndex(dataBlockHashIndex)
+                    .filterPolicy(filterPolicy)
+                    .compression(compression);
         }
         catch (IOException e) {
             throw ioerror(e);
@@ -556,7 +808,7 @@ class DbImplBg extends DbImplFg {
         if (currentEntries > 0) {
             // Verify that the table is usable by trying to create an iterator
             var fillCache = false;
-            tableCache.newIterator(outputNumber, currentBytes, fillCache);
+            tableCache.newIterator(outputNumber, currentBytes, fillCache).close();
             info("Generated table #{0,number}@{1,number}: {2,number} keys, {3,number} bytes",
                  outputNumber,
                  compaction.level(),
@@ -570,20 +822,27 @@ class DbImplBg extends DbImplFg {
         info("Compacted {0,number}@{1,number} + {2,number}@{3,number} files => {4,number} bytes",
              compaction.numInputFiles(0),
              compaction.level(),
-             compaction.numInputFiles(1),
-             compaction.level() + 1,
+             numLowerInputFiles(),
+             compaction.outputLevel(),
              totalBytes);
 
-        // Add compaction outputs
+        // Add compaction outputs; they are as new as the newest input.
         compaction.addInputDeletions(compaction.edit());
-        var level = compaction.level();
+        var level = compaction.outputLevel();
+        var creationTime = 0L;
+        for (var which = 0; which < compaction.numInputLevels(); which++) {
+            for (var i = 0; i < compaction.numInputFiles(which); i++) {
+                creationTime = Math.max(creationTime, compaction.input(which,i).creationTime);
+            }
+        }
         for (var i = 0; i < outputs.size(); i++) {
             var out = outputs.get(i);
             compaction.edit().addFile(
-                level + 1,
-                out.number, out.fileSize, out.smallest, out.largest );
+                level,
+                out.number, out.fileSize, out.smallest, out.largest, creationTime );
         }
         versions.logAndApply(compaction.edit(), mutex);
+        installSuperVersion();
     }
 
     void cleanupCompaction() {
@@ -592,14 +851,20 @@ class DbImplBg extends DbImplFg {
             // May happen if we get a shutdown call in the middle of compaction
             builder.abandon();
             // delete compact->builder;
+            try {
+                outfile.close(); // delete compact->outfile;
+            }
+            catch (IOException ignore) {}
         } else {
             assert (outfile == null);
         }
-        // delete compact->outfile;
         for (var i = 0; i < outputs.size(); i++) {
             var out = outputs.get(i);
             pendingOutputs.remove(out.number);
         }
+        for (var sub : subcompactions) {
+            sub.cleanupCompaction();
+        }
     }
 
   } // CompactionState
@@ -7,9 +7,20 @@ import java.util.ArrayList;
 import java.util.Deque;
 import java.util.LinkedList;
 import java.util.HashSet;
-
+import java.util.List;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 
+import lib.leveldb.Cursor;
 import lib.leveldb.Env;
 import lib.leveldb.Slice;
 import static lib.leveldb.DB.*;
@@ -30,9 +41,33 @@ class DbImplFg extends DbImpl {
         boolean sync;
         boolean done;
         Condition cv; // port::CondVar cv;
+        WriteGroup group; // set when a pipelined leader takes this writer
     }
     //   explicit Writer(port::Mutex* mu) : cv(mu) { }
 
+    // A batch group in flight through the pipelined write path
+    class WriteGroup {
+        List<Waiter> members = new ArrayList<>();
+        Slice record;       // encoded log record for the whole group
+        boolean sync;
+        long lastSequence;  // last sequence number assigned to the group
+        LogWriter log;
+        MemTable mem;
+        int pending;        // members that have not finished their memtable insert
+        boolean logged;
+        boolean published;
+        Exception status;
+    }
+
+    // Groups that have been handed to the log writer but not yet published, in sequence order.
+    Deque<WriteGroup> pendingGroups = new LinkedList<>();
+    long allocatedSequence;
+    LogWorker logWorker;
+
+    // Bytes in the last batch group; a delayed write is charged for the whole
+    // group written before it, since its own group is formed only after the delay.
+    long lastBatchGroupSize;
+
     void open() {
         mutex.lock();
         try (mutex) {
@@ -44,11 +79,10 @@ class DbImplFg extends DbImpl {
             if (memTable == null) {
                 // Create new log and a corresponding memtable.
                 var newLogNumber = versions.newFileNumber();
-                var lfile = env.newWritableFile(logFileName(dbname,newLogNumber));
+                log = newLogWriter(newLogNumber);
                 edit.setLogNumber(newLogNumber);
                 logfileNumber = newLogNumber;
-                log = new LogWriter(lfile);
-                memTable = new MemTable(internalComparator);
+                memTable = newMemTable();
                 memTable.ref();
             }
             if (saveManifest.v) {
@@ -56,8 +90,12 @@ class DbImplFg extends DbImpl {
                 edit.setLogNumber(logfileNumber);
                 versions.logAndApply(edit,mutex);
             }
+            installSuperVersion();
             deleteObsoleteFiles();
             maybeScheduleCompaction();
+            if (pipelinedWrite) {
+                logWorker = new LogWorker();
+            }
         }
         catch (IOException e) {
             throw ioerror(e);
@@ -73,20 +111,33 @@ class DbImplFg extends DbImpl {
         // Wait for background work to finish
         mutex.lock();
         try (mutex) {
-            while (bgCompactionScheduled.get()) {
+            while (bgCompactionScheduled > 0 || bgFlushScheduled || !pendingGroups.isEmpty()) {
                 bgCv.awaitUninterruptibly(); // bg_cv_.Wait();
             }
         }
+        if (logWorker != null) {
+            logWorker.thread.interrupt();
+        }
+        if (spareLog != null) {
+            spareLog.exceptionally((e) -> null).join(); // left to be deleted as obsolete
+        }
 
         if (dbLock != null) {
             env.unlockFile(dbLock);
         }
 
         versions.close(); // delete versions_;
+        if (superVersion != null && superVersion.unref()) superVersion.cleanup();
         if (memTable != null) memTable.unref();
-        if (immuTable != null) immuTable.unref();
+        for (var imm : immuTables) imm.unref();
         // delete tmp_batch_;
-        log.close(); // delete log_;
+        try {
+            log.close(); // delete log_;
+        }
+        catch (RuntimeException e) {
+            // After a log error the unwritten tail is lost anyway; release the rest.
+            if (bgError == null) throw e;
+        }
         // delete logfile_;
         tableCache.close(); // delete table_cache_;
 
@@ -166,15 +217,18 @@ class DbImplFg extends DbImpl {
         // Recover in the order in which the logs were generated
         logs.sort(null);
         var lastLog = logs.size() - 1;
-        for (var i = 0; i < logs.size(); i++) {
-            var logNumber = logs.get(i);
-            recoverLogFile( logNumber, (i == lastLog),
-                            saveManifest, edit, maxSequence );
-
-            // The previous incarnation may not have written any MANIFEST
-            // records after allocating this log number.  So we manually
-            // update the file number allocation counter in VersionSet.
-            versions.markFileNumberUsed(logNumber);
+        try (var replay = new LogReplay(recoveryThreads)) {
+            for (var i = 0; i < logs.size(); i++) {
+                var logNumber = logs.get(i);
+                recoverLogFile( replay, logNumber, (i == lastLog),
+                                saveManifest, edit, maxSequence );
+
+                // The previous incarnation may not have written any MANIFEST
+                // records after allocating this log number.  So we manually
+                // update the file number allocation counter in VersionSet.
+                versions.markFileNumberUsed(logNumber);
+            }
+            replay.finish(edit);
         }
 
         if (versions.lastSequence() < maxSequence.v) {
@@ -202,7 +256,7 @@ class DbImplFg extends DbImpl {
 //  reporter.status = (options_.paranoid_checks ? &status : NULL);
 //  log::Reader reader(file, &reporter, true/*checksum*/, 0/*initial_offset*/);
 
-    void recoverLogFile(long logNumber, boolean lastLog,
+    void recoverLogFile(LogReplay replay, long logNumber, boolean lastLog,
         Bool saveManifest, VersionEdit edit,
         SequenceNumber maxSequence) throws IOException
     {
@@ -222,50 +276,34 @@ class DbImplFg extends DbImpl {
         // large sequence numbers).
 
         // Create the log reader.
-        var reader = new LogReader(file);
+        var reader = new LogReader(file).logNumber(logNumber);
             // log::Reader reader(file, &reporter, true/*checksum*/,0/*initial_offset*/);
             // TODO: use &reporter in log file recovery
         info("Recovering log #{0,number}", logNumber );
 
-        // Read all the records and add to a memtable
-        var batch = new Batch.Read();
+        // Read all the records and hand them to the replay workers
         var compactions = 0;
-        MemTable mem = null;
 
         for (var record : reader) {
             if (record.length < 12) {
                 throw corruption("log record too small");
                 // reporter.Corruption( record.size(), Status::Corruption("log record too small"));
             }
-            batch.setContents(record);
-
-            if (mem == null) {
-                mem = new MemTable(internalComparator);
-                mem.ref();
-            }
-            insertInto(batch,mem);
+            var lastSeq = replay.add(record);
             // MaybeIgnoreError(&status);
 
-            var lastSeq = batch.sequence() + batch.count() - 1;
             if (lastSeq > maxSequence.v) {
                 maxSequence.v = lastSeq;
             }
 
-            if (mem.approximateMemoryUsage() > writeBufferSize) {
+            if (replay.full()) {
                 compactions++;
                 saveManifest.v = true;
-                writeLevel0Table(mem, edit, null);
-                mem.unref();
-                mem = null;
-                // if (!status.ok()) {
-                //   // Reflect errors immediately so that conditions like full
-                //   // file-systems cause the DB::Open() to fail.
-                //   break;
-                // }
+                replay.flush();
             }
         } // for(record)
 
-        // delete file;
+        reader.close(); // delete file;
 
         // See if we should keep reusing the last log file.
         if (reuseLogs && lastLog && compactions == 0) {
@@ -273,27 +311,164 @@ class DbImplFg extends DbImpl {
             assert (log == null);
             assert (memTable == null);
 
-            if (env.getFileSize(fname) > 0) {
-                var lfile = env.newAppendableFile(fname);
+            // A preallocated or recycled log is longer than its records,
+            // so continue from the end of the last record read.
+            if (reader.end > 0) {
                 info("Reusing old log {0}", fname.toString() );
-                log = new LogWriter(lfile); // log_ = new log::Writer(logfile_, lfile_size);
+                log = openLogWriter(logNumber,reader.end); // log_ = new log::Writer(logfile_, lfile_size);
                 logfileNumber = logNumber;
+                var mem = replay.takeMemTable();
                 if (mem != null) {
                     memTable = mem;
-                    mem = null;
                 } else {
                     // mem can be NULL if lognum exists but was empty.
-                    memTable = new MemTable(internalComparator);
+                    memTable = newMemTable();
                     memTable.ref();
                 }
             }
         }
 
-        if (mem != null) {
+        if (replay.mem != null) {
             // mem did not get reused; compact it.
             saveManifest.v = true;
-            writeLevel0Table(mem, edit, null);
-            mem.unref();
+            replay.flush();
+        }
+    }
+
+    /**
+     * Replays log records on a pool of threads.
+     * <p>
+     * The recovering thread reads and checksums the logs and keeps the mutex;
+     * each record is decoded and inserted into the current recovery memtable by
+     * a worker.  The records of a memtable form one contiguous sequence range,
+     * so their inserts may finish in any order.  A full memtable is written to a
+     * level-0 table in the background once its inserts are done, and the
+     * resulting files are added to the edit in file number order by finish().
+     */
+    class LogReplay implements AutoCloseable {
+
+        // Level-0 tables being written from recovery memtables.
+        class Level0 {
+            long number;
+            long startMicros;
+            CompletableFuture<FileMetaData> meta;
+        }
+
+        ExecutorService pool; // null when replaying on the recovering thread alone
+        Executor executor;
+
+        MemTable mem; // receives the records read since the last flush
+        List<CompletableFuture<Void>> inserts = new ArrayList<>();
+        List<Level0> flushes = new ArrayList<>();
+        int maxPendingFlushes = 2; // bounds the memtables held while tables are written
+
+        LogReplay(int threads) {
+            if (threads > 1) {
+                // A full queue makes the reader insert records itself.
+                pool = new ThreadPoolExecutor(threads - 1, threads - 1,
+                    0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threads * 64),
+                    (r) -> {
+                        var t = FileEnv.threadFactory().newThread(r);
+                        t.setName("leveldb-recovery");
+                        return t;
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy() );
+                executor = pool;
+            } else {
+                executor = Runnable::run;
+            }
+        }
+
+        // Queue the insert of a log record; returns the last sequence number in the record.
+        long add(Slice record) {
+            if (mem == null) {
+                mem = newMemTable();
+                mem.ref();
+            }
+            var batch = new Batch.Read();
+            batch.setContents(record);
+            var m = mem;
+            inserts.add(CompletableFuture.runAsync(() -> insertInto(batch,m), executor));
+            return batch.sequence() + batch.count() - 1;
+        }
+
+        boolean full() {
+            return mem != null && mem.approximateMemoryUsage() > writeBufferSize;
+        }
+
+        // REQUIRES: mutex_ is held
+        // Write the current memtable to a level-0 table once all of its records are in.
+        void flush() {
+            assert (mutex.isHeldByCurrentThread());
+            var m = mem;
+            mem = null;
+            var l0 = new Level0();
+            l0.startMicros = env.nowMicros();
+            l0.number = versions.newFileNumber();
+            pendingOutputs.add(l0.number);
+            info("Level-0 table #{0,number}: started", l0.number );
+
+            l0.meta = allOf(inserts).thenApplyAsync((v) -> {
+                try {
+                    return buildLevel0Table(List.of(m), l0.number);
+                }
+                finally {
+                    m.unref();
+                }
+            }, executor);
+            inserts = new ArrayList<>();
+            flushes.add(l0);
+
+            // Do not let the reader run too far ahead of the table writes.
+            var pending = 0;
+            for (var i = flushes.size() - 1; i >= 0; i--) {
+                var f = flushes.get(i).meta;
+                if (!f.isDone() && ++pending > maxPendingFlushes) {
+                    join(f);
+                    break;
+                }
+            }
+        }
+
+        // Wait for the records of the current memtable and hand it over.
+        MemTable takeMemTable() {
+            join(allOf(inserts));
+            inserts.clear();
+            var m = mem;
+            mem = null;
+            return m;
+        }
+
+        // REQUIRES: mutex_ is held
+        // Wait for the level-0 tables and add them to the edit.
+        void finish(VersionEdit edit) {
+            assert (mutex.isHeldByCurrentThread());
+            for (var l0 : flushes) {
+                var meta = join(l0.meta);
+                addLevel0Table(meta, edit, null, l0.startMicros);
+                pendingOutputs.remove(meta.number);
+            }
+            flushes.clear();
+        }
+
+        CompletableFuture<Void> allOf(List<CompletableFuture<Void>> futures) {
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+        }
+
+        <T> T join(CompletableFuture<T> future) {
+            try {
+                return future.join();
+            }
+            catch (CompletionException e) {
+                throw check(e.getCause());
+            }
+        }
+
+        @Override
+        public void close() {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
         }
     }
 
@@ -309,38 +484,65 @@ class DbImplFg extends DbImpl {
         return sequence;
     }
 
-    void writeLevel0Table(MemTable mem, VersionEdit edit, Version base) { // throws IOException {
+    FileMetaData writeLevel0Table(List<MemTable> mems, VersionEdit edit) { // throws IOException {
         assert (mutex.isHeldByCurrentThread());
 
         final long startMicros = env.nowMicros();
         FileMetaData meta;
         var fileNumber = versions.newFileNumber();
         pendingOutputs.add(fileNumber);
-        var iter = mem.newIterator();
         info("Level-0 table #{0,number}: started", fileNumber );
 
         mutex.unlock();
-        try (mutex) {
-            meta = Table.store(dbname,
-                fileNumber, blockSize, blockRestartInterval,
-                env, internalComparator, filterPolicy,
-                iter, compression );
-            // BuildTable(dbname_, env_, options_, table_cache_, iter, &meta);
+        try {
+            meta = buildLevel0Table(mems, fileNumber);
+        }
+        finally {
+            mutex.lock();
+        }
+
+        // Compactions in other threads may have installed their results while
+        // the table was built, so place it against the current version.
+        addLevel0Table(meta, edit, versions.current(), startMicros);
+        return meta;
+    }
+
+    // BuildTable(dbname_, env_, options_, table_cache_, iter, &meta);
+    // Several memtables are merged into a single table.
+    FileMetaData buildLevel0Table(List<MemTable> mems, long fileNumber) {
+        @SuppressWarnings({"rawtypes","unchecked"})
+        Cursor<InternalKey,Slice>[] list = new Cursor[mems.size()];
+        var num = 0;
+        for (var mem : mems) {
+            list[num++] = mem.newIterator();
         }
+        var iter = MergingIterator.of(internalComparator, list, num);
+        return Table.store(dbname,
+            fileNumber, blockSize, blockRestartInterval, indexPartitionSize, dataBlockHashIndex,
+            env, internalComparator, filterPolicy,
+            iter, compression );
+    }
+
+    // REQUIRES: mutex_ is held
+    void addLevel0Table(FileMetaData meta, VersionEdit edit, Version base, long startMicros) {
+        assert (mutex.isHeldByCurrentThread());
 
         info("Level-0 table #{0,number}: {1,number} bytes", meta.number, meta.fileSize );
-        pendingOutputs.remove(meta.number);
+        // The caller drops meta.number from pending_outputs_ once the edit is applied.
 
         // Note that if file_size is zero, the file has been deleted and
         // should not be added to the manifest.
         var level = 0;
         if (meta.fileSize > 0) {
+            if (versions.picker.recordsCreationTime()) {
+                meta.creationTime = env.currentTime();
+            }
             if (base != null) {
                 var minUserKey = meta.smallest.userKey;
                 var maxUserKey = meta.largest.userKey;
-                level = base.pickLevelForMemTableOutput(minUserKey, maxUserKey);
+                level = versions.picker.levelForMemTableOutput(base, minUserKey, maxUserKey);
             }
-            edit.addFile(level, meta.number, meta.fileSize, meta.smallest, meta.largest );
+            edit.addFile(level, meta.number, meta.fileSize, meta.smallest, meta.largest, meta.creationTime );
         }
 
         addCompactionStats(level, env.nowMicros() - startMicros, 0, meta.fileSize );
@@ -363,7 +565,7 @@ class DbImplFg extends DbImpl {
 
     Batch.Write batch() {
         return new Batch.Write() {
-            @Override public void apply(boolean sync) {} // write(this,sync);
+            @Override public void apply(boolean sync) { write(this,sync); }
         };
     }
 
@@ -379,21 +581,48 @@ class DbImplFg extends DbImpl {
         try (mutex) // MutexLock l(&mutex_);
         {
             writers.add(w);
-            while ( !w.done && w != writers.peek() ) {
+            if (pipelinedWrite && myBatch != null) {
+                pipelinedWrite(w);
+                return;
+            }
+            while ( !w.done && w != writers.peek() && w.group == null ) {
                 w.cv.awaitUninterruptibly();
             }
+            if (!w.done && w.group != null) {
+                // The leader has logged our batch; insert it ourselves.
+                if (insertConcurrently(w)) {
+                    w.group.members.get(0).cv.signal();
+                }
+                while (!w.done) {
+                    w.cv.awaitUninterruptibly();
+                }
+            }
             if (w.done) {
                 if (w.status != null) throw check(w.status);
+                return;
             }
 
             // May temporarily unlock and wait.
             Exception status = null;
-            makeRoomForWrite(myBatch == null);
+            try {
+                makeRoomForWrite(myBatch == null);
+            }
+            catch (RuntimeException e) {
+                // Leave the queue to the next writer, which fails the same way.
+                writers.poll();
+                if (!writers.isEmpty()) writers.peek().cv.signal();
+                throw e;
+            }
             var lastSequence = versions.lastSequence();
             var lastWriter = new Ref<>(w); // Writer* last_writer = &w;
             if (myBatch != null) { // NULL batch is for compactions
                 var updates = buildBatchGroup(lastWriter);
+                lastBatchGroupSize = updates.byteSize();
                 updates.setSequence(lastSequence + 1);
+                WriteGroup group = null;
+                if (allowConcurrentMemtableWrite && lastWriter.v != w) {
+                    group = newWriteGroup(lastWriter.v, lastSequence + 1);
+                }
                 lastSequence += updates.count();
 
                 // Add to log and apply to memtable.  We can release the lock
@@ -403,10 +632,10 @@ class DbImplFg extends DbImpl {
                 mutex.unlock();
                 try {
                     log.addRecord(updates.contents());
-                    if (sync) {
-                        env.syncFile(log.out); // status = logfile_->Sync();
+                    flushLog(log,sync); // if (sync) status = logfile_->Sync();
+                    if (group == null) {
+                        insertInto(updates,memTable);
                     }
-                    insertInto(updates,memTable);
                 }
                 catch (Exception e) {
                     status = e;
@@ -417,17 +646,33 @@ class DbImplFg extends DbImpl {
                     // just added may or may not show up when the DB is re-opened.
                     // So we force the DB into a mode where all future writes fail.
                     recordBackgroundError(status); // RecordBackgroundError(status);
+                } else if (group != null) {
+                    // Let every member insert its own batch, and wait for
+                    // all of them before publishing the last sequence.
+                    group.logged = true;
+                    for (var m : group.members) {
+                        m.group = group;
+                        if (m != w) m.cv.signal();
+                    }
+                    insertConcurrently(w);
+                    while (group.pending > 0) {
+                        w.cv.awaitUninterruptibly();
+                    }
+                    status = group.status;
                 }
                 if (updates == tmpBatch) tmpBatch.clear();
 
-                versions.setLastSequence(lastSequence);
+                // A group that did not make it into the memtable in full is never published.
+                if (status == null) {
+                    versions.setLastSequence(lastSequence);
+                }
             }
 
             while (true) {
                 var ready = writers.peek();
                 writers.poll();
                 if (ready != w) {
-                    ready.status = status;
+                    if (status != null) ready.status = status;
                     ready.done = true;
                     ready.cv.signal();
                 }
@@ -438,6 +683,199 @@ class DbImplFg extends DbImpl {
             if (!writers.isEmpty()) {
                 writers.peek().cv.signal();
             }
+            if (status != null) throw check(status);
+        }
+    }
+
+    // REQUIRES: mutex_ is held
+    // REQUIRES: w has been added to the writer queue
+    //
+    // The writer at the front of the queue builds a batch group, assigns each
+    // member its sequence range and hands the group to the log writer thread.
+    // The next group can form while this one is being logged; once logged,
+    // every member inserts its own batch into the memtable and the group is
+    // published when the last insert finishes.
+    void pipelinedWrite(Waiter w) {
+        assert (mutex.isHeldByCurrentThread());
+        while (w.group == null && w != writers.peek()) {
+            w.cv.awaitUninterruptibly();
+        }
+        if (w.group == null) {
+            try {
+                makeRoomForWrite(false); // May temporarily unlock and wait.
+            }
+            catch (RuntimeException e) {
+                writers.poll();
+                if (!writers.isEmpty()) writers.peek().cv.signal();
+                throw e;
+            }
+            var lastWriter = new Ref<>(w);
+            var updates = buildBatchGroup(lastWriter);
+            lastBatchGroupSize = updates.byteSize();
+            if (pendingGroups.isEmpty()) {
+                allocatedSequence = versions.lastSequence();
+            }
+            var g = newWriteGroup(lastWriter.v, allocatedSequence + 1);
+            updates.setSequence(allocatedSequence + 1);
+            g.record = updates.contents();
+            g.sync = w.sync;
+            g.log = log;
+            if (updates == tmpBatch) {
+                // The record shares tmpBatch's buffer until it is logged.
+                tmpBatch = batch();
+            }
+
+            for (var m : g.members) {
+                writers.poll();
+                m.group = g;
+            }
+            allocatedSequence = g.lastSequence;
+            pendingGroups.add(g);
+            logWorker.queue.add(g);
+
+            // Let the next group form while this one is being logged
+            if (!writers.isEmpty()) {
+                writers.peek().cv.signal();
+            }
+        }
+
+        var g = w.group;
+        while (!g.logged) {
+            w.cv.awaitUninterruptibly();
+        }
+        if (insertConcurrently(w)) {
+            publishWriteGroups();
+        }
+        while (!g.published) {
+            w.cv.awaitUninterruptibly();
+        }
+        if (g.status != null) throw check(g.status);
+    }
+
+    // REQUIRES: mutex_ is held
+    // REQUIRES: the writers from the front of the queue up to lastWriter form a batch group
+    // Assign each member of the group the sequence range of its own batch.
+    WriteGroup newWriteGroup(Waiter lastWriter, long sequence) {
+        var g = new WriteGroup();
+        g.mem = memTable;
+        for (var m : writers) {
+            if (m.batch != null) {
+                m.batch.setSequence(sequence);
+                sequence += m.batch.count();
+                g.members.add(m);
+            }
+            if (m == lastWriter) break;
+        }
+        g.pending = g.members.size();
+        g.lastSequence = sequence - 1;
+        return g;
+    }
+
+    // REQUIRES: mutex_ is held
+    // Insert w's own batch into the memtable of its group; may temporarily unlock.
+    // The first failure becomes the status of the whole group, which then holds
+    // a partial update, and forces all future writes to fail.
+    // Returns true for the last member of the group to finish.
+    boolean insertConcurrently(Waiter w) {
+        assert (mutex.isHeldByCurrentThread());
+        var g = w.group;
+        if (g.status == null) {
+            Exception status = null;
+            mutex.unlock();
+            try {
+                insertInto(w.batch,g.mem);
+            }
+            catch (Exception e) {
+                status = e;
+            }
+            finally {
+                mutex.lock();
+            }
+            if (status != null && g.status == null) {
+                g.status = status;
+                recordBackgroundError(status);
+            }
+        }
+        return --g.pending == 0;
+    }
+
+    // REQUIRES: mutex_ is held
+    // Groups are published in sequence order, so a reader never sees a
+    // sequence number whose updates are not yet in the memtable.
+    void publishWriteGroups() {
+        assert (mutex.isHeldByCurrentThread());
+        while (!pendingGroups.isEmpty() && pendingGroups.peek().pending == 0) {
+            var g = pendingGroups.poll();
+            if (g.status == null) {
+                versions.setLastSequence(g.lastSequence);
+            } else {
+                // The sequence numbers of a failed group stay unpublished,
+                // and so do those of every group after it.
+                for (var next : pendingGroups) {
+                    if (next.status == null) next.status = g.status;
+                }
+            }
+            g.published = true;
+            for (var m : g.members) {
+                m.cv.signal();
+            }
+        }
+        bgCv.signalAll();
+    }
+
+    /**
+     * Appends batch groups to the log on a dedicated thread.
+     * All groups queued at the time of a wakeup share a single sync.
+     */
+    class LogWorker implements Runnable {
+        BlockingQueue<WriteGroup> queue = new LinkedBlockingQueue<>();
+        Thread thread;
+
+        LogWorker() {
+            thread = FileEnv.threadFactory().newThread(this);
+            thread.setName("leveldb-wal");
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            var groups = new ArrayList<WriteGroup>();
+            while (true) {
+                try {
+                    groups.add(queue.take());
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(groups);
+                Exception status = null;
+                try {
+                    var sync = false;
+                    for (var g : groups) {
+                        g.log.addRecord(g.record);
+                        sync |= g.sync;
+                    }
+                    flushLog(groups.get(groups.size()-1).log, sync);
+                }
+                catch (Exception e) {
+                    status = e;
+                }
+                mutex.lock();
+                try (mutex) {
+                    if (status != null) {
+                        // The state of the log file is indeterminate; force all future writes to fail.
+                        recordBackgroundError(status);
+                    }
+                    for (var g : groups) {
+                        if (g.status == null) g.status = status;
+                        g.logged = true;
+                        for (var m : g.members) {
+                            m.cv.signal();
+                        }
+                    }
+                }
+                groups.clear();
+            }
         }
     }
 
@@ -449,42 +887,54 @@ class DbImplFg extends DbImpl {
         var allowDelay = !force;
         // Status s;
         while (true) {
+            writeController.update(versions.current());
             if (bgError != null) {
                 // Yield previous error
                 throw check(bgError); //s = bg_error_; break;
             } else if (
                 allowDelay &&
-                versions.numLevelFiles(0) >= kL0_SlowdownWritesTrigger) {
-                // We are getting close to hitting a hard limit on the number of L0 files.
+                writeController.delayed()) {
+                // We are getting close to hitting a hard limit on the number of L0 files
+                // or on the compaction debt.
                 // Rather than delaying a single write by several seconds when we hit the hard limit,
-                // start delaying each individual write by 1ms to reduce latency variance.
+                // pace each individual write to the delayed write rate to reduce latency variance.
                 // Also, this delay hands over some CPU to the compaction thread
                 // in case it is sharing the same core as the writer.
-                mutex.unlock();
-                env.sleepForMicroseconds(1000); // env_->SleepForMicroseconds(1000);
+                var delay = writeController.getDelay(env.nowMicros(), lastBatchGroupSize);
                 allowDelay = false;  // Do not delay a single write more than once
-                mutex.lock();
+                // Stop waiting early if background work lifts the delay.
+                var nanos = delay * 1000;
+                try {
+                    while (nanos > 0 && writeController.delayed()) {
+                        nanos = bgCv.awaitNanos(nanos);
+                        writeController.update(versions.current());
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             } else if (!force &&
                        (memTable.approximateMemoryUsage() <= writeBufferSize)) {
                 // There is room in current memtable
                 break;
-            } else if (immuTable != null) {
+            } else if (immuTables.size() >= maxWriteBufferNumber - 1) {
                 // We have filled up the current memtable, but the previous
-                // one is still being compacted, so we wait.
+                // ones are still being compacted, so we wait.
                 info("Current memtable full; waiting...");
                 bgCv.awaitUninterruptibly();
-            } else if (versions.numLevelFiles(0) >= kL0_StopWritesTrigger) {
-                // There are too many level-0 files.
-                info("Too many L0 files; waiting...");
+            } else if (writeController.stopped()) {
+                // There are too many level-0 files or too much compaction debt.
+                info("Too many L0 files or pending compaction bytes; waiting...");
+                bgCv.awaitUninterruptibly();
+            } else if (!pendingGroups.isEmpty()) {
+                // Pipelined groups still reference the current log and memtable.
                 bgCv.awaitUninterruptibly();
             } else {
                 // Attempt to switch to a new memtable and trigger compaction of old
                 assert (versions.prevLogNumber() == 0);
                 var newLogNumber = versions.newFileNumber();
                 try {
-                    var lpath = logFileName(dbname,newLogNumber);
-                    var lfile = env.newWritableFile(lpath);
-                    var newLog = new LogWriter(lfile);
+                    var newLog = newLogWriter(newLogNumber);
                     log.close(); // delete log_;
                     logfileNumber = newLogNumber;
                     log = newLog;
@@ -494,10 +944,13 @@ class DbImplFg extends DbImpl {
                     versions.reuseFileNumber(newLogNumber);
                     throw ioerror(e); // break;
                 }
-                immuTable = memTable; // imm_ = mem_;
-                has_imm.set(immuTable); // has_imm_.Release_Store(immu_table_);
-                memTable = new MemTable(internalComparator);
+                memTable.nextLogNumber = newLogNumber;
+                immuTables.addFirst(memTable); // imm_.Add(mem_);
+                flushRequested |= force;
+                has_imm.set(flushPending() ? memTable : null); // has_imm_.Release_Store(immu_table_);
+                memTable = newMemTable();
                 memTable.ref();
+                installSuperVersion();
                 force = false;   // Do not force another compaction if have room
                 maybeScheduleCompaction();
             }
@@ -532,6 +985,11 @@ class DbImplFg extends DbImpl {
                 break;
             }
 
+            if (w.batch == null && pipelinedWrite) {
+                // Leave compaction requests to the legacy write path.
+                break;
+            }
+
             if (w.batch != null) {
                 size += w.batch.byteSize();
                 if (size > max_size) {
@@ -555,55 +1013,48 @@ class DbImplFg extends DbImpl {
 
     // Slice get(ReadOptions options, Slice key) {
     Slice get(Slice key, Snapshot snapshot, boolean fillCache, boolean verifyChecksums) {
+        // Read the sequence number before pinning the memtables, so that every
+        // update up to it is in the memtables or version pinned below.
+        long sequenceNumber;
+        if (snapshot != null) {
+            sequenceNumber = sequence(snapshot);
+        } else {
+            sequenceNumber = versions.lastSequence();
+        }
+
+        // Pin mem, imm and current without the mutex.
+        var sv = acquireSuperVersion();
         Slice value = null;
-        mutex.lock();
-        try (mutex) // MutexLock l(&mutex_);
-        {
-            long sequenceNumber;
-            if (snapshot != null) {
-                sequenceNumber = lookup(snapshot);
+        Version.GetStats stats = null;
+        try {
+            // First look in the memtable, then in the immutable memtables, newest first.
+            value = sv.mem.get(sequenceNumber, key); // mem->Get(lkey, value, &s)
+            for (var i = 0; value == null && i < sv.imm.length; i++) {
+                value = sv.imm[i].get(sequenceNumber, key); // imm->Get(lkey, value, &s)
+            }
+            if (value == MemTable.deleted) {
+                value = null;
+            } else if (value != null) {
+                // Done
             } else {
-                sequenceNumber = versions.lastSequence();
+                // s = current->Get(options, lkey, value, &stats);
+                stats = sv.current.get(key,sequenceNumber,verifyChecksums,fillCache);
+                value = stats.value;
+                // TODO: check stats and set value as appropriate
             }
 
-            var mem = memTable;
-            var imm = immuTable;
-            var current = versions.current();
-            mem.ref();
-            if (imm != null) imm.ref();
-            current.ref();
-
-            // boolean haveStatUpdate = false;
-            Version.GetStats stats = null;
-
-            // Unlock while reading from files and memtables
-            mutex.unlock();
-            // LookupKey lkey(key, snapshot);
-            try {
-                // First look in the memtable, then in the immutable memtable (if any).
-                if ((value = mem.get(sequenceNumber, key)) != null) { // mem->Get(lkey, value, &s))
-                    // Done
-                } else if (imm != null && (value = imm.get(sequenceNumber, key)) != null) { // imm->Get(lkey, value, &s)
-                    // Done
-                } else {
-                    // s = current->Get(options, lkey, value, &stats);
-                    // stats = current.getStats();
-                    // haveStatUpdate = true;
-                    stats = current.get(key,sequenceNumber,verifyChecksums,fillCache);
-                    value = stats.value;
-                    // TODO: check stats and set value as appropriate
-                }
-            }
-            finally {
+            // Only a file running out of allowed seeks needs the mutex.
+            if (stats != null && sv.current.chargeSeek(stats)) {
                 mutex.lock();
+                try (mutex) {
+                    if (sv.current.updateStats(stats)) {
+                        maybeScheduleCompaction();
+                    }
+                }
             }
-
-            if (stats != null && current.updateStats(stats)) {
-                maybeScheduleCompaction();
-            }
-            mem.unref();
-            if (imm != null) imm.unref();
-            current.unref();
+        }
+        finally {
+            releaseSuperVersion(sv);
         }
         return value;
     }
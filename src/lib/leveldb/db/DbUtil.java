@@ -170,12 +170,29 @@ interface DbUtil {
             case "leveldb.sstables":                 return getSSTables(db);
             case "leveldb.compaction-stats":         return getCompactionStats((DbImplBg)db);
             case "leveldb.approximate-memory-usage": return getApproximateMemoryUsage(db);
+            case "leveldb.block-cache-usage":        return Long.toString(db.tableCache.blockCache.usage());
+            case "leveldb.block-cache-pinned-usage": return Long.toString(db.tableCache.blockCache.pinnedUsage());
+            case "leveldb.block-cache-stats":        return db.tableCache.blockCache.toString();
+            case "leveldb.compressed-cache-usage":   return getCompressedCacheUsage(db);
+            case "leveldb.compressed-cache-stats":   return getCompressedCacheStats(db);
+            case "leveldb.delayed-write-rate":       return getDelayedWriteRate(db);
+            case "leveldb.estimate-pending-compaction-bytes": return getPendingCompactionBytes(db);
             case "leveldb.implementation":           return (Object)db;
             default: return null;
         }
       }
     }
 
+    static String getCompressedCacheUsage(DbImpl db) {
+        var c = db.tableCache.blockCache.secondary;
+        return c != null ? Long.toString(c.usage()) : null;
+    }
+
+    static String getCompressedCacheStats(DbImpl db) {
+        var c = db.tableCache.blockCache.secondary;
+        return c != null ? c.toString() : null;
+    }
+
     static String getNumFilesAtLevel(DbImpl db, int level) {
         return level > kNumLevels ? null
              : Integer.toString(db.versions.numLevelFiles(level));
@@ -206,14 +223,24 @@ interface DbUtil {
         return f.toString();
     }
 
+    static String getDelayedWriteRate(DbImpl db) {
+        // Zero while writes are not being delayed
+        db.writeController.update(db.versions.current());
+        return Long.toString(db.writeController.delayedWriteRate);
+    }
+
+    static String getPendingCompactionBytes(DbImpl db) {
+        return Long.toString(db.versions.current().compactionNeededBytes);
+    }
+
     static String getApproximateMemoryUsage(DbImpl db) {
         // size_t total_usage = options_.block_cache->TotalCharge();
         var totalUsage = db.tableCache.approximateMemoryUsage();
         if (db.memTable != null) {
             totalUsage += db.memTable.approximateMemoryUsage();
         }
-        if (db.immuTable != null) {
-            totalUsage += db.immuTable.approximateMemoryUsage();
+        for (var imm : db.immuTables) {
+            totalUsage += imm.approximateMemoryUsage();
         }
         return Long.toString(totalUsage);
     }
@@ -23,10 +23,33 @@ public class Factory implements lib.leveldb.Factory {
     static class Options {
         boolean createIfMissing, errorIfExists;
         boolean paranoidChecks, reuseLogs;
+        boolean pipelinedWrite, allowConcurrentMemtableWrite;
         int maxFileSize, maxOpenFiles, writeBufferSize;
+        int maxWriteBufferNumber, minWriteBufferNumberToMerge;
         int blockCacheSize, blockSize, blockRestartInterval;
+        boolean partitionedIndex;
+        int metadataBlockSize;
+        boolean dataBlockHashIndex;
+        boolean allowMmapReads;
+        long maxMmapBytes;
         DB.CompressionType compression;
+        DB.MemTableType memTable;
+        DB.BlockCacheType blockCache;
+        long compressedCacheSize;
+        DB.FlushPolicy walFlushPolicy;
+        int walBytesPerFlush, walFlushMillis;
+        int recycleLogFileNum;
+        boolean preallocateLogs;
+        int recoveryThreads;
+        int maxBackgroundCompactions;
+        int maxSubcompactions;
+        DB.CompactionStyle compactionStyle;
+        int universalSizeRatio, universalMaxSizeAmplificationPercent;
+        long fifoMaxTableFilesSize, ttl;
+        int delayedWriteRate;
+        long softPendingCompactionBytesLimit, hardPendingCompactionBytesLimit;
         DB.FilterPolicy filterPolicy;
+        DB.CompactionFilter compactionFilter;
         DB.Comparator comparator;
         Env env;
     }
@@ -40,6 +63,12 @@ public class Factory implements lib.leveldb.Factory {
         @Override public Builder paranoidChecks(boolean b) {
             o.paranoidChecks = b; return this;
         }
+        @Override public Builder pipelinedWrite(boolean b) {
+            o.pipelinedWrite = b; return this;
+        }
+        @Override public Builder allowConcurrentMemtableWrite(boolean b) {
+            o.allowConcurrentMemtableWrite = b; return this;
+        }
         @Override public Builder maxFileSize(int i) {
             o.maxFileSize = i; return this;
         }
@@ -52,6 +81,14 @@ public class Factory implements lib.leveldb.Factory {
             o.writeBufferSize = i; return this;
         }
         @Override
+        public Builder maxWriteBufferNumber(int i) {
+            o.maxWriteBufferNumber = i; return this;
+        }
+        @Override
+        public Builder minWriteBufferNumberToMerge(int i) {
+            o.minWriteBufferNumberToMerge = i; return this;
+        }
+        @Override
         public Builder blockCacheSize(int i) {
             o.blockCacheSize = i; return this;
         }
@@ -64,6 +101,26 @@ public class Factory implements lib.leveldb.Factory {
             o.blockRestartInterval = i; return this;
         }
         @Override
+        public Builder partitionedIndex(boolean b) {
+            o.partitionedIndex = b; return this;
+        }
+        @Override
+        public Builder metadataBlockSize(int i) {
+            o.metadataBlockSize = i; return this;
+        }
+        @Override
+        public Builder dataBlockHashIndex(boolean b) {
+            o.dataBlockHashIndex = b; return this;
+        }
+        @Override
+        public Builder allowMmapReads(boolean b) {
+            o.allowMmapReads = b; return this;
+        }
+        @Override
+        public Builder maxMmapBytes(long l) {
+            o.maxMmapBytes = l; return this;
+        }
+        @Override
         public Builder comparator(DB.Comparator c) {
             o.comparator = c; return this;
         }
@@ -80,6 +137,106 @@ public class Factory implements lib.leveldb.Factory {
             o.filterPolicy = f; return this;
         }
 
+        @Override
+        public Builder compactionFilter(DB.CompactionFilter f) {
+            o.compactionFilter = f; return this;
+        }
+
+        @Override
+        public Builder memTable(DB.MemTableType t) {
+            o.memTable = t; return this;
+        }
+
+        @Override
+        public Builder blockCache(DB.BlockCacheType t) {
+            o.blockCache = t; return this;
+        }
+
+        @Override
+        public Builder compressedCacheSize(long l) {
+            o.compressedCacheSize = l; return this;
+        }
+
+        @Override
+        public Builder walFlushPolicy(DB.FlushPolicy p) {
+            o.walFlushPolicy = p; return this;
+        }
+
+        @Override
+        public Builder walBytesPerFlush(int i) {
+            o.walBytesPerFlush = i; return this;
+        }
+
+        @Override
+        public Builder walFlushMillis(int i) {
+            o.walFlushMillis = i; return this;
+        }
+
+        @Override
+        public Builder recycleLogFileNum(int i) {
+            o.recycleLogFileNum = i; return this;
+        }
+
+        @Override
+        public Builder preallocateLogs(boolean b) {
+            o.preallocateLogs = b; return this;
+        }
+
+        @Override
+        public Builder recoveryThreads(int i) {
+            o.recoveryThreads = i; return this;
+        }
+
+        @Override
+        public Builder maxBackgroundCompactions(int i) {
+            o.maxBackgroundCompactions = i; return this;
+        }
+
+        @Override
+        public Builder maxSubcompactions(int i) {
+            o.maxSubcompactions = i; return this;
+        }
+
+        @Override
+        public Builder compactionStyle(DB.CompactionStyle s) {
+            o.compactionStyle = s; return this;
+        }
+
+        @Override
+        public Builder universalSizeRatio(int i) {
+            o.universalSizeRatio = i; return this;
+        }
+
+        @Override
+        public Builder universalMaxSizeAmplificationPercent(int i) {
+            o.universalMaxSizeAmplificationPercent = i; return this;
+        }
+
+        @Override
+        public Builder fifoMaxTableFilesSize(long l) {
+            o.fifoMaxTableFilesSize = l; return this;
+        }
+
+        @Override
+        public Builder ttl(long seconds) {
+            o.ttl = seconds; return this;
+        }
+
+        @Override
+        public Builder delayedWriteRate(int i) {
+            o.delayedWriteRate = i; return this;
+        }
+
+        @Override
+        public Builder softPendingCompactionBytesLimit(long l) {
+            o.softPendingCompactionBytesLimit = l; return this;
+        }
+
+        @Override
+        public Builder hardPendingCompactionBytesLimit(long l) {
+            o.hardPendingCompactionBytesLimit = l; return this;
+        }
+
         @Override
         public DB open(Path path, OpenOption... options) {
             for (var open:options) {
@@ -119,6 +276,10 @@ public class Factory implements lib.leveldb.Factory {
         return value != 0 ? value : defaultValue;
     }
 
+    static long nonZero(long value, long defaultValue) {
+        return value != 0 ? value : defaultValue;
+    }
+
     static int clipToRange(int value, int minvalue, int maxvalue) {
         return (value > maxvalue) ? maxvalue
              : (value < minvalue) ? minvalue
@@ -133,19 +294,50 @@ public class Factory implements lib.leveldb.Factory {
 
         db.internalComparator = internalComparator(src.comparator);
         db.filterPolicy = src.filterPolicy;
+        db.compactionFilter = src.compactionFilter;
         db.compression = src.compression.code;
+        db.memTableType = (src.memTable != null) ? src.memTable : DB.MemTableType.SkipList;
 
         db.createIfMissing = src.createIfMissing;
         db.errorIfExists = src.errorIfExists;
         db.reuseLogs = src.reuseLogs;
         db.paranoidChecks = src.paranoidChecks;
+        db.pipelinedWrite = src.pipelinedWrite;
+        db.allowConcurrentMemtableWrite = src.allowConcurrentMemtableWrite;
 
         int maxOpenFiles = clipToRange(src.maxOpenFiles, 64 + kNumNonTableCacheFiles, 50000 );
         int maxFileSize = clipToRange(src.maxFileSize, 1 << 20, 1 << 30 );
 
         db.writeBufferSize = clipToRange(src.writeBufferSize, 64 << 10, 1 << 30 );
+        db.maxWriteBufferNumber = clipToRange(nonZero(src.maxWriteBufferNumber, 2 ), 2, 64 );
+        db.minWriteBufferNumberToMerge = clipToRange(src.minWriteBufferNumberToMerge, 1, db.maxWriteBufferNumber - 1 );
         db.blockSize = clipToRange(src.blockSize, 1 << 10, 4 << 20 );
         db.blockRestartInterval = nonZero(src.blockRestartInterval, 16 );
+        db.indexPartitionSize = src.partitionedIndex
+            ? clipToRange(nonZero(src.metadataBlockSize, 4 << 10 ), 1 << 10, 4 << 20 ) : 0;
+        db.dataBlockHashIndex = src.dataBlockHashIndex;
+
+        db.walFlushPolicy = (src.walFlushPolicy != null) ? src.walFlushPolicy : DB.FlushPolicy.EveryGroup;
+        db.walBytesPerFlush = clipToRange(nonZero(src.walBytesPerFlush, 256 << 10 ), LogFormat.kBlockSize, 64 << 20 );
+        db.walFlushMillis = nonZero(src.walFlushMillis, 100 );
+        db.recycleLogFileNum = clipToRange(src.recycleLogFileNum, 0, 64 );
+        db.preallocateLogs = src.preallocateLogs;
+        db.recoveryThreads = clipToRange(
+            nonZero(src.recoveryThreads, Math.min(4, Runtime.getRuntime().availableProcessors()) ), 1, 64 );
+        db.maxBackgroundCompactions = clipToRange(src.maxBackgroundCompactions, 1, 64 );
+        db.maxSubcompactions = clipToRange(src.maxSubcompactions, 1, 64 );
+        // Subcompactions share the LOW pool; one compaction at a time may run all its shards at once.
+        db.env.setBackgroundThreads(db.maxBackgroundCompactions + db.maxSubcompactions - 1, Env.Priority.LOW);
+        db.env.setBackgroundThreads(1, Env.Priority.HIGH);
+
+        db.writeController = new WriteController(
+            clipToRange(nonZero(src.delayedWriteRate, 16 << 20 ), 16 << 10, Integer.MAX_VALUE ),
+            nonZero(src.softPendingCompactionBytesLimit, 64L << 30 ),
+            nonZero(src.hardPendingCompactionBytesLimit, 256L << 30 ) );
+        if (src.compactionStyle == DB.CompactionStyle.Fifo) {
+            // Level-0 holds every table, and its file count is no sign of compaction debt.
+            db.writeController.level0Triggers(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        }
 
         try {
             db.infoLog = infoLog(db.dbname);
@@ -156,25 +348,48 @@ public class Factory implements lib.leveldb.Factory {
 
         // Reserve ten files or so for other uses and give the rest to TableCache.
         int tableCacheSize = maxOpenFiles - kNumNonTableCacheFiles;
-        int blockCacheSize = nonZero(src.blockCacheSize, 8 * 1024 * 1024 ) / src.blockSize;
+        int blockCacheSize = nonZero(src.blockCacheSize, 8 * 1024 * 1024 ); // in bytes
 
         db.tableCache =
             new TableCache(db.dbname,db.env)
                 .comparator(db.internalComparator)
                 .filterPolicy(db.filterPolicy)
                 .verifyChecksums(src.paranoidChecks)
-                .cache(blockCacheSize,tableCacheSize)
+                .cache(blockCache(src.blockCache,blockCacheSize,src.compressedCacheSize),tableCacheSize)
+                .mmap(src.allowMmapReads ? nonZero(src.maxMmapBytes, 4L << 30 ) : 0 )
                 .open();
 
         db.versions =
             new VersionSet(db.dbname,db.env)
+                .owner(db)
                 .comparator(db.internalComparator)
                 .paranoidChecks(src.paranoidChecks)
                 .files(db.reuseLogs,maxFileSize)
                 .cache(db.tableCache)
+                .picker(compactionPicker(src))
                 .open();
     }
 
+    static CompactionPicker compactionPicker(Options src) {
+        if (src.compactionStyle == DB.CompactionStyle.Universal) {
+            return new UniversalCompactionPicker(
+                clipToRange(nonZero(src.universalSizeRatio, 1 ), 0, 100 ),
+                clipToRange(nonZero(src.universalMaxSizeAmplificationPercent, 200 ), 10, 1000 ));
+        }
+        if (src.compactionStyle == DB.CompactionStyle.Fifo) {
+            return new FifoCompactionPicker(
+                nonZero(src.fifoMaxTableFilesSize, 1L << 30 ),
+                Math.max(src.ttl, 0 ));
+        }
+        return CompactionPicker.leveled;
+    }
+
+    static BlockCache blockCache(DB.BlockCacheType type, long capacity, long compressedCapacity) {
+        var cache = (type == DB.BlockCacheType.TinyLFU) ? new TinyLfuBlockCache(capacity)
+                                                        : new BlockCache(capacity);
+        return (compressedCapacity > 0) ? cache.secondary(new CompressedBlockCache(compressedCapacity)) : cache;
+    }
+
     static InternalKeyComparator internalComparator(DB.Comparator c) {
         var icmp = (c instanceof KeyComparator) ? (KeyComparator)c
                  : (c != null) ?  keyComparator(c)
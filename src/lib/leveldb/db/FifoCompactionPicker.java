@@ -0,0 +1,96 @@
+package lib.leveldb.db;
+
+import java.util.ArrayList;
+
+import lib.leveldb.Slice;
+import lib.leveldb.db.Versions.Compaction;
+import static lib.leveldb.db.DbFormat.*;
+
+/**
+ * FIFO compaction: tables are never merged, only dropped, oldest first.
+ * <p>
+ * Flushed memtables stay in level-0. Once the tables of level-0 add up to
+ * more than maxTableFilesSize bytes, the oldest are deleted until the rest
+ * fit; tables written more than ttl seconds ago are deleted as well. Each
+ * byte is written once, by the flush. This suits data that is only read
+ * back within a retention window, like a metrics buffer; an overwrite or a
+ * deletion does not remove an older value before its table is dropped.
+ * <p>
+ * Expired tables are found when a compaction is next looked for, that is
+ * after a flush, or by a manual compaction, which merges nothing either.
+ * Tables left in the levels below by another compaction style are kept.
+ */
+class FifoCompactionPicker implements CompactionPicker {
+
+    final long maxTableFilesSize;
+    final long ttl; // seconds; 0 for no limit
+
+    FifoCompactionPicker(long maxTableFilesSize, long ttl) {
+        this.maxTableFilesSize = maxTableFilesSize;
+        this.ttl = ttl;
+    }
+
+    @Override
+    public Compaction pickCompaction(VersionSet vset) {
+        var current = vset.current();
+        var files = new ArrayList<FileMetaData>(current.files[0]);
+        files.sort(Version.newestFirst.reversed());
+
+        var total = vset.totalFileSize(files);
+        var now = (ttl > 0) ? vset.env.currentTime() : 0;
+        var c = new Compaction(0, vset.maxFileSizeForLevel(0));
+        for (var f : files) {
+            var expired = ttl > 0 && f.creationTime > 0 && f.creationTime + ttl <= now;
+            if (total <= maxTableFilesSize && !expired) {
+                break;
+            }
+            if (f.beingCompacted) {
+                return null; // being dropped already
+            }
+            c.inputs[0].add(f);
+            total -= f.fileSize;
+        }
+        if (c.inputs[0].isEmpty()) {
+            return null;
+        }
+        c.deletion = true;
+        c.inputVersion = current;
+        c.inputVersion.ref();
+        var r = Versions.getRange(c.inputs[0], vset.icmp);
+        c.smallest = r[Versions.small];
+        c.largest = r[Versions.large];
+
+        if (vset.conflictsWithCompactions(c)) {
+            c.close();
+            return null;
+        }
+        return c;
+    }
+
+    @Override
+    public Compaction compactRange(VersionSet vset, int level, InternalKey begin, InternalKey end) {
+        // Merging level-0 into level-1 would hide the tables from the size and age limits.
+        return (level == 0) ? pickCompaction(vset) : null;
+    }
+
+    @Override
+    public int levelForMemTableOutput(Version v, Slice smallestUserKey, Slice largestUserKey) {
+        return 0;
+    }
+
+    @Override
+    public void finalize(VersionSet vset, Version v) {
+        // Nothing is ever merged, so nothing is owed to compaction.
+        for (var level = 0; level < kNumLevels; level++) {
+            v.levelScore[level] = 0;
+        }
+        v.compactionScore = 0;
+        v.compactionNeededBytes = 0;
+    }
+
+    @Override
+    public boolean recordsCreationTime() {
+        return ttl > 0;
+    }
+
+}
@@ -16,13 +16,15 @@ import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.PosixFilePermissions;
 
-import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import lib.io.SeekableInputStream;
-import lib.io.RandomAccessInputStream;
+import lib.io.PositionalReader;
+import lib.io.FileChannelReader;
 
 import lib.leveldb.Env;
 
@@ -34,8 +36,8 @@ class FileEnv implements Env {
     }
 
     @Override
-    public SeekableInputStream newRandomAccessFile(Path fname) throws IOException {
-        return new RandomAccessInputStream(fname);
+    public PositionalReader newRandomAccessFile(Path fname) throws IOException {
+        return new FileChannelReader(fname);
     }
 
     @Override
@@ -115,7 +117,8 @@ class FileEnv implements Env {
 
     @Override
     public void unlockFile(FileLock lock) throws IOException {
-        try (lock; var c = lock.channel()) {
+        // release before the channel closes; a lock on a closed channel cannot be released
+        try (var c = lock.channel()) {
             lock.release();
         }
     }
@@ -145,20 +148,58 @@ class FileEnv implements Env {
         return executorService().submit(task);
     }
 
-    volatile static ExecutorService executor;
+    @Override
+    public Future<?> schedule(Runnable task, Priority pri) {
+        return executorService(pri).submit(task);
+    }
+
+    @Override
+    public void setBackgroundThreads(int number, Priority pri) {
+        var e = executorService(pri);
+        synchronized (e) {
+            if (number > e.getMaximumPoolSize()) {
+                e.setMaximumPoolSize(number);
+                e.setCorePoolSize(number);
+            }
+        }
+    }
+
+    volatile static ThreadPoolExecutor executor;     // Priority.LOW
+    volatile static ThreadPoolExecutor highExecutor; // Priority.HIGH
 
     public static ExecutorService executorService() {
-        var e = executor;
-        if (e == null) {
-            e = executor = Executors.newSingleThreadExecutor(threadFactory());
+        return executorService(Priority.LOW);
+    }
+
+    static synchronized ThreadPoolExecutor newExecutor(Priority pri) {
+        if (pri == Priority.HIGH) {
+            if (highExecutor == null) highExecutor = singleThreadExecutor("leveldb-flush");
+            return highExecutor;
+        } else {
+            if (executor == null) executor = singleThreadExecutor("leveldb-bg");
+            return executor;
         }
-        return e;
+    }
+
+    static ThreadPoolExecutor executorService(Priority pri) {
+        var e = (pri == Priority.HIGH) ? highExecutor : executor;
+        return (e != null) ? e : newExecutor(pri);
+    }
+
+    // Grown by setBackgroundThreads(); tasks beyond the pool size wait in the queue.
+    static ThreadPoolExecutor singleThreadExecutor(String name) {
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                      new LinkedBlockingQueue<Runnable>(), threadFactory(name));
     }
 
     public static ThreadFactory threadFactory() {
+        return threadFactory("leveldb-bg");
+    }
+
+    public static ThreadFactory threadFactory(String name) {
         return (r) -> {
             var t = new Thread(r);
-            t.setName("leveldb-bg");
+            t.setName(name);
             t.setDaemon(true);
             t.setUncaughtExceptionHandler(
                 (f,e) -> { warn(f.toString()+'('+f.getId()+") "+e.toString()); }
@@ -1,11 +1,15 @@
 package lib.leveldb.db;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 class FileMetaData {
     int level;
     int refs = 0;
-    int allowedSeeks = (1 << 30);   // Seeks allowed until compaction
+    final AtomicInteger allowedSeeks = new AtomicInteger(1 << 30); // Seeks allowed until compaction
     long number = 0;
     long fileSize = 0;              // File size in bytes
     DbFormat.InternalKey smallest;  // Smallest internal key served by table
     DbFormat.InternalKey largest;   // Largest internal key served by table
+    boolean beingCompacted;         // An input of a compaction in progress; guarded by mutex_
+    long creationTime;              // Seconds since the Epoch when the table was written; 0 if unknown
 }
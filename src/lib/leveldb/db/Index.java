@@ -2,6 +2,7 @@ package lib.leveldb.db;
 
 import java.io.IOException;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -16,6 +17,9 @@ import static lib.leveldb.db.TableFile.*;
 
 class Index {
 
+    // metaindex key of a partitioned index, followed by the policy name if the partitions have filters
+    static final String kPartitionedIndex = "partitionedindex.";
+
     TableFile table;
 
     int fileLength;
@@ -23,9 +27,14 @@ class Index {
     int metaindexOffset, metaindexSize;
     int indexOffset, indexSize;
 
-    InternalKey[] dataKey; // high key in data block
+    IndexKeys dataKey; // high key in data block
     int[] dataOffset, dataSize;
 
+    // In a partitioned index the entries above locate index partitions,
+    // and these locate each partition's filter, if any.
+    boolean partitioned;
+    int[] filterOffset, filterSize;
+
     Filter filter;
 
     Index(TableFile table) {
@@ -39,11 +48,12 @@ class Index {
         }
         // Read the footer block
         readFooter();
+        // Read the meta blocks, which say how the index is laid out
+        readMeta();
         // Read the index block
         readIndex();
         // We've successfully read the footer and the index block:
         // we're ready to serve requests.
-        readMeta();
 
         return this;
     }
@@ -72,16 +82,31 @@ class Index {
     void readIndex() {
         var indexData = table.readContents(indexOffset,indexSize);
         var numRestarts = Block.restartCount(indexData);
-        dataKey = new InternalKey[numRestarts];
+        // The keys are copied out back to back, leaving the handles behind.
+        var keys = new byte[indexData.length];
+        var keyStart = new int[numRestarts + 1];
+        var keyEnd = 0;
         dataOffset = new int[numRestarts];
         dataSize = new int[numRestarts];
+        if (partitioned && table.filterPolicy != null) {
+            filterOffset = new int[numRestarts];
+            filterSize = new int[numRestarts];
+        }
         var i = 0;
         for (var e : spans(indexData)) {
-            dataKey[i] = parseInternalKey(indexData.data,e.keyOffset,e.keyLength);
+            keyStart[i] = keyEnd;
+            System.arraycopy(indexData.data,e.keyOffset,keys,keyEnd,e.keyLength);
+            keyEnd += e.keyLength;
             dataOffset[i] = e.dataOffset;
             dataSize[i] = e.dataSize;
+            if (filterOffset != null) {
+                filterOffset[i] = e.filterOffset;
+                filterSize[i] = e.filterSize;
+            }
             i++;
         }
+        keyStart[numRestarts] = keyEnd;
+        dataKey = new IndexKeys(Arrays.copyOf(keys,keyEnd),keyStart,table.icmp.comparator());
     }
 
     void readMeta() {
@@ -96,10 +121,15 @@ class Index {
                 var filterData = table.readContents(e.dataOffset,e.dataSize);
                 filter = Filter.blockReader(policy,filterData);
             }
+            else if (startsWith(partitionedIndex, meta.data,e.keyOffset,e.keyLength )) {
+                partitioned = true;
+            }
             // ignore other blocks; unsupported
         }
     }
 
+    static final byte[] partitionedIndex = kPartitionedIndex.getBytes();
+
     static boolean startsWith(byte[] prefix, byte[] b, int off, int len) {
         if (prefix.length > len) return false;
         for (int i = 0, j = off; i < prefix.length; i++, j++) {
@@ -113,6 +143,7 @@ class Index {
     static class Span {
         int keyOffset, keyLength;
         int dataOffset, dataSize;
+        int filterOffset, filterSize; // in a top-level index with filters; else 0
     }
 
     static final int sizeof_uint32_t = 4;
@@ -140,12 +171,19 @@ class Index {
                 d.position(offset);
                 var z = d.getVarint32(); // sharedBytes
                 item.keyLength = d.getVarint32(); // unsharedBytes
-                d.getVarint32(); // valueLength
+                var valueLength = d.getVarint32();
                 assert (z == 0);
                 item.keyOffset = d.position();
                 d.skip(item.keyLength);
+                var valueEnd = d.position() + valueLength;
                 item.dataOffset = d.getVarint32();
                 item.dataSize = d.getVarint32();
+                if (d.position() < valueEnd) {
+                    item.filterOffset = d.getVarint32();
+                    item.filterSize = d.getVarint32();
+                } else {
+                    item.filterOffset = item.filterSize = 0;
+                }
                 return item;
             }
             Span item = new Span();
@@ -0,0 +1,66 @@
+package lib.leveldb.db;
+
+import lib.leveldb.DB;
+import static lib.leveldb.db.DbFormat.*;
+import static lib.leveldb.io.ByteDecoder.*;
+
+/**
+ * The keys of a table's index, packed back to back into one array.
+ * <p>
+ * Keys are compared in place, the way InternalKeyComparator would compare them,
+ * so an open table holds two arrays instead of an InternalKey and a Slice per data block.
+ */
+class IndexKeys {
+
+    final byte[] keys;   // encoded internal keys
+    final int[] start;   // key i is keys[start[i] .. start[i+1])
+    final DB.Comparator ucmp;
+
+    IndexKeys(byte[] keys, int[] start, DB.Comparator ucmp) {
+        this.keys = keys;
+        this.start = start;
+        this.ucmp = ucmp;
+    }
+
+    int size() {
+        return start.length - 1;
+    }
+
+    /**
+     * Compare key i with k: by increasing user key, then by decreasing sequence and type.
+     */
+    int compare(int i, InternalKey k) {
+        var off = start[i];
+        var len = start[i+1] - off - sizeof_SequenceAndType;
+        var u = k.userKey;
+        var r = ucmp.compare(keys,off,len,u.data,u.offset,u.length);
+        if (r != 0) {
+            return r;
+        }
+        var sequence_type = decodeSequenceAndType(decodeFixed64(keys,off+len));
+        return sequence_type > k.sequence_type ? -1
+             : sequence_type < k.sequence_type ? 1
+             : 0;
+    }
+
+    /**
+     * Return the first key that is >= k, or -1 if all keys are less.
+     */
+    int ceiling(InternalKey k) {
+        int high = size(), low = -1, mid;
+        while (high - low > 1) {
+            mid = (low + high) >>> 1;
+            if (compare(mid,k) < 0) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return high < size() ? high : -1;
+    }
+
+    // Materialize key i; not for use on the search path.
+    InternalKey get(int i) {
+        return parseInternalKey(keys,start[i],start[i+1]-start[i]);
+    }
+}
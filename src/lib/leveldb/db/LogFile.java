@@ -0,0 +1,102 @@
+package lib.leveldb.db;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static lib.leveldb.db.LogFormat.kBlockSize;
+
+/**
+ * A buffered log file (the WritableFile behind a log::Writer).
+ *
+ * Records are copied into a direct buffer of whole kBlockSize blocks,
+ * and only reach the channel when the buffer fills or on flush().
+ * Buffer boundaries are kept on block boundaries of the file,
+ * so every full write covers whole log blocks.
+ *
+ * Not thread-safe; the log has a single writer at a time.
+ */
+class LogFile extends OutputStream {
+
+    final FileChannel channel;
+    final ByteBuffer buf;
+    long lastFlush = System.nanoTime();
+
+    LogFile(FileChannel channel, int blocks) throws IOException {
+        this.channel = channel;
+        buf = ByteBuffer.allocateDirect(Math.max(blocks,1) * kBlockSize);
+        // When appending, let the first write end on a block boundary.
+        var partial = (int)(channel.position() % kBlockSize);
+        buf.limit(buf.capacity() - partial);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buf.hasRemaining()) {
+            flush();
+        }
+        buf.put((byte)b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buf.hasRemaining()) {
+                flush();
+            }
+            var n = Math.min(len, buf.remaining());
+            buf.put(b,off,n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Number of bytes buffered but not yet written to the channel.
+     */
+    int buffered() {
+        return buf.position();
+    }
+
+    /**
+     * Nanoseconds since the buffer was last written out.
+     */
+    long sinceFlush() {
+        return System.nanoTime() - lastFlush;
+    }
+
+    /**
+     * Write any buffered bytes to the channel.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (buf.position() > 0) {
+            var pos = channel.position() + buf.position();
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            buf.clear();
+            buf.limit(buf.capacity() - (int)(pos % kBlockSize));
+        }
+        lastFlush = System.nanoTime();
+    }
+
+    /**
+     * Write any buffered bytes and force them to the device.
+     */
+    void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            flush();
+        }
+    }
+
+}
@@ -23,14 +23,22 @@ class LogFormat {
     static final int kMiddleType = 3;
     static final int kLastType = 4;
 
+    // For recycled log files
+    static final int kRecyclableFullType = 5;
+    static final int kRecyclableFirstType = 6;
+    static final int kRecyclableMiddleType = 7;
+    static final int kRecyclableLastType = 8;
 
-    static final int kMaxRecordType = kLastType;
+    static final int kMaxRecordType = kRecyclableLastType;
 
     static final int kBlockSize = 32768;
 
     // Header is checksum (4 bytes), length (2 bytes), type (1 byte).
     static final int kHeaderSize = 4 + 2 + 1;
 
+    // Recyclable header is checksum (4 bytes), length (2 bytes), type (1 byte), log number (4 bytes).
+    static final int kRecyclableHeaderSize = 4 + 2 + 1 + 4;
+
     // default Exception handler for Record{Reader,Writer}'s
     static Consumer<Throwable> notify = (t) -> {
         throw (t instanceof RuntimeException) ? (RuntimeException)t
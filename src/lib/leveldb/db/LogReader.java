@@ -33,6 +33,11 @@ class LogReader implements Iterable<Slice>, Iterator<Slice>, Closeable {
     LogReader verifyChecksum(boolean check) {
         checksum = check ? new CRC32C() : null; return this;
     }
+    // Expect recyclable records to carry this log number;
+    // a record with any other number was left over from the file's previous use.
+    LogReader logNumber(long n) {
+        logNumber = (int) n; return this;
+    }
 
     @Override
     public void close() {
@@ -49,28 +54,33 @@ class LogReader implements Iterable<Slice>, Iterator<Slice>, Closeable {
     }
 
     List<byte[]> list = new ArrayList<>();
+    boolean ready; // a record has been read into list
     int span = 0;
 
-    byte[] header = new byte[kHeaderSize];
+    byte[] header = new byte[kRecyclableHeaderSize];
     int crc = 0;
     int length = 0;
     int type = kFullType;
 
     int offset = 0;
+    int end = 0; // offset just past the last record read
     int remaining = kBlockSize;
 
     Checksum checksum = new CRC32C();
+    int logNumber;
+    boolean eof;
+    boolean recycled; // seen a recyclable record; a bad record then marks the end of the log
 
     @Override
     public boolean hasNext() {
-        if (!list.isEmpty()) {
+        if (ready) {
             return true;
         }
-        if (in == null) {
+        if (in == null || eof) {
             return false;
         }
         try {
-            return nextSpan();
+            return ready = nextSpan();
         }
         catch (Exception e) {
             notify.accept(e);
@@ -83,6 +93,7 @@ class LogReader implements Iterable<Slice>, Iterator<Slice>, Closeable {
         if (hasNext()) {
             var e = new Slice(collect(list,span));
             list.clear();
+            ready = false;
             return e;
         }
         throw new NoSuchElementException();
@@ -90,7 +101,7 @@ class LogReader implements Iterable<Slice>, Iterator<Slice>, Closeable {
 
     static byte[] collect(List<byte[]> srcs, int length) {
         if (srcs.size() < 2) {
-            return srcs.get(0);
+            return srcs.isEmpty() ? new byte[0] : srcs.get(0);
         }
         var dest = new byte[length];
         var destPos = 0;
@@ -114,13 +125,15 @@ class LogReader implements Iterable<Slice>, Iterator<Slice>, Closeable {
         span = 0;
         while (readBlock()) {
             switch (type) {
-                case kFullType: return true;
+                case kFullType: end = offset; return true;
                 case kFirstType: continue;
                 case kMiddleType: continue;
-                case kLastType: return true;
+                case kLastType: end = offset; return true;
                 default: throw status(Corruption,"unknown record type "+type);
             }
         }
+        list.clear(); // drop the fragments of a record cut short by the end of the log
+        eof = true;
         return false;
     }
 
@@ -128,33 +141,67 @@ class LogReader implements Iterable<Slice>, Iterator<Slice>, Closeable {
         if (remaining < kHeaderSize) {
             if (remaining > 0) {
                 in.skip(remaining);
+                offset += remaining;
             }
             remaining = kBlockSize;
         }
 
-        if (!read(header)) return false;
+        if (!read(header,0,kHeaderSize)) return false;
 
         crc = decodeFixed32(header,0);
         length = decodeFixed16(header,4);
         type = decodeFixed8(header,6);
 
+        if (type == kZeroType && length == 0) {
+            if (remaining < kRecyclableHeaderSize - kHeaderSize) {
+                // The trailer of a block written with recyclable headers
+                in.skip(remaining);
+                offset += remaining;
+                remaining = 0;
+                return readBlock();
+            }
+            // The preallocated, never written end of the log
+            return false;
+        }
+
+        var recyclable = (type >= kRecyclableFullType && type <= kRecyclableLastType);
+        if (recyclable) {
+            if (!read(header,kHeaderSize,kRecyclableHeaderSize-kHeaderSize)) return false;
+            recycled = true;
+        } else if (type > kLastType) {
+            return bad("unknown record type "+type);
+        }
+        if (length > remaining) {
+            return bad("bad record length");
+        }
+
         byte[] data;
         if (length > 0) {
             data = new byte[length];
-            if (!read(data)) return false;
+            if (!read(data,0,length)) return false;
         } else {
             data = new byte[0];
         }
         if (checksum != null) {
             checksum.reset();
             checksum.update(type);
+            if (recyclable) {
+                checksum.update(header,kHeaderSize,kRecyclableHeaderSize-kHeaderSize);
+            }
             checksum.update(data,0,data.length);
             var expected_crc = unmask(crc);
             var actual_crc = (int) checksum.getValue();
             if (expected_crc != actual_crc) {
-                throw status(Corruption,"checksum mismatch");
+                return bad("checksum mismatch");
             }
         }
+        if (recyclable) {
+            if (decodeFixed32(header,kHeaderSize) != logNumber) {
+                // A record from before the file was recycled
+                return false;
+            }
+            type -= (kRecyclableFullType - kFullType);
+        }
         if (data.length > 0) {
             list.add(data);
             span += data.length;
@@ -162,12 +209,19 @@ class LogReader implements Iterable<Slice>, Iterator<Slice>, Closeable {
         return true;
     }
 
-    boolean read(byte[] b) throws IOException {
-        var len = in.read(b);
-        if (len < 0) return false;
-        if (len != b.length) throw status(Corruption,"short read");
+    // In a recycled log, whatever follows the last record written
+    // is stale, so a bad record there is the end of the log rather than corruption.
+    boolean bad(String msg) {
+        if (recycled) return false;
+        throw status(Corruption,msg);
+    }
+
+    boolean read(byte[] b, int off, int n) throws IOException {
+        var len = in.readNBytes(b,off,n);
+        if (len == 0) return false;
         remaining -= len;
         offset += len;
+        if (len != n) return bad("short read");
         return true;
     }
 
@@ -22,12 +22,26 @@ class LogWriter implements Closeable  {
     LogWriter(OutputStream out) {
         this.out = out;
     }
+    // Create a writer that will append data to "*dest", which has initial length "dest_length".
+    LogWriter(OutputStream out, long destLength) {
+        this.out = out;
+        blockOffset = (int)(destLength % kBlockSize);
+    }
     LogWriter onError(Consumer<Throwable> exit) {
         notify = exit; return this;
     }
     LogWriter verifyChecksum(boolean check) {
         checksum = check ? new CRC32C() : null; return this;
     }
+    LogWriter flushRecords(boolean flush) {
+        flushRecords = flush; return this;
+    }
+    // Write recyclable records, which carry the log number,
+    // so that stale records left in a reused file can be told apart.
+    LogWriter recycle(long logNumber) {
+        this.logNumber = (int) logNumber;
+        headerSize = kRecyclableHeaderSize; return this;
+    }
 
     @Override
     public void close() {
@@ -40,13 +54,20 @@ class LogWriter implements Closeable  {
     }
 
     Checksum checksum = new CRC32C();
+    boolean flushRecords = true; // flush out after each record; otherwise the owner flushes
 
-    final static byte[] filler = new byte[kHeaderSize];
+    final static byte[] filler = new byte[kRecyclableHeaderSize];
+    final byte[] header = new byte[kRecyclableHeaderSize];
+    int headerSize = kHeaderSize;
+    int logNumber;
     int blockOffset = 0;
 
     void addRecord(Slice slice) {
         try {
             appendData(slice);
+            if (flushRecords) {
+                out.flush();
+            }
         }
         catch (Exception e) { notify.accept(e); }
     }
@@ -64,7 +85,7 @@ class LogWriter implements Closeable  {
         do {
             var leftover = kBlockSize - blockOffset;
             assert (leftover >= 0);
-            if (leftover < kHeaderSize) {
+            if (leftover < headerSize) {
                 // Switch to a new block
                 if (leftover > 0) {
                     // Fill the trailer
@@ -73,22 +94,23 @@ class LogWriter implements Closeable  {
                 blockOffset = 0;
             }
 
-            // Invariant: we never leave < kHeaderSize bytes in a block.
-            assert (kBlockSize - blockOffset - kHeaderSize >= 0);
+            // Invariant: we never leave < headerSize bytes in a block.
+            assert (kBlockSize - blockOffset - headerSize >= 0);
 
-            var avail = kBlockSize - blockOffset - kHeaderSize;
+            var avail = kBlockSize - blockOffset - headerSize;
             var fragmentLength = (left < avail) ? left : avail;
 
             int type;
             var end = (left == fragmentLength);
+            var recycle = (headerSize == kRecyclableHeaderSize);
             if (begin && end) {
-                type = kFullType;
+                type = recycle ? kRecyclableFullType : kFullType;
             } else if (begin) {
-                type = kFirstType;
+                type = recycle ? kRecyclableFirstType : kFirstType;
             } else if (end) {
-                type = kLastType;
+                type = recycle ? kRecyclableLastType : kLastType;
             } else {
-                type = kMiddleType;
+                type = recycle ? kRecyclableMiddleType : kMiddleType;
             }
 
             emitPhysicalRecord(type, buf, ptr, fragmentLength);
@@ -101,13 +123,19 @@ class LogWriter implements Closeable  {
 
     void emitPhysicalRecord(int t, byte[] buf, int ptr, int n) throws IOException {
         assert (n <= 0xffff);  // Must fit in two bytes
-        assert (blockOffset + kHeaderSize + n <= kBlockSize);
+        assert (blockOffset + headerSize + n <= kBlockSize);
+
+        // Format the log number of a recyclable record
+        if (headerSize == kRecyclableHeaderSize) {
+            encodeFixed32(logNumber,header,7);
+        }
 
-        // Compute the crc of the record type and the payload.
+        // Compute the crc of the record type, the log number and the payload.
         int crc;
         if (checksum != null) {
             checksum.reset();
             checksum.update(t);
+            checksum.update(header,7,headerSize-7);
             checksum.update(buf,ptr,n);
             crc = (int) checksum.getValue();
         } else {
@@ -115,17 +143,15 @@ class LogWriter implements Closeable  {
         }
 
         // Format the header
-        var header = new byte[kHeaderSize];
         encodeFixed32(mask(crc),header,0); // Adjust for storage
         encodeFixed16(n,header,4);
         encodeFixed8(t,header,6);
 
         // Write the header and the payload
-        out.write(header);
+        out.write(header,0,headerSize);
         out.write(buf,ptr,n);
-        out.flush();
 
-        blockOffset += kHeaderSize + n;
+        blockOffset += headerSize + n;
     }
 
 }
\ No newline at end of file
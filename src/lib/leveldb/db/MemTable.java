@@ -5,36 +5,40 @@ import java.io.Closeable;
 import java.util.Iterator;
 import java.util.Map.Entry;
 
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.ConcurrentSkipListMap;
-
+import lib.util.Varint;
 import lib.leveldb.io.Cursors;
 
 import lib.leveldb.Cursor;
 import lib.leveldb.Slice;
+import lib.leveldb.DB.MemTableType;
 import static lib.leveldb.db.DbFormat.*;
+import static lib.leveldb.io.ByteDecoder.decodeFixed64;
+import static lib.leveldb.io.ByteEncoder.encodeFixed64;
 
-class MemTable implements Iterable<Entry<InternalKey,Slice>>, Closeable {
+class MemTable implements Iterable<Entry<InternalKey,Slice>>, Closeable, MemTableRep.EntryComparator {
 
     InternalKeyComparator comparator;
     int refs;
 
-    ConcurrentSkipListMap<InternalKey,Slice> table;
-    AtomicLong approximateMemoryUsage;
+    // The log started when this memtable became immutable;
+    // the logs before it are obsolete once this memtable is compacted.
+    long nextLogNumber;
+
+    Arena arena;
+    MemTableRep table;
 
     // MemTables are reference counted.
     // The initial reference count is zero and the caller must call Ref() at least once.
 
     MemTable(InternalKeyComparator cmp) {
-        comparator = cmp;
-        // refs_(0),
-        table = new ConcurrentSkipListMap<>(this::orderKeysByLength);
-        approximateMemoryUsage = new AtomicLong();
+        this(cmp,MemTableType.SkipList,0);
     }
 
-    int orderKeysByLength(InternalKey a, InternalKey b) {
-        var c = a.userKey.length - b.userKey.length;
-        return c != 0 ? c : comparator.compare(a,b);
+    MemTable(InternalKeyComparator cmp, MemTableType type, int writeBufferSize) {
+        comparator = cmp;
+        // refs_(0),
+        arena = new Arena();
+        table = MemTableRep.newRep(type,this,writeBufferSize);
     }
 
     @Override
@@ -65,50 +69,157 @@ class MemTable implements Iterable<Entry<InternalKey,Slice>>, Closeable {
      * It is safe to call when MemTable is being modified.
      */
     int approximateMemoryUsage() {
-        return approximateMemoryUsage.intValue();
+        return (int) Math.min(arena.memoryUsage() + table.memoryUsage(), Integer.MAX_VALUE);
     }
 
     final static Slice nil = new Slice(null,0,0);
 
+    // Entries are stored in the arena in this format:
+    //    klength  varint32
+    //    userkey  char[klength-8]
+    //    tag      uint64
+    //    vlength  varint32
+    //    value    char[vlength]
+    // where tag is the packed sequence number and value type.
+
     /**
      * Add an entry into memtable that maps key to value at the specified sequence number and with the specified type.
      * Typically value will be empty if type==kTypeDeletion.
      */
     void add(long sequenceNumber, int valueType, Slice key, Slice value) {
         var internalKey = internalKey(key,sequenceNumber,valueType);
-        if (valueType != kTypeValue) value = nil;
-        table.put(internalKey,value);
+        var keySize = key.length;
+        var valSize = (valueType == kTypeValue) ? value.length : 0;
+        var internalKeySize = keySize + sizeof_SequenceAndType;
+        var encodedLen = Varint.width(internalKeySize) + internalKeySize
+                       + Varint.width(valSize) + valSize;
+        var entry = arena.allocate(encodedLen);
+        var buf = arena.block(entry);
+        var p = Arena.offset(entry);
+        p = Varint.store(internalKeySize,buf,p);
+        System.arraycopy(key.data,key.offset,buf,p,keySize);
+        p += keySize;
+        encodeFixed64(internalKey.sequence_type,buf,p);
+        p += sizeof_SequenceAndType;
+        p = Varint.store(valSize,buf,p);
+        if (valSize > 0) {
+            System.arraycopy(value.data,value.offset,buf,p,valSize);
+        }
+        assert (p + valSize == Arena.offset(entry) + encodedLen);
+        table.insert(entry,internalKey);
+    }
+
+    /**
+     * Compare the entry at an arena address with an internal key.
+     */
+    @Override
+    public int compare(long entry, InternalKey k) {
+        var buf = arena.block(entry);
+        var p = Arena.offset(entry);
+        var internalKeySize = varint32(buf,p);
+        p += Varint.width(internalKeySize);
+        var keySize = internalKeySize - sizeof_SequenceAndType;
+        var u = k.userKey;
+        var r = comparator.comparator().compare(buf,p,keySize, u.data,u.offset,u.length);
+        if (r != 0) return r;
+        // decreasing sequence number and type
+        var tag = decodeFixed64(buf,p+keySize);
+        return tag > k.sequence_type ? -1
+             : tag < k.sequence_type ? 1
+             : 0;
+    }
+
+    /**
+     * Compare the entries at two arena addresses in place.
+     */
+    @Override
+    public int compare(long a, long b) {
+        var abuf = arena.block(a);
+        var ap = Arena.offset(a);
+        var aKeySize = varint32(abuf,ap);
+        ap += Varint.width(aKeySize);
+        aKeySize -= sizeof_SequenceAndType;
+        var bbuf = arena.block(b);
+        var bp = Arena.offset(b);
+        var bKeySize = varint32(bbuf,bp);
+        bp += Varint.width(bKeySize);
+        bKeySize -= sizeof_SequenceAndType;
+        var r = comparator.comparator().compare(abuf,ap,aKeySize, bbuf,bp,bKeySize);
+        if (r != 0) return r;
+        // decreasing sequence number and type
+        var atag = decodeFixed64(abuf,ap+aKeySize);
+        var btag = decodeFixed64(bbuf,bp+bKeySize);
+        return atag > btag ? -1
+             : atag < btag ? 1
+             : 0;
+    }
 
-        // entry format is:
-        //    klength  varint32
-        //    userkey  char[klength]
-        //    tag      uint64
-        //    vlength  varint32
-        //    value    char[vlength]
+    @Override
+    public int hash(long entry) {
+        var buf = arena.block(entry);
+        var p = Arena.offset(entry);
+        var internalKeySize = varint32(buf,p);
+        p += Varint.width(internalKeySize);
+        return Slice.hash(buf,p,internalKeySize-sizeof_SequenceAndType,0);
+    }
 
-        // assumes that average varint width of klength & vlength together is 5
+    @Override
+    public int hash(InternalKey k) {
+        var u = k.userKey;
+        return Slice.hash(u.data,u.offset,u.length,0);
+    }
 
-        approximateMemoryUsage.addAndGet( 5 + key.length + sizeof_SequenceAndType + value.length );
+    static int varint32(byte[] b, int p) {
+        int v = 0, s = 0;
+        byte t;
+        do {
+            t = b[p++];
+            v |= (t & 0x07f) << s;
+            s += 7;
+        } while (t < 0);
+        return v;
     }
 
     /**
-     * If memtable contains a value for key, store it in *value and return true.
-     * If memtable contains a deletion for key, store a NotFound() error in *status and return true.
-     * Else, return false.
+     * Decode the entry at an arena address;
+     * the key and value slices refer directly to the arena block.
+     */
+    Entry<InternalKey,Slice> entry(long entry) {
+        var buf = arena.block(entry);
+        var p = Arena.offset(entry);
+        var internalKeySize = varint32(buf,p);
+        p += Varint.width(internalKeySize);
+        var keySize = internalKeySize - sizeof_SequenceAndType;
+        var key = new InternalKey(new Slice(buf,p,keySize), decodeFixed64(buf,p+keySize));
+        p += internalKeySize;
+        var valSize = varint32(buf,p);
+        p += Varint.width(valSize);
+        var value = (valueType(key) == kTypeValue) ? new Slice(buf,p,valSize) : nil;
+        return Cursors.entry(key,value);
+    }
+
+    // Returned by get() for a key whose latest entry is a deletion.
+    static final Slice deleted = new Slice(new byte[0]);
+
+    /**
+     * If memtable contains a value for key, return it.
+     * If memtable contains a deletion for key, return MemTable.deleted.
+     * Else, return null.
      */
     Slice get(long sequenceNumber, Slice key) {
         var lookupKey = lookupKey(key,sequenceNumber);
-        var entry = table.ceilingEntry(lookupKey);
-        if (entry != null) {
-            var ik = entry.getKey();
+        var entry = table.seek(lookupKey);
+        if (entry != 0) {
+            var e = entry(entry);
+            var ik = e.getKey();
             // Check that it belongs to same user key.  We do not check the
             // sequence number since the Seek() call above should have skipped
             // all entries with overly large sequence numbers.
             if (comparator.userComparator.compare(key,ik.userKey) == 0) {
                 // Correct user key
                 switch (valueType(ik)) {
-                    case kTypeValue: return entry.getValue();
-                    case kTypeDeletion: return null;
+                    case kTypeValue: return e.getValue();
+                    case kTypeDeletion: return deleted;
                 }
             }
         }
@@ -129,6 +240,16 @@ class MemTable implements Iterable<Entry<InternalKey,Slice>>, Closeable {
 
     @Override
     public Iterator<Entry<InternalKey,Slice>> iterator() {
-        return table.entrySet().iterator();
+        var iter = table.iterator();
+        return new Iterator<Entry<InternalKey,Slice>>() {
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+            @Override
+            public Entry<InternalKey,Slice> next() {
+                return entry(iter.nextLong());
+            }
+        };
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,323 @@
+package lib.leveldb.db;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import lib.leveldb.DB.MemTableType;
+import static lib.leveldb.db.DbFormat.InternalKey;
+
+/**
+ * The index a MemTable keeps over its arena entries (memtablerep.h).
+ *
+ * A rep stores arena addresses of encoded entries; it never looks at
+ * entry bytes itself but orders them through a EntryComparator supplied
+ * by the MemTable.
+ */
+interface MemTableRep {
+
+    interface EntryComparator extends SkipList.Comparator<InternalKey> {
+        // Compare two entries.
+        int compare(long a, long b);
+        // Hash of the user key of an entry or of a search key.
+        int hash(long a);
+        int hash(InternalKey k);
+    }
+
+    /**
+     * Insert an entry into the rep.
+     * REQUIRES: nothing that compares equal to the entry is currently in the rep.
+     */
+    void insert(long entry, InternalKey k);
+
+    /**
+     * Return the first entry at or after k,
+     * provided it could belong to the same user key; 0 otherwise.
+     */
+    long seek(InternalKey k);
+
+    /**
+     * Return all entries in internal key order.
+     */
+    PrimitiveIterator.OfLong iterator();
+
+    /**
+     * Bytes used by the rep itself, not counting the arena.
+     */
+    long memoryUsage();
+
+    static MemTableRep newRep(MemTableType type, EntryComparator cmp, int writeBufferSize) {
+        switch (type) {
+            case Vector: return new VectorRep(cmp);
+            case HashLinkList: return new HashLinkListRep(cmp, writeBufferSize);
+            default: return new SkipListRep(cmp);
+        }
+    }
+
+    /**
+     * The default rep; keeps entries ordered on insert.
+     */
+    class SkipListRep implements MemTableRep {
+        final SkipList<InternalKey> list;
+
+        SkipListRep(EntryComparator cmp) {
+            list = new SkipList<>(cmp);
+        }
+
+        @Override
+        public void insert(long entry, InternalKey k) {
+            list.insert(entry,k);
+        }
+
+        @Override
+        public long seek(InternalKey k) {
+            var node = list.findGreaterOrEqual(k);
+            return node != 0 ? list.key(node) : 0;
+        }
+
+        @Override
+        public PrimitiveIterator.OfLong iterator() {
+            var iter = list.new Iterator();
+            iter.seekToFirst();
+            return new PrimitiveIterator.OfLong() {
+                @Override
+                public boolean hasNext() {
+                    return iter.valid();
+                }
+                @Override
+                public long nextLong() {
+                    if (!iter.valid()) throw new NoSuchElementException();
+                    var entry = iter.key();
+                    iter.next();
+                    return entry;
+                }
+            };
+        }
+
+        @Override
+        public long memoryUsage() {
+            return list.memoryUsage();
+        }
+    }
+
+    /**
+     * Appends entries unordered and sorts them when they are first read.
+     * Suited to bulk loads that are not read until the memtable is flushed.
+     */
+    class VectorRep implements MemTableRep {
+        final EntryComparator cmp;
+        long[] entries = new long[1024];
+        int count;
+        long[] sorted; // sorted copy of the first sorted.length entries
+
+        VectorRep(EntryComparator cmp) {
+            this.cmp = cmp;
+        }
+
+        @Override
+        public synchronized void insert(long entry, InternalKey k) {
+            if (count == entries.length) {
+                entries = Arrays.copyOf(entries, count * 2);
+            }
+            entries[count++] = entry;
+        }
+
+        // Sorts outside the lock, so inserts go on meanwhile; only the entries
+        // added since the last sort are sorted, and merged into the sorted copy.
+        long[] sorted() {
+            long[] s, e;
+            int n;
+            synchronized (this) {
+                s = sorted;
+                e = entries;
+                n = count;
+            }
+            if (s != null && s.length == n) {
+                return s;
+            }
+            var from = (s != null) ? s.length : 0;
+            var a = Arrays.copyOfRange(e, from, n);
+            sort(a, new long[a.length], 0, a.length);
+            if (from > 0) {
+                a = merge(s, a);
+            }
+            synchronized (this) {
+                if (sorted == null || sorted.length < a.length) {
+                    sorted = a;
+                }
+            }
+            return a;
+        }
+
+        long[] merge(long[] x, long[] y) {
+            var a = new long[x.length + y.length];
+            for (int i = 0, p = 0, q = 0; i < a.length; i++) {
+                a[i] = (q >= y.length || (p < x.length && cmp.compare(x[p],y[q]) <= 0)) ? x[p++] : y[q++];
+            }
+            return a;
+        }
+
+        // merge sort, since there is no primitive sort with a comparator
+        void sort(long[] a, long[] tmp, int lo, int hi) {
+            if (hi - lo < 16) {
+                for (var i = lo + 1; i < hi; i++) {
+                    var x = a[i];
+                    var j = i;
+                    for (; j > lo && cmp.compare(a[j-1],x) > 0; j--) {
+                        a[j] = a[j-1];
+                    }
+                    a[j] = x;
+                }
+                return;
+            }
+            var mid = (lo + hi) >>> 1;
+            sort(a, tmp, lo, mid);
+            sort(a, tmp, mid, hi);
+            if (cmp.compare(a[mid-1],a[mid]) <= 0) {
+                return; // already in order, e.g. a sorted bulk load
+            }
+            System.arraycopy(a, lo, tmp, lo, hi - lo);
+            for (int i = lo, p = lo, q = mid; i < hi; i++) {
+                a[i] = (q >= hi || (p < mid && cmp.compare(tmp[p],tmp[q]) <= 0)) ? tmp[p++] : tmp[q++];
+            }
+        }
+
+        @Override
+        public long seek(InternalKey k) {
+            var a = sorted();
+            int lo = 0, hi = a.length;
+            while (lo < hi) {
+                var mid = (lo + hi) >>> 1;
+                if (cmp.compare(a[mid],k) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo < a.length ? a[lo] : 0;
+        }
+
+        @Override
+        public PrimitiveIterator.OfLong iterator() {
+            return Arrays.stream(sorted()).iterator();
+        }
+
+        @Override
+        public synchronized long memoryUsage() {
+            return entries.length * 8L + (sorted != null ? sorted.length * 8L : 0);
+        }
+    }
+
+    /**
+     * Hashes entries by user key into buckets of sorted linked lists,
+     * so a point lookup only walks the versions of one key.
+     * Ordered iteration has to collect and sort every bucket.
+     */
+    class HashLinkListRep implements MemTableRep {
+
+        static final VarHandle LINK = MethodHandles.arrayElementVarHandle(long[].class);
+
+        final EntryComparator cmp;
+        final long[] buckets;  // head node of each bucket, 0 if empty
+        final int mask;
+
+        // nodes are (entry, next) pairs in pooled long[] blocks, as in SkipList
+        static final int kNodeShift = 10;
+        static final int kNodeBlock = 1 << kNodeShift;
+        volatile long[][] blocks = new long[16][];
+        volatile int numBlocks;
+        long allocPtr;
+        int allocRemaining;
+
+        HashLinkListRep(EntryComparator cmp, int writeBufferSize) {
+            this.cmp = cmp;
+            // about one bucket per KB of write buffer
+            var n = Integer.highestOneBit(Math.max(writeBufferSize >>> 10, 256));
+            buckets = new long[n];
+            mask = n - 1;
+            newBlock();
+            allocPtr = 2; // node 0 is the null link
+            allocRemaining -= 2;
+        }
+
+        void newBlock() {
+            var b = blocks;
+            if (numBlocks == b.length) {
+                b = Arrays.copyOf(b, numBlocks * 2);
+            }
+            b[numBlocks] = new long[kNodeBlock];
+            blocks = b;
+            allocPtr = (long)numBlocks << kNodeShift;
+            allocRemaining = kNodeBlock;
+            numBlocks++;
+        }
+
+        synchronized long newNode(long entry) {
+            if (allocRemaining < 2) {
+                newBlock();
+            }
+            var x = allocPtr;
+            allocPtr += 2;
+            allocRemaining -= 2;
+            node(x)[slot(x)] = entry;
+            return x;
+        }
+
+        long[] node(long x) { return blocks[(int)(x >>> kNodeShift)]; }
+        static int slot(long x) { return (int)(x & (kNodeBlock - 1)); }
+        long entry(long x) { return node(x)[slot(x)]; }
+        long next(long x) { return (long) LINK.getAcquire(node(x), slot(x) + 1); }
+
+        long head(int b) { return (long) LINK.getAcquire(buckets, b); }
+
+        @Override
+        public void insert(long entry, InternalKey k) {
+            var b = cmp.hash(k) & mask;
+            var x = newNode(entry);
+            while (true) {
+                // find the splice within the bucket
+                long prev = 0, next = head(b);
+                while (next != 0 && cmp.compare(entry(next),k) < 0) {
+                    prev = next;
+                    next = next(next);
+                }
+                LINK.set(node(x), slot(x) + 1, next);
+                var linked = (prev == 0)
+                    ? LINK.compareAndSet(buckets, b, next, x)
+                    : LINK.compareAndSet(node(prev), slot(prev) + 1, next, x);
+                if (linked) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public long seek(InternalKey k) {
+            var x = head(cmp.hash(k) & mask);
+            while (x != 0 && cmp.compare(entry(x),k) < 0) {
+                x = next(x);
+            }
+            return x != 0 ? entry(x) : 0;
+        }
+
+        @Override
+        public PrimitiveIterator.OfLong iterator() {
+            var all = new VectorRep(cmp);
+            for (var b = 0; b < buckets.length; b++) {
+                for (var x = head(b); x != 0; x = next(x)) {
+                    all.insert(entry(x),null);
+                }
+            }
+            return all.iterator();
+        }
+
+        @Override
+        public long memoryUsage() {
+            return buckets.length * 8L + (long)numBlocks * kNodeBlock * 8;
+        }
+    }
+
+}
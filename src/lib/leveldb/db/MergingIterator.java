@@ -108,4 +108,11 @@ class MergingIterator implements Cursor<InternalKey,Slice> {
         }
     }
 
+    @Override
+    public void close() {
+        for (var c : cursor) {
+            if (c != null) c.close();
+        }
+    }
+
 }
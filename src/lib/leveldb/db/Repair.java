@@ -203,7 +203,7 @@ class Repair implements Closeable {
 //     }
 
         // Create the log reader.
-        LogReader reader = new LogReader(lfile);
+        LogReader reader = new LogReader(lfile).logNumber(log);
 //     LogReporter reporter;
 //     reporter.env = env_;
 //     reporter.info_log = options_.info_log;
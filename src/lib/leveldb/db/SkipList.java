@@ -0,0 +1,271 @@
+package lib.leveldb.db;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.util.Arrays;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A skip list of arena addresses (db/skiplist.h).
+ *
+ * Nodes are allocated from long[] blocks rather than as objects:
+ * slot 0 of a node holds its key and slots 1..height hold the next links.
+ * A node is addressed by (block number &lt;&lt; kNodeShift | slot);
+ * the head node sits at address 0, so 0 doubles as the null link.
+ *
+ * Thread safety
+ * -------------
+ * Inserts may run concurrently with each other and with readers.
+ * A node is fully initialized before it is linked in with a release CAS,
+ * and readers follow links with acquire loads, so a reader never sees a
+ * partially constructed node.  Nodes are never deleted.
+ *
+ * @param <K> the type of key used to search the list
+ */
+class SkipList<K> {
+
+    interface Comparator<K> {
+        /**
+         * Compare the key stored at a node with a search key.
+         */
+        int compare(long key, K k);
+    }
+
+    static final int kMaxHeight = 12;
+    static final int kBranching = 4;
+
+    static final int kNodeShift = 10;
+    static final int kNodeBlock = 1 << kNodeShift; // longs per block
+    static final int kNodeMask = kNodeBlock - 1;
+
+    static final VarHandle LINK = MethodHandles.arrayElementVarHandle(long[].class);
+
+    // Immutable after construction
+    final Comparator<K> compare;
+    final long head;
+
+    // Height of the entire list.
+    // Modified only by insert().  Read racily by readers, but stale values are ok.
+    final AtomicInteger maxHeight = new AtomicInteger(1);
+
+    volatile long[][] blocks = new long[16][];
+    volatile int numBlocks; // written under this
+
+    // The node block being allocated from, and the slots of it handed out so far,
+    // as in Arena; replaced as a whole once it fills up.
+    static final class Current {
+        final int index;
+        final AtomicInteger ptr = new AtomicInteger();
+        Current(int index) { this.index = index; }
+    }
+    volatile Current current;
+
+    /**
+     * Create a new SkipList object that will use "cmp" for comparing keys.
+     */
+    SkipList(Comparator<K> cmp) {
+        compare = cmp;
+        head = newNode(0,kMaxHeight);
+        assert (head == 0);
+    }
+
+    // Allocate a node with a bump of the current block's pointer; a lock
+    // is only taken to start a new block.
+    long newNode(long key, int height) {
+        var slots = 1 + height;
+        for (;;) {
+            var c = current;
+            if (c != null) {
+                var p = c.ptr.getAndAdd(slots);
+                if (p <= kNodeBlock - slots) {
+                    var x = ((long)c.index << kNodeShift) | p;
+                    node(x)[p] = key;
+                    return x;
+                }
+            }
+            synchronized (this) {
+                if (current == c) {
+                    current = new Current(newBlock());
+                }
+            }
+        }
+    }
+
+    // REQUIRES: this is locked
+    int newBlock() {
+        var b = blocks;
+        if (numBlocks == b.length) {
+            b = Arrays.copyOf(b, numBlocks * 2);
+        }
+        b[numBlocks] = new long[kNodeBlock];
+        blocks = b;
+        return numBlocks++;
+    }
+
+    long[] node(long x) {
+        return blocks[(int)(x >>> kNodeShift)];
+    }
+
+    static int slot(long x) {
+        return (int)(x & kNodeMask);
+    }
+
+    long key(long x) {
+        return node(x)[slot(x)];
+    }
+
+    // Accessors/mutators for links.
+    // Use an 'acquire load' so that we observe a fully initialized version of the returned Node.
+    long next(long x, int n) {
+        return (long) LINK.getAcquire(node(x), slot(x) + 1 + n);
+    }
+    // No barrier needed here; the node is published by the CAS that links it in.
+    void noBarrierSetNext(long x, int n, long y) {
+        LINK.set(node(x), slot(x) + 1 + n, y);
+    }
+    boolean casNext(long x, int n, long expected, long y) {
+        return LINK.compareAndSet(node(x), slot(x) + 1 + n, expected, y);
+    }
+
+    int randomHeight() {
+        // Increase height with probability 1 in kBranching
+        var rnd = ThreadLocalRandom.current();
+        var height = 1;
+        while (height < kMaxHeight && rnd.nextInt(kBranching) == 0) {
+            height++;
+        }
+        assert (height > 0 && height <= kMaxHeight);
+        return height;
+    }
+
+    /**
+     * Estimated bytes held by the node blocks.
+     */
+    long memoryUsage() {
+        return (long)numBlocks * kNodeBlock * 8;
+    }
+
+    /**
+     * Insert key into the list.
+     * REQUIRES: nothing that compares equal to key is currently in the list.
+     */
+    void insert(long key, K k) {
+        var height = randomHeight();
+        var max = maxHeight.get();
+        while (height > max) {
+            if (maxHeight.compareAndSet(max,height)) {
+                max = height;
+                break;
+            }
+            max = maxHeight.get();
+        }
+
+        var prev = new long[kMaxHeight];
+        var next = new long[kMaxHeight];
+        var before = head;
+        for (var i = max - 1; i >= 0; i--) {
+            findSpliceForLevel(k,before,i,prev,next);
+            before = prev[i];
+        }
+
+        // Our data structure does not allow duplicate insertion
+        assert (next[0] == 0 || compare.compare(key(next[0]),k) != 0);
+
+        var x = newNode(key,height);
+        for (var i = 0; i < height; i++) {
+            while (true) {
+                noBarrierSetNext(x,i,next[i]);
+                if (casNext(prev[i],i,next[i],x)) {
+                    break;
+                }
+                // A concurrent insert changed the splice at this level;
+                // prev[i] is still before k, so search again from there.
+                findSpliceForLevel(k,prev[i],i,prev,next);
+            }
+        }
+    }
+
+    void findSpliceForLevel(K k, long before, int level, long[] prev, long[] next) {
+        while (true) {
+            var after = next(before,level);
+            if (after == 0 || compare.compare(key(after),k) >= 0) {
+                prev[level] = before;
+                next[level] = after;
+                return;
+            }
+            before = after;
+        }
+    }
+
+    /**
+     * Return the earliest node that comes at or after k.
+     * Return 0 if there is no such node.
+     */
+    long findGreaterOrEqual(K k) {
+        var x = head;
+        var level = maxHeight.get() - 1;
+        while (true) {
+            var next = next(x,level);
+            if (next != 0 && compare.compare(key(next),k) < 0) {
+                // Keep searching in this list
+                x = next;
+            } else {
+                if (level == 0) {
+                    return next;
+                } else {
+                    // Switch to next list
+                    level--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true iff an entry that compares equal to k is in the list.
+     */
+    boolean contains(K k) {
+        var x = findGreaterOrEqual(k);
+        return x != 0 && compare.compare(key(x),k) == 0;
+    }
+
+    /**
+     * Iteration over the contents of a skip list
+     */
+    class Iterator {
+        long node;
+
+        // Returns true iff the iterator is positioned at a valid node.
+        boolean valid() {
+            return node != 0;
+        }
+
+        // Returns the key at the current position.
+        // REQUIRES: valid()
+        long key() {
+            assert (valid());
+            return SkipList.this.key(node);
+        }
+
+        // Advances to the next position.
+        // REQUIRES: valid()
+        void next() {
+            assert (valid());
+            node = SkipList.this.next(node,0);
+        }
+
+        // Advance to the first entry with a key >= target
+        void seek(K target) {
+            node = findGreaterOrEqual(target);
+        }
+
+        // Position at the first entry in list.
+        // Final state of iterator is valid() iff list is not empty.
+        void seekToFirst() {
+            node = SkipList.this.next(head,0);
+        }
+    }
+
+}
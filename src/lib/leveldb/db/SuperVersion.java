@@ -0,0 +1,59 @@
+package lib.leveldb.db;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The memtables and the current version that a read is served from.
+ * <p>
+ * A SuperVersion is published as one unit whenever any of its parts change,
+ * so that readers can pin all of them without taking the DB mutex.
+ */
+class SuperVersion {
+
+    final MemTable mem;
+    final MemTable[] imm;   // newest first
+    final Version current;
+
+    // The DB holds the first reference until the next SuperVersion is installed.
+    final AtomicInteger refs = new AtomicInteger(1);
+
+    // REQUIRES: mutex_ is held
+    SuperVersion(MemTable mem, MemTable[] imm, Version current) {
+        this.mem = mem;
+        this.imm = imm;
+        this.current = current;
+        mem.ref();
+        for (var m : imm) m.ref();
+        current.ref();
+    }
+
+    /**
+     * Take a reference, unless the last one has already been dropped.
+     */
+    boolean tryRef() {
+        for (;;) {
+            var r = refs.get();
+            if (r == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(r, r + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop a reference.
+     * Returns true for the last one; the caller must then cleanup() under the mutex.
+     */
+    boolean unref() {
+        return refs.decrementAndGet() == 0;
+    }
+
+    // REQUIRES: mutex_ is held
+    void cleanup() {
+        mem.unref();
+        for (var m : imm) m.unref();
+        current.unref();
+    }
+}
@@ -28,6 +28,10 @@ interface Table extends Closeable {
     // (caller must call one of the Seek methods on the iterator before using it).
     Cursor<InternalKey,Slice> newIterator(boolean fillCache);
 
+    // Returns a new iterator that starts at the data block holding the first key >= start,
+    // or at the first block if start is NULL. Keys before start in that block are returned too.
+    Cursor<InternalKey,Slice> newIterator(boolean fillCache, InternalKey start);
+
     // Calls (*handle_result)(arg, ...) with the entry found after a call to Seek(key).
     // May not make such a call if filter policy says that key is not present.
     Map.Entry<InternalKey,Slice> internalGet(InternalKey key, boolean fillCache);
@@ -37,7 +41,7 @@ interface Table extends Closeable {
     static Table load(
             Path dbname, long fileNumber, long fileSize,
             Env env, KeyComparator<InternalKey> comparator, FilterPolicy filterPolicy,
-            Map<Long,Block> blockCache, boolean paranoidChecks )
+            BlockCache blockCache, boolean paranoidChecks, boolean mmap )
     {
         var fname = tableFileName(dbname,fileNumber);
         if (!env.fileExists(fname)) {
@@ -47,20 +51,26 @@ interface Table extends Closeable {
             }
         }
         try {
-            var file = env.newRandomAccessFile(fname);
-            var fileLength = file.length();
-            if (fileSize != fileLength) {
-                throw new Status("expected file size "+fileSize+", found "+fileLength).state(Corruption);
+            var file = mmap ? env.newMappedFile(fname) : env.newRandomAccessFile(fname);
+            try {
+                var fileLength = file.length();
+                if (fileSize != fileLength) {
+                    throw new Status("expected file size "+fileSize+", found "+fileLength).state(Corruption);
+                }
+
+                var table =
+                    new TableFile(file,comparator)
+                        .filterPolicy(filterPolicy)
+                        .verifyChecksums(paranoidChecks)
+                        .cache(blockCache,(int)fileNumber)
+                        .open();
+
+                return table;
+            }
+            catch (Status s) {
+                file.close(); // a table that did not open does not keep its file
+                throw s;
             }
-
-            var table =
-                new TableFile(file,comparator)
-                    .filterPolicy(filterPolicy)
-                    .verifyChecksums(paranoidChecks)
-                    .cache(blockCache,(int)fileNumber)
-                    .open();
-
-            return table;
         }
         catch (IOException e) {
             throw new Status(e).state(IOError);
@@ -75,7 +85,7 @@ interface Table extends Closeable {
      * and no Table file will be produced.
      */
     static FileMetaData store(
-            Path dbname, long fileNumber, int blockSize, int blockRestartInterval,
+            Path dbname, long fileNumber, int blockSize, int blockRestartInterval, int indexPartitionSize, boolean dataBlockHashIndex,
             Env env, KeyComparator<InternalKey> comparator, FilterPolicy filterPolicy,
             Cursor<InternalKey,Slice> iter, int compressionType )
     {
@@ -91,6 +101,8 @@ interface Table extends Closeable {
             var builder =
                 new TableBuilder(file,comparator)
                     .block(blockSize,blockRestartInterval)
+                    .partitionIndex(indexPartitionSize)
+                    .hashIndex(dataBlockHashIndex)
                     .filterPolicy(filterPolicy)
                     .compression(compressionType);
 
@@ -4,6 +4,8 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.CRC32C;
 import java.util.zip.Checksum;
 
@@ -56,6 +58,15 @@ class TableBuilder implements Closeable {
     boolean pendingIndexEntry;
     long[] pendingHandle; // Handle to add to index block
 
+    // A partitioned index is cut into index blocks of about partitionSize bytes,
+    // located by a top-level index that the reader keeps in memory.
+    // Each partition has a filter over the user keys of its data blocks.
+    int partitionSize; // 0 for a single index block
+    BlockBuilder topLevelIndex;
+    List<Slice> partitionKeys;
+    FilterPolicy partitionFilter;
+    InternalKey partitionKey; // last separator added to indexBlock
+
     static final int OFFSET = 0;
     static final int SIZE = 1;
 
@@ -94,7 +105,11 @@ class TableBuilder implements Closeable {
         return this;
     }
     TableBuilder filterPolicy(FilterPolicy policy) {
-        if (policy != null) {
+        if (policy != null && partitionSize > 0) {
+            partitionFilter = policy;
+            partitionKeys = new ArrayList<>();
+            filterBlock = null;
+        } else if (policy != null) {
             filterBlock = Filter.blockBuilder(policy);
             filterBlock.startBlock(0);
         } else {
@@ -102,6 +117,19 @@ class TableBuilder implements Closeable {
         }
         return this;
     }
+    // call before filterPolicy()
+    TableBuilder partitionIndex(int size) {
+        partitionSize = size;
+        if (size > 0) {
+            topLevelIndex = new BlockBuilder(1,comparator);
+        }
+        return this;
+    }
+    // call after block()
+    TableBuilder hashIndex(boolean b) {
+        dataBlock.hashIndex(b);
+        return this;
+    }
     TableBuilder compression(int type) {
         compressionType = type;
         return this;
@@ -121,13 +149,16 @@ class TableBuilder implements Closeable {
         if (pendingIndexEntry) {
             assert (dataBlock.isEmpty());
             InternalKey last_key = comparator.findShortestSeparator(lastKey,key);
-            indexBlock.add(last_key,blockHandle(pendingHandle));
+            addIndexEntry(last_key,blockHandle(pendingHandle));
             pendingIndexEntry = false;
         }
 
         if (filterBlock != null) {
             filterBlock.addKey(key.userKey);
         }
+        if (partitionKeys != null) {
+            partitionKeys.add(key.userKey);
+        }
 
         lastKey = key;
         numEntries++;
@@ -140,6 +171,32 @@ class TableBuilder implements Closeable {
         }
     }
 
+    void addIndexEntry(InternalKey key, Slice handle) {
+        indexBlock.add(key,handle);
+        partitionKey = key;
+        if (partitionSize > 0 && indexBlock.currentSizeEstimate() >= partitionSize) {
+            try { writeIndexPartition(); }
+            catch (IOException e) { throw new Status(e).state(Status.Code.IOError); }
+        }
+    }
+
+    // Write out the index partition built so far, and its filter,
+    // and point to them from the top-level index.
+    void writeIndexPartition() throws IOException {
+        if (indexBlock.isEmpty()) return;
+        var handle = writeBlock(indexBlock);
+        var value = new byte[2 * kBlockHandleMaxEncodedLength];
+        var n = Varint.store(handle[OFFSET],value,0);
+        n = Varint.store(handle[SIZE],value,n);
+        if (partitionFilter != null) {
+            var filter = writeRawBlock(partitionFilter.createFilter(partitionKeys),kNoCompression);
+            n = Varint.store(filter[OFFSET],value,n);
+            n = Varint.store(filter[SIZE],value,n);
+            partitionKeys.clear();
+        }
+        topLevelIndex.add(partitionKey,new Slice(value,0,n));
+    }
+
     // Number of calls to Add() so far.
     long numEntries() {
         return numEntries;
@@ -182,6 +239,19 @@ class TableBuilder implements Closeable {
             filterBlockHandle = null;
         }
 
+        // Write index block
+        if (pendingIndexEntry) {
+            InternalKey last_key = comparator.findShortSuccessor(lastKey);
+            addIndexEntry(last_key,blockHandle(pendingHandle));
+            pendingIndexEntry = false;
+        }
+        if (partitionSize > 0) {
+            writeIndexPartition();
+            indexBlockHandle = writeBlock(topLevelIndex);
+        } else {
+            indexBlockHandle = writeBlock(indexBlock);
+        }
+
         // Write metaindex block
         var metaindexBlock = new BlockBuilder(restartInterval,comparator);
         if (filterBlock != null) {
@@ -190,15 +260,20 @@ class TableBuilder implements Closeable {
                 new InternalKey(filterBlock.name(),-1),
                 blockHandle(filterBlockHandle));
         }
-        metaindexBlockHandle = writeBlock(metaindexBlock);
-
-        // Write index block
-        if (pendingIndexEntry) {
-            InternalKey last_key = comparator.findShortSuccessor(lastKey);
-            indexBlock.add(last_key,blockHandle(pendingHandle));
-            pendingIndexEntry = false;
+        if (partitionSize > 0) {
+            // Mark the index as partitioned, and name the policy of its filters;
+            // metaindex keys must be added in order.
+            if (partitionFilter != null) {
+                metaindexBlock.add(
+                    new InternalKey(new Slice((Index.kPartitionedIndex + partitionFilter.name()).getBytes()),-1),
+                    blockHandle(indexBlockHandle));
+            } else {
+                metaindexBlock.add(
+                    new InternalKey(new Slice(Index.kPartitionedIndex.getBytes()),-1),
+                    blockHandle(indexBlockHandle));
+            }
         }
-        indexBlockHandle = writeBlock(indexBlock);
+        metaindexBlockHandle = writeBlock(metaindexBlock);
 
         // Write footer
         var footer = new byte[kFooterEncodedLength];
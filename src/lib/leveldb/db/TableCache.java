@@ -2,7 +2,15 @@ package lib.leveldb.db;
 
 import java.io.Closeable;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import lib.util.LruMap;
 import lib.util.LruHashMap;
@@ -11,6 +19,7 @@ import lib.leveldb.Env;
 import lib.leveldb.Slice;
 import lib.leveldb.Cursor;
 import lib.leveldb.DB.FilterPolicy;
+import lib.leveldb.io.Cursors;
 import static lib.leveldb.db.DbFormat.*;
 
 /**
@@ -26,8 +35,50 @@ class TableCache implements Closeable {
     KeyComparator<InternalKey> comparator;
     FilterPolicy filterPolicy;
 
-    LruMap<Long,Table> cache;
-    LruMap<Long,Block> blockCache;
+    long mmapLimit;                 // table bytes that may be mapped at once; 0 disables mmap
+    long mappedBytes;               // mapped by open tables, in the cache or not; guarded by this
+
+    LruMap<Long,Handle> cache;      // guarded by this
+    BlockCache blockCache;          // shared by the tables
+
+    // Opens in progress, so that threads missing on the same file wait for one open.
+    Map<Long,CompletableFuture<Handle>> loading = new HashMap<>(); // guarded by this
+
+    // Tables are closed off the reading threads, once the last reader is done.
+    ExecutorService closer =
+        Executors.newSingleThreadExecutor((r) -> {
+            var t = FileEnv.threadFactory().newThread(r);
+            t.setName("leveldb-table-close");
+            return t;
+        });
+
+    /**
+     * An open table; the cache holds one reference, and each lookup or
+     * iterator that uses the table holds another until it is done.
+     */
+    static class Handle {
+        final TableFile table;
+        final long mappedBytes;
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Handle(Table table) {
+            this.table = (TableFile)table;
+            this.mappedBytes = this.table.mappedBytes();
+        }
+
+        // Fails once the last reference is gone and the table is being closed.
+        boolean tryRef() {
+            for (;;) {
+                var r = refs.get();
+                if (r == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(r, r + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
 
     TableCache(Path dbname, Env env) {
         this.dbname = dbname;
@@ -42,11 +93,14 @@ class TableCache implements Closeable {
     TableCache verifyChecksums(boolean check) {
         verifyChecksums = check; return this;
     }
-    TableCache cache(int blockCacheSize, int tableCacheSize ) {
-        blockCache = new LruHashMap<>(blockCacheSize);
-        cache = new LruHashMap<>(tableCacheSize);
+    TableCache cache(BlockCache blockCache, int tableCacheSize ) {
+        this.blockCache = blockCache;
+        cache = new LruHashMap<Long,Handle>(tableCacheSize).onDelete((e) -> removed(e.getValue()));
         return this;
     }
+    TableCache mmap(long limit) {
+        mmapLimit = limit; return this;
+    }
 
     TableCache open() {
         return this;
@@ -55,6 +109,14 @@ class TableCache implements Closeable {
     @Override
     public void close() { // TableCache::~TableCache()
         // delete cache_;
+        synchronized (this) {
+            for (var h : cache.values()) {
+                removed(h);
+            }
+            cache.clear();
+        }
+        // Tables still held by open iterators are closed by their last release.
+        closer.shutdown();
     }
 
     // If a seek to internal key "k" in specified file finds an entry,
@@ -63,45 +125,155 @@ class TableCache implements Closeable {
         long fileNumber, long fileSize, InternalKey ikey, boolean fillCache )
     {
         //   Cache::Handle* handle = NULL;
-        var t = findTable(fileNumber,fileSize);
-        if (t != null) { // if (s.ok()) {
+        var h = findTable(fileNumber,fileSize);
+        if (h != null) { // if (s.ok()) {
 //     Table* t = reinterpret_cast<TableAndFile*>(cache_->Value(handle))->table;
 //     s = t->InternalGet(options, k, arg, saver);
 //     cache_->Release(handle);
-            return t.internalGet(ikey,fillCache); // ,verifyChecksums);
+            try {
+                return h.table.internalGet(ikey,fillCache); // ,verifyChecksums);
+            }
+            finally {
+                release(h);
+            }
         }
         return null; // return s;
     }
 
-    Table findTable(long fileNumber, long fileSize) {
-        var table = cache.get(fileNumber); // *handle = cache_->Lookup(key);
-        if (table == null) { // if (*handle == NULL) {
-            table = Table.load( dbname, fileNumber, fileSize,
-                                env, comparator, filterPolicy,
-                                blockCache, verifyChecksums );
+    /**
+     * Return the table for the file with a reference taken, opening it if need be;
+     * the caller must release() it.
+     */
+    Handle findTable(long fileNumber, long fileSize) {
+        for (;;) {
+            CompletableFuture<Handle> pending;
+            var mmap = false;
+            synchronized (this) {
+                var h = cache.get(fileNumber); // *handle = cache_->Lookup(key);
+                if (h != null && h.tryRef()) {
+                    return h;
+                }
+                pending = loading.get(fileNumber);
+                if (pending == null) {
+                    // Map the table while the mapped bytes stay under the limit;
+                    // the bytes are reserved until the open is done.
+                    mmap = mappedBytes + fileSize <= mmapLimit;
+                    if (mmap) mappedBytes += fileSize;
+                    loading.put(fileNumber, new CompletableFuture<>());
+                }
+            }
+            if (pending == null) {
+                return load(fileNumber,fileSize,mmap);
+            }
+            Handle h;
+            try {
+                h = pending.join(); // another thread is opening the table
+            }
+            catch (CompletionException e) {
+                throw (e.getCause() instanceof RuntimeException r) ? r : e;
+            }
+            if (h == null || h.tryRef()) {
+                return h;
+            }
+            // The table was dropped again before we got to it; look it up once more.
+        }
+    }
+
+    Handle load(long fileNumber, long fileSize, boolean mmap) {
+        Handle h = null;
+        RuntimeException error = null;
+        try {
+            var table = Table.load( dbname, fileNumber, fileSize,
+                                    env, comparator, filterPolicy,
+                                    blockCache, verifyChecksums, mmap );
             //  s = Table::Open(*options_, file, file_size, &table);
-            if (table == null) { // if (!s.ok()) {
-                // assert(table == NULL);
-                // delete file;
-                // We do not cache error results so that if the error is transient,
-                // or somebody repairs the file, we recover automatically.
-            } else {
-                cache.put(fileNumber,table);
+            if (table != null) {
+                h = new Handle(table);
+                h.refs.incrementAndGet(); // for the caller
+            }
+            // if (!s.ok()) {
+            //   assert(table == NULL);
+            //   delete file;
+            //   We do not cache error results so that if the error is transient,
+            //   or somebody repairs the file, we recover automatically.
+        }
+        catch (RuntimeException e) {
+            error = e;
+        }
+        CompletableFuture<Handle> pending;
+        synchronized (this) {
+            pending = loading.remove(fileNumber);
+            if (mmap) mappedBytes -= fileSize;
+            if (h != null) {
+                mappedBytes += h.mappedBytes;
+                cache.put(fileNumber,h);
                 // TableAndFile* tf = new TableAndFile;
                 // tf->file = file;
                 // tf->table = table;
                 // *handle = cache_->Insert(key, tf, 1, &DeleteEntry);
             }
         }
-        return table;
+        if (error != null) {
+            pending.completeExceptionally(error);
+            throw error;
+        }
+        pending.complete(h);
+        return h;
+    }
+
+    /**
+     * Drop a reference taken by findTable().
+     */
+    void release(Handle h) {
+        if (h.refs.decrementAndGet() == 0) {
+            try {
+                closer.execute(() -> closed(h));
+            }
+            catch (RejectedExecutionException e) {
+                closed(h); // the cache is closed
+            }
+        }
+    }
+
+    // Close a table no one holds any more; its mapping counts against
+    // the mmap limit until it is unmapped here.
+    void closed(Handle h) {
+        try {
+            h.table.close();
+        }
+        finally {
+            synchronized (this) {
+                mappedBytes -= h.mappedBytes;
+            }
+        }
     }
 
     /**
-     * Evict any entry for the specified file number.
+     * Evict any entry for the specified file number, and the file's cached blocks.
      */
     void evict(long fileNumber) {
-        cache.remove(fileNumber);
-        // TODO: also evict blockCache of related blocks
+        Handle h;
+        synchronized (this) {
+            h = cache.remove(fileNumber);
+            if (h != null) removed(h);
+        }
+        // An open table lists its blocks; otherwise the whole block cache is swept.
+        if (h != null) {
+            h.table.eraseBlocks();
+        } else {
+            blockCache.eraseFile((int)fileNumber);
+        }
+    }
+
+    synchronized long mappedBytes() {
+        return mappedBytes;
+    }
+
+    // REQUIRES: this is locked
+    // Readers still holding a table that leaves the cache keep it open,
+    // and mapped, until they are done.
+    void removed(Handle h) {
+        release(h);
     }
 
     /**
@@ -114,20 +286,22 @@ class TableCache implements Closeable {
      * and is valid for as long as the returned iterator is live.
      */
     Cursor<InternalKey,Slice> newIterator(long fileNumber, long fileSize, boolean fillCache) {
-        var table = findTable(fileNumber,fileSize);
-        if (table == null) {
+        return newIterator(fileNumber,fileSize,fillCache,null);
+    }
+
+    // As above, but skipping the data blocks that hold only keys before start.
+    Cursor<InternalKey,Slice> newIterator(long fileNumber, long fileSize, boolean fillCache, InternalKey start) {
+        var h = findTable(fileNumber,fileSize);
+        if (h == null) {
             return null; // return NewErrorIterator(s);
         }
-        var result = table.newIterator(fillCache);
+        var result = h.table.newIterator(fillCache,start);
         // result->RegisterCleanup(&UnrefEntry, cache_, handle);
-        return result;
+        return Cursors.wrap(result, () -> { result.close(); release(h); });
     }
 
     long approximateMemoryUsage() {
-        var estimate = 0L;
-//      for (Block block : blockCache.values()) {
-//          estimate += block.contents.length;
-//      }
+        var estimate = blockCache.usage();
 //      for (Table t : cache.values()) {
 //          TableFile table = (TableFile)t;
 //          estimate += table.indexData.length;
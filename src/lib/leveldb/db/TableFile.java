@@ -4,17 +4,20 @@ import java.io.IOException;
 
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
 import java.util.zip.CRC32C;
-import java.util.zip.Checksum;
 
-import lib.io.SeekableInputStream;
+import lib.io.MappedFileReader;
+import lib.io.PositionalReader;
 import lib.util.BinarySearch;
-import lib.util.concurrent.MutexLock;
 
 import lib.leveldb.Cursor;
 import lib.leveldb.Slice;
 import lib.leveldb.Status;
 import lib.leveldb.DB.FilterPolicy;
+import lib.leveldb.io.ByteDecoder;
+import lib.leveldb.io.Cursors;
 import lib.leveldb.io.SnappyDecoder;
 import static lib.leveldb.Status.Code.*;
 import static lib.leveldb.db.DbFormat.*;
@@ -47,19 +50,25 @@ class TableFile implements Table {
     static final int kSnappyCompression = 0x01;
 
 
-    final MutexLock read;
-    final SeekableInputStream file;
+    // Read with positional reads only, so blocks can be read by many threads at once.
+    final PositionalReader file;
     final KeyComparator<InternalKey> icmp;
 
-    Checksum checksum = new CRC32C();
+    boolean verifyChecksums = true;
     FilterPolicy filterPolicy;
 
-    BinarySearch.Array<InternalKey> dataKey; // high key in data block
+    IndexKeys dataKey; // high key in data block
     int[] dataOffset, dataSize;
 
     Filter filter;
 
-    Map<Long,Block> cache;
+    // With a partitioned index, the entries above locate the index partitions;
+    // only they stay in memory, while the partitions and their filters are read
+    // through the block cache.
+    boolean partitioned;
+    int[] filterOffset, filterSize;
+
+    BlockCache cache;
     int fileId;
 
     /**
@@ -69,24 +78,44 @@ class TableFile implements Table {
         return (hi << 32) | (lo & 0x0ffffffff);
     }
 
-    TableFile(SeekableInputStream file, KeyComparator<InternalKey> icmp) {
+    TableFile(PositionalReader file, KeyComparator<InternalKey> icmp) {
         this.file = file;
         this.icmp = icmp;
-        this.read = new MutexLock();
     }
     TableFile filterPolicy(FilterPolicy policy) {
         filterPolicy = policy; return this;
     }
     TableFile verifyChecksums(boolean check) {
-        checksum = check ? new CRC32C() : null; return this;
+        verifyChecksums = check; return this;
     }
-    TableFile cache(Map<Long,Block> blockCache, int cacheId) {
+    TableFile cache(BlockCache blockCache, int cacheId) {
         cache = blockCache; fileId = cacheId; return this;
     }
 
+    // Bytes of this table that are memory-mapped.
+    long mappedBytes() {
+        return (file instanceof MappedFileReader m) ? m.length() : 0;
+    }
+
     @Override
     public void close() { // Table::~Table() {
         // delete rep_;
+        try {
+            file.close();
+        }
+        catch (IOException e) { throw new Status(e).state(IOError); }
+    }
+
+    // Drop this table's blocks from the block cache.
+    void eraseBlocks() {
+        if (cache != null && partitioned) {
+            cache.eraseFile(fileId); // the data blocks are listed in the partitions
+        }
+        else if (cache != null) {
+            for (var offset : dataOffset) {
+                cache.erase(cacheKey(fileId,offset));
+            }
+        }
     }
 
     //  ~Rep() {
@@ -114,8 +143,11 @@ class TableFile implements Table {
             var index = new Index(this).open();
             dataOffset = index.dataOffset;
             dataSize = index.dataSize;
-            dataKey = BinarySearch.array(index.dataKey);
+            dataKey = index.dataKey;
             filter = index.filter;
+            partitioned = index.partitioned;
+            filterOffset = index.filterOffset;
+            filterSize = index.filterSize;
             return this;
         }
         catch (IOException e) { throw new Status(e).state(IOError); }
@@ -124,8 +156,7 @@ class TableFile implements Table {
     byte[] readFully(long off, int len) {
         try {
             var b = new byte[len];
-            file.seek(off);
-            if ((file.read(b) != len)) {
+            if ((file.read(off,b,0,len) != len)) {
                 throw new Status("could not read "+len+" bytes from offset "+off).state(Corruption);
             }
             return b;
@@ -147,10 +178,10 @@ class TableFile implements Table {
         var buf = readFully(offset, size + kBlockTrailerSize );
 
         // Check the crc of the type and the block contents
-        if (checksum != null) {
+        if (verifyChecksums) {
             var n = size + 1;
             var crc = LogFormat.unmask(decodeFixed32(buf,n));
-            checksum.reset();
+            var checksum = new CRC32C();
             checksum.update(buf,0,n);
             var actual = (int) checksum.getValue();
             if (actual != crc) {
@@ -172,34 +203,118 @@ class TableFile implements Table {
 
     @Override
     public Cursor<InternalKey,Slice> newIterator(boolean fillCache) {
+        return newIterator(fillCache,null);
+    }
+
+    @Override
+    public Cursor<InternalKey,Slice> newIterator(boolean fillCache, InternalKey start) {
+        var first = (start != null) ? dataKey.ceiling(start) : 0;
+        if (first < 0) {
+            return new Cursor<InternalKey,Slice>(){}; // every key is before start
+        }
+        if (partitioned) {
+            return new TwoLevelIterator<>(
+                indexIterator(first,dataOffset.length),
+                (index) -> partitionIterator(dataOffset[index],dataSize[index],fillCache,start)
+            );
+        }
         return new TwoLevelIterator<>(
-            indexIterator(dataOffset.length),
-            (index) -> blockReader(dataOffset[index],dataSize[index],fillCache).newIterator()
+            indexIterator(first,dataOffset.length),
+            (index) -> blockIterator(dataOffset[index],dataSize[index],fillCache)
         );
     }
 
-    Iterator<Integer> indexIterator(int limit) {
+    // The block stays pinned in the cache until the iterator is closed.
+    Cursor<InternalKey,Slice> blockIterator(int offset, int length, boolean fillCache) {
+        var h = cachedBlock(offset,length,fillCache);
+        if (h == null) {
+            return new Block(blockContents(offset,length),icmp).newIterator();
+        }
+        return Cursors.wrap(h.block.newIterator(), () -> cache.release(h));
+    }
+
+    // Iterate over the data blocks of an index partition, which stays pinned meanwhile,
+    // from the first block that may hold keys >= start.
+    Cursor<InternalKey,Slice> partitionIterator(int offset, int length, boolean fillCache, InternalKey start) {
+        var h = cachedMetaBlock(offset,length,false);
+        var partition = (h != null) ? h.block : new Block(blockContents(offset,length),icmp);
+        var entries = partition.newIterator();
+        var blocks = new TwoLevelIterator<Slice>(
+            new Iterator<Slice>() {
+                Slice handle = null;
+                boolean skipped = (start == null);
+                @Override
+                public boolean hasNext() {
+                    while (!skipped && entries.hasNext()) {
+                        var e = entries.next();
+                        if (icmp.compare(e.getKey(),start) >= 0) {
+                            handle = e.getValue();
+                            skipped = true;
+                        }
+                    }
+                    return handle != null || entries.hasNext();
+                }
+                @Override
+                public Slice next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    var next = (handle != null) ? handle : entries.next().getValue();
+                    handle = null;
+                    return next;
+                }
+            },
+            (handle) -> {
+                var d = new ByteDecoder().wrap(handle);
+                return blockIterator(d.getVarint32(),d.getVarint32(),fillCache);
+            }
+        );
+        return Cursors.wrap(blocks, () -> {
+            blocks.close();
+            if (h != null) cache.release(h);
+        });
+    }
+
+    Iterator<Integer> indexIterator(int first, int limit) {
         return new Iterator<Integer>() {
-            int index = 0;
+            int index = first;
             @Override public boolean hasNext() { return index < limit; }
             @Override public Integer next() { return index++; }
         };
     }
 
-    Block blockReader(int offset, int length, boolean fillCache) {
+    /**
+     * Look up a block in the cache, reading it in if fillCache is set.
+     * Returns the block pinned, or null if it is not to be cached.
+     */
+    BlockCache.Handle cachedBlock(int offset, int length, boolean fillCache) {
+        if (cache == null) {
+            return null;
+        }
         var fileNumberOffset = cacheKey(fileId,offset);
-        if (cache != null) {
-            var block = cache.get(fileNumberOffset);
-            if (block != null) {
-                return block;
-            }
+        var h = cache.lookup(fileNumberOffset);
+        if (h == null && fillCache) {
+            h = cache.insert(fileNumberOffset, new Block(blockContents(offset,length),icmp));
         }
-        var data = readContents(offset,length);
-        var block = new Block(data,icmp);
-        if (cache != null && fillCache) {
-            cache.put(fileNumberOffset,block);
+        return h;
+    }
+
+    // Read a block's contents, from the compressed secondary cache if it has them.
+    Slice blockContents(int offset, int length) {
+        var contents = (cache != null) ? cache.promote(cacheKey(fileId,offset)) : null;
+        return (contents != null) ? contents : readContents(offset,length);
+    }
+
+    // Seek in a data block, keeping a cached block pinned until the seek returns.
+    Map.Entry<InternalKey,Slice> seekBlock(int offset, int length, boolean fillCache, InternalKey k) {
+        var h = cachedBlock(offset,length,fillCache);
+        if (h == null) {
+            return new Block(blockContents(offset,length),icmp).seek(k);
+        }
+        try {
+            return h.block.seek(k);
+        }
+        finally {
+            cache.release(h);
         }
-        return block;
     }
 
     @Override
@@ -207,10 +322,13 @@ class TableFile implements Table {
 
         // Binary search in file restart array to find the
         // first restart point with a key >= target
-        var s = BinarySearch.ceiling(dataKey,k,icmp); // iiter->Seek(k);
+        var s = dataKey.ceiling(k); // iiter->Seek(k);
         if (s < 0) {
             return null; // Not found
         }
+        if (partitioned) {
+            return partitionGet(s,k,fillCache);
+        }
         var offset = dataOffset[s];
         if (filter != null) {
             // consult the filter if a match can be expected
@@ -219,7 +337,57 @@ class TableFile implements Table {
             }
         }
         // Search for the key in the table file block
-        return blockReader(offset,dataSize[s],fillCache).seek(k);
+        return seekBlock(offset,dataSize[s],fillCache,k);
+    }
+
+    Map.Entry<InternalKey,Slice> partitionGet(int s, InternalKey k, boolean fillCache) {
+        if (filterOffset != null && filterSize[s] > 0) {
+            // consult the partition's filter if a match can be expected
+            var mayMatch = withMetaBlock(filterOffset[s], filterSize[s], true,
+                (b) -> filterPolicy.keyMayMatch(k.userKey,b.contents) );
+            if (!mayMatch) {
+                return null; // Not found
+            }
+        }
+        // Search the partition for the data block, as the top-level index was searched
+        var handle = withMetaBlock(dataOffset[s], dataSize[s], false, (b) -> {
+            var r = BinarySearch.ceiling(b.toc(),k,icmp);
+            if (r < 0) return null;
+            var d = new ByteDecoder().wrap(b.restartValue(r));
+            return new int[] { d.getVarint32(), d.getVarint32() };
+        });
+        if (handle == null) {
+            return null; // Not found
+        }
+        return seekBlock(handle[0],handle[1],fillCache,k);
+    }
+
+    // Use an index or filter partition; these are always kept in the block cache.
+    <T> T withMetaBlock(int offset, int length, boolean filter, Function<Block,T> f) {
+        var h = cachedMetaBlock(offset,length,filter);
+        if (h == null) {
+            var contents = blockContents(offset,length);
+            return f.apply(filter ? new Block(contents) : new Block(contents,icmp));
+        }
+        try {
+            return f.apply(h.block);
+        }
+        finally {
+            cache.release(h);
+        }
+    }
+
+    BlockCache.Handle cachedMetaBlock(int offset, int length, boolean filter) {
+        if (cache == null) {
+            return null;
+        }
+        var fileNumberOffset = cacheKey(fileId,offset);
+        var h = cache.lookup(fileNumberOffset);
+        if (h == null) {
+            var contents = blockContents(offset,length);
+            h = cache.insert(fileNumberOffset, filter ? new Block(contents) : new Block(contents,icmp));
+        }
+        return h;
     }
 
 }
@@ -0,0 +1,249 @@
+package lib.leveldb.db;
+
+import java.util.LinkedHashMap;
+
+/**
+ * A BlockCache that admits blocks by how often they are used (W-TinyLFU).
+ * <p>
+ * New blocks enter a small LRU window. A block pushed out of the window only
+ * enters the main space if it has been seen more often than the block it would
+ * replace; access counts are kept, approximately, in a count-min sketch that
+ * also remembers blocks which are no longer cached. The main space is a
+ * segmented LRU: blocks hit again in the probation segment move to the
+ * protected segment, which holds most of the shard.
+ * <p>
+ * A long scan reads each of its blocks once, so its blocks lose to the blocks
+ * that point lookups keep coming back to and only churn the window.
+ */
+class TinyLfuBlockCache extends BlockCache {
+
+    static final int kWindowPercent = 1;
+    static final int kProtectedPercent = 80; // of the main space
+
+    TinyLfuBlockCache(long capacity) {
+        super(capacity);
+    }
+
+    @Override
+    Shard newShard(long capacity) {
+        return new TinyLfuShard(capacity);
+    }
+
+    class TinyLfuShard extends Shard {
+        // lru is the probation segment
+        final LinkedHashMap<Long,Handle> window = new LinkedHashMap<>(16, 0.75f, true);
+        final LinkedHashMap<Long,Handle> protect = new LinkedHashMap<>(16, 0.75f, true);
+        final long windowCapacity;
+        final long mainCapacity;
+        final long protectedCapacity;
+        long windowUsage;
+        long protectedUsage;
+        final FrequencySketch sketch;
+
+        TinyLfuShard(long capacity) {
+            super(capacity);
+            windowCapacity = capacity * kWindowPercent / 100;
+            mainCapacity = capacity - windowCapacity;
+            protectedCapacity = mainCapacity * kProtectedPercent / 100;
+            sketch = new FrequencySketch(capacity / 4096); // about one counter per 4K block
+        }
+
+        @Override
+        Handle get(long key) {
+            sketch.increment(key);
+            var h = window.get(key);
+            if (h == null) {
+                h = protect.get(key);
+            }
+            if (h == null) {
+                h = lru.remove(key);
+                if (h != null) {
+                    promote(h);
+                }
+            }
+            return h;
+        }
+
+        @Override
+        Handle peek(long key) {
+            var h = window.get(key);
+            if (h == null) h = protect.get(key);
+            if (h == null) h = lru.get(key);
+            return h;
+        }
+
+        @Override
+        void add(Handle h) {
+            window.put(h.key,h);
+            windowUsage += h.charge;
+            usage += h.charge;
+        }
+
+        @Override
+        Handle remove(long key) {
+            var h = window.remove(key);
+            if (h != null) {
+                windowUsage -= h.charge;
+            } else if ((h = protect.remove(key)) != null) {
+                protectedUsage -= h.charge;
+            } else {
+                h = lru.remove(key);
+            }
+            if (h != null) usage -= h.charge;
+            return h;
+        }
+
+        // A second hit in probation moves the block to the protected segment;
+        // the protected segment's overflow goes back to probation.
+        void promote(Handle h) {
+            protect.put(h.key,h);
+            protectedUsage += h.charge;
+            var i = protect.values().iterator();
+            while (protectedUsage > protectedCapacity && i.hasNext()) {
+                var d = i.next();
+                i.remove();
+                protectedUsage -= d.charge;
+                lru.put(d.key,d);
+            }
+        }
+
+        long mainUsage() {
+            return usage - windowUsage;
+        }
+
+        // A pinned block stays in the window until it is released, so the
+        // window may run over while scans hold their current blocks.
+        @Override
+        void evict() {
+            var i = window.values().iterator();
+            while (windowUsage > windowCapacity && i.hasNext()) {
+                var candidate = i.next();
+                if (candidate.refs == 0) {
+                    i.remove();
+                    windowUsage -= candidate.charge;
+                    admit(candidate);
+                }
+            }
+            // Pinned blocks may have kept the main space over its capacity;
+            // trim whatever has been released since.
+            while (mainUsage() > mainCapacity) {
+                if (!evictFirst(lru) && !evictFirst(protect)) {
+                    break;
+                }
+            }
+        }
+
+        // Move a block leaving the window into probation, if it is used more
+        // often than the blocks it would push out of the main space.
+        void admit(Handle candidate) {
+            var frequency = sketch.frequency(candidate.key);
+            while (mainUsage() > mainCapacity) {
+                var victim = victim(lru);
+                if (victim == null) victim = victim(protect);
+                if (victim == null) {
+                    break; // everything is pinned
+                }
+                if (sketch.frequency(victim.key) >= frequency) {
+                    evicted(candidate);
+                    return;
+                }
+                if (lru.remove(victim.key) == null) {
+                    protect.remove(victim.key);
+                    protectedUsage -= victim.charge;
+                }
+                evicted(victim);
+            }
+            lru.put(candidate.key,candidate);
+        }
+
+        // The least recently used unpinned block in segment, if any.
+        Handle victim(LinkedHashMap<Long,Handle> segment) {
+            for (var h : segment.values()) {
+                if (h.refs == 0) return h;
+            }
+            return null;
+        }
+
+        boolean evictFirst(LinkedHashMap<Long,Handle> segment) {
+            var h = victim(segment);
+            if (h == null) {
+                return false;
+            }
+            segment.remove(h.key);
+            if (segment == protect) protectedUsage -= h.charge;
+            evicted(h);
+            return true;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters, 16 to a long.
+     * Every counter is halved after a sample of increments so that
+     * the sketch follows changes in what is popular.
+     */
+    static class FrequencySketch {
+
+        static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        static final long kResetMask = 0x7777777777777777L;
+
+        final long[] table;
+        final int sampleSize;
+        int additions;
+
+        FrequencySketch(long entries) {
+            var n = Integer.highestOneBit((int)Math.min(Math.max(entries, 64), 1 << 24) - 1) << 1;
+            table = new long[n];
+            sampleSize = 10 * n;
+        }
+
+        int frequency(long key) {
+            var h = spread(key);
+            var start = (int)(h & 3) << 2;
+            var frequency = 15;
+            for (var i = 0; i < 4; i++) {
+                var count = (int)(table[index(h,i)] >>> ((start + i) << 2)) & 0xf;
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(long key) {
+            var h = spread(key);
+            var start = (int)(h & 3) << 2;
+            var added = false;
+            for (var i = 0; i < 4; i++) {
+                var j = index(h,i);
+                var offset = (start + i) << 2;
+                if (((table[j] >>> offset) & 0xf) != 0xf) {
+                    table[j] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                reset();
+            }
+        }
+
+        void reset() {
+            for (var i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & kResetMask;
+            }
+            additions /= 2;
+        }
+
+        int index(long h, int i) {
+            var x = (h + SEED[i]) * SEED[i];
+            x += x >>> 32;
+            return (int)x & (table.length - 1);
+        }
+
+        static long spread(long key) {
+            // The shard was picked from the high bits of a different hash.
+            var h = key * 0xbf58476d1ce4e5b9L;
+            return h ^ (h >>> 31);
+        }
+    }
+
+}
@@ -37,6 +37,7 @@ class TwoLevelIterator<V> implements Cursor<InternalKey,Slice> {
             if (cursor == null) {
                 if (indexIter.hasNext()) {
                     V arg = indexIter.next();
+                    close(); // done with the previous data block
                     cursor = dataIter.apply(arg);
                 } else {
                     return false;
@@ -46,7 +47,7 @@ class TwoLevelIterator<V> implements Cursor<InternalKey,Slice> {
                 if (cursor.hasNext()) {
                     return true;
                 } else {
-                    cursor = null;
+                    close();
                 }
             }
         }
@@ -65,5 +66,11 @@ class TwoLevelIterator<V> implements Cursor<InternalKey,Slice> {
     @Override public InternalKey getKey() { return cursor.getKey(); }
     @Override public Slice getValue() { return cursor.getValue(); }
 
-    // TODO: handle close(); pass to current cursor
+    @Override
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
 }
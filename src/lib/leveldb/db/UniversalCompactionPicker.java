@@ -0,0 +1,126 @@
+package lib.leveldb.db;
+
+import java.util.ArrayList;
+
+import lib.leveldb.Slice;
+import lib.leveldb.db.Versions.Compaction;
+import static lib.leveldb.db.DbFormat.*;
+
+/**
+ * Universal (size-tiered) compaction: merge sorted runs of similar size
+ * instead of pushing every byte down through each level.
+ * <p>
+ * Each level-0 file is a sorted run, and so is each non-empty level below;
+ * a run at a lower-numbered level always holds newer data than the runs
+ * below it. Flushed memtables stay in level-0. Once level-0 holds
+ * kL0_CompactionTrigger files, all of them are merged together with the
+ * runs below that are no more than sizeRatio percent larger than what has
+ * been merged so far, and the result is written to the level just above
+ * the next older run, leaving the levels above free for the runs to come.
+ * With only kNumLevels-1 levels for runs, a merge that reaches level-1 has
+ * to take level-1 along whatever its size.
+ * <p>
+ * When the newer runs together exceed maxSizeAmplificationPercent of the
+ * oldest run, everything is merged into the last level instead, which
+ * bounds the space taken by overwritten and deleted keys.
+ * <p>
+ * Data is rewritten about once per run it passes through rather than once
+ * per level times the level fan-out, so far less is written than with
+ * leveled compaction, at the cost of more space and of more runs to read.
+ */
+class UniversalCompactionPicker implements CompactionPicker {
+
+    final int sizeRatio;                  // percent
+    final int maxSizeAmplificationPercent;
+
+    UniversalCompactionPicker(int sizeRatio, int maxSizeAmplificationPercent) {
+        this.sizeRatio = sizeRatio;
+        this.maxSizeAmplificationPercent = maxSizeAmplificationPercent;
+    }
+
+    @Override
+    public Compaction pickCompaction(VersionSet vset) {
+        var current = vset.current();
+        var outputLevel = outputLevel(vset, current);
+        if (outputLevel < 0) {
+            return null;
+        }
+        var c = new Compaction(0, outputLevel, vset.maxFileSizeForLevel(outputLevel));
+        c.inputVersion = current;
+        c.inputVersion.ref();
+        var all = new ArrayList<FileMetaData>();
+        for (var level = 0; level <= outputLevel; level++) {
+            c.inputs[level].addAll(current.files[level]);
+            all.addAll(current.files[level]);
+        }
+        var r = Versions.getRange(all, vset.icmp);
+        c.smallest = r[Versions.small];
+        c.largest = r[Versions.large];
+
+        if (vset.conflictsWithCompactions(c)) {
+            c.close();
+            return null;
+        }
+        return c;
+    }
+
+    /**
+     * Return the level the next compaction writes to, merging level-0 and
+     * every level above it; or -1 if level-0 is not full yet.
+     */
+    int outputLevel(VersionSet vset, Version v) {
+        if (v.files[0].size() < kL0_CompactionTrigger) {
+            return -1;
+        }
+        var bytes = new long[kNumLevels];
+        var newer = 0L;  // the bytes in all runs but the oldest
+        var oldest = 0;
+        for (var level = 0; level < kNumLevels; level++) {
+            bytes[level] = vset.totalFileSize(v.files[level]);
+            if (level > 0 && bytes[level] > 0) {
+                newer += bytes[oldest];
+                oldest = level;
+            }
+        }
+        if (oldest > 0 && newer * 100 > bytes[oldest] * maxSizeAmplificationPercent) {
+            return kNumLevels - 1;
+        }
+
+        // Take the next run while it is not much larger than what is merged already.
+        var merged = bytes[0];
+        for (var level = 1; level < kNumLevels; level++) {
+            if (bytes[level] == 0) {
+                continue;
+            }
+            if (level > 1 && bytes[level] * 100 > merged * (100 + sizeRatio)) {
+                return level - 1;
+            }
+            merged += bytes[level];
+        }
+        return kNumLevels - 1;
+    }
+
+    @Override
+    public int levelForMemTableOutput(Version v, Slice smallestUserKey, Slice largestUserKey) {
+        return 0; // a new run
+    }
+
+    @Override
+    public void finalize(VersionSet vset, Version v) {
+        // Only level-0 triggers compactions; the levels below hold one run
+        // each, of whatever size.
+        for (var level = 1; level < kNumLevels; level++) {
+            v.levelScore[level] = 0;
+        }
+        v.compactionLevel = 0;
+        v.compactionScore = v.levelScore[0];
+
+        var outputLevel = outputLevel(vset, v);
+        var neededBytes = 0L;
+        for (var level = 0; level <= outputLevel; level++) {
+            neededBytes += vset.totalFileSize(v.files[level]);
+        }
+        v.compactionNeededBytes = neededBytes;
+    }
+
+}
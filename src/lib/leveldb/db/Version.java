@@ -22,7 +22,7 @@ class Version implements Closeable {
     List<FileMetaData>[] files = repeat(kNumLevels, ArrayList::new); // std::vector<FileMetaData*> files_[config::kNumLevels];
 
     // Next file to compact based on seek stats.
-    FileMetaData fileToCompact;
+    volatile FileMetaData fileToCompact;
     int fileToCompactLevel;
 
     // Level that should be compacted next and its compaction score.
@@ -30,6 +30,11 @@ class Version implements Closeable {
     // These fields are initialized by Finalize().
     double compactionScore;
     int compactionLevel;
+    double[] levelScore = new double[kNumLevels]; // the score of each level
+
+    // Bytes compaction has to rewrite to bring every level under its limit.
+    // Initialized by Finalize().
+    long compactionNeededBytes;
 
     Version(VersionSet vset) {
         this.vset = vset;
@@ -135,11 +140,21 @@ class Version implements Closeable {
      * Returns true if a new compaction may need to be triggered, false otherwise.
      * // REQUIRES: lock is held
      */
+    /**
+     * Charge a seek to the file that was read first; safe without the lock.
+     * Returns true if the file has run out of allowed seeks and
+     * updateStats() should be called under the lock.
+     */
+    boolean chargeSeek(GetStats stats) {
+        var f = stats.seekFile;
+        return f != null && f.allowedSeeks.decrementAndGet() <= 0 && fileToCompact == null;
+    }
+
+    // REQUIRES: lock is held
     boolean updateStats(GetStats stats) {
         var f = stats.seekFile;
         if (f != null) {
-            f.allowedSeeks--;
-            if (f.allowedSeeks <= 0 && fileToCompact == null) {
+            if (f.allowedSeeks.get() <= 0 && fileToCompact == null) {
                 fileToCompact = f;
                 fileToCompactLevel = stats.seekFileLevel;
                 return true;
@@ -227,7 +242,7 @@ class Version implements Closeable {
                 // thrown 'Status' indicates kCorrupt state
                 if (r == null) {
                     stats.state = kNotFound; // case kNotFound:
-                    break; // Keep searching in other files
+                    continue; // Keep searching in other files
                 } else {
                     if (valueType(r.getKey()) == kTypeValue) {
                         stats.state = kFound;
@@ -246,7 +261,7 @@ class Version implements Closeable {
     // static bool NewestFirst(FileMetaData* a, FileMetaData* b) {
     //   return a->number > b->number;
     // }
-    static Comparator<FileMetaData> newestFirst = (a,b) -> (int)( a.number - b.number );
+    static Comparator<FileMetaData> newestFirst = (a,b) -> Long.compare( b.number, a.number );
 
     /**
      * Return the smallest index i such that files[i]->largest >= key.
@@ -287,6 +302,10 @@ class Version implements Closeable {
                 if (overlapInLevel(level+1, smallestUserKey, largestUserKey)) {
                     break;
                 }
+                if (vset.rangeInCompaction(level+1, smallestUserKey, largestUserKey)) {
+                    // A compaction may write into the gap.
+                    break;
+                }
                 if (level+2 < kNumLevels) {
                     // Check that file does not overlap too many grandparent bytes.
                     var overlaps = getOverlappingInputs(level+2,start,limit);
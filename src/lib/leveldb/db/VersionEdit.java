@@ -24,6 +24,7 @@ class VersionEdit {
     static final int kNewFile = 7;
     // 8 was used for large value refs
     static final int kPrevLogNumber = 9;
+    static final int kNewFileWithTime = 10; // kNewFile, then the creation time of the file
 
     String comparator;
     long logNumber;
@@ -109,12 +110,18 @@ class VersionEdit {
     // REQUIRES: This version has not been saved (see VersionSet::SaveTo)
     // REQUIRES: "smallest" and "largest" are smallest and largest keys in file
     void addFile(int level, long file, long fileSize, InternalKey smallest, InternalKey largest) {
+        addFile(level, file, fileSize, smallest, largest, 0);
+    }
+
+    // As above, with the time the file was written in seconds since the Epoch; 0 if unknown.
+    void addFile(int level, long file, long fileSize, InternalKey smallest, InternalKey largest, long creationTime) {
         var f = new FileMetaData();
         f.level = level;
         f.number = file;
         f.fileSize = fileSize;
         f.smallest = smallest;
         f.largest = largest;
+        f.creationTime = creationTime;
         newFiles.add(new Object[]{level,f});
     }
 
@@ -164,12 +171,16 @@ class VersionEdit {
         for (var i = 0; i < newFiles.size(); i++) {
             var newFile = newFiles.get(i);
             var f = (FileMetaData)newFile[second];
-            dst.putVarint32(kNewFile);
+            // Files without a creation time are written as leveldb writes them.
+            dst.putVarint32(f.creationTime != 0 ? kNewFileWithTime : kNewFile);
             dst.putVarint32((int)newFile[first]);  // level
             dst.putVarint64(f.number);
             dst.putVarint64(f.fileSize);
             dst.putLengthPrefixedSlice(encodeInternalKey(f.smallest));
             dst.putLengthPrefixedSlice(encodeInternalKey(f.largest));
+            if (f.creationTime != 0) {
+                dst.putVarint64(f.creationTime);
+            }
         }
 
         return dst.toByteArray();
@@ -227,6 +238,17 @@ class VersionEdit {
               );
               break;
             }
+            case kNewFileWithTime: {
+              addFile(
+                getLevel(input), // level
+                input.getVarint64(), // file
+                input.getVarint64(), // fileSize
+                getInternalKey(input), // smallest
+                getInternalKey(input), // largest
+                input.getVarint64() // creationTime
+              );
+              break;
+            }
             default: throw new Status("unknown tag: "+tag).state(Status.Code.Corruption);
           }
         }
@@ -9,8 +9,10 @@ import java.io.InputStream;
 import java.util.Set;
 import java.util.List;
 import java.util.Map;
+import java.util.ArrayList;
 import java.util.WeakHashMap;
 
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import lib.leveldb.Env;
@@ -33,7 +35,7 @@ import static lib.leveldb.db.FileName.*;
  */
 class VersionSet implements Closeable {
 
-    DbImpl db; // TODO:
+    DbImpl db; // for info logging
     Env env;
     Path dbname;
     //   const Options* const options_;
@@ -45,7 +47,7 @@ class VersionSet implements Closeable {
 
     long nextFileNumber;
     long manifestFileNumber;
-    long lastSequence;
+    volatile long lastSequence; // read without the mutex by get()
     long logNumber;
     long prevLogNumber;  // 0 or backing store for memtable being compacted
 
@@ -60,11 +62,25 @@ class VersionSet implements Closeable {
     // Either an empty string, or a valid InternalKey.
     InternalKey[] compactPointer = new InternalKey[kNumLevels];
 
+    // Picks the compactions for the configured compaction style.
+    CompactionPicker picker = CompactionPicker.leveled;
+
+    // Compactions picked and not yet installed; their inputs are marked beingCompacted.
+    List<Compaction> compactionsInProgress = new ArrayList<>();
+
+    // LogAndApply() releases the mutex while it writes the MANIFEST;
+    // other callers wait here until it is done.
+    boolean manifestWriting;
+    Condition manifestWritten;
+
     VersionSet(Path dbname, Env env) {
         this.dbname = dbname;
         this.env = env;
     }
 
+    VersionSet owner(DbImpl db) {
+        this.db = db; return this;
+    }
     VersionSet comparator(InternalKeyComparator cmp) {
         icmp = cmp; return this;
     }
@@ -77,6 +93,9 @@ class VersionSet implements Closeable {
     VersionSet cache(TableCache cache) {
         tableCache = cache; return this;
     }
+    VersionSet picker(CompactionPicker p) {
+        picker = p; return this;
+    }
 
     // VersionSet::VersionSet(...)
     VersionSet open() {
@@ -341,6 +360,7 @@ class VersionSet implements Closeable {
                 score = (double) levelBytes / maxBytesForLevel(level);
             }
 
+            v.levelScore[level] = score;
             if (score > bestScore) {
                 bestLevel = level;
                 bestScore = score;
@@ -349,6 +369,42 @@ class VersionSet implements Closeable {
 
         v.compactionLevel = bestLevel;
         v.compactionScore = bestScore;
+        v.compactionNeededBytes = estimateCompactionNeededBytes(v);
+        picker.finalize(this, v);
+    }
+
+    // VersionStorageInfo::EstimateCompactionBytesNeeded()
+    long estimateCompactionNeededBytes(Version v) {
+        var neededBytes = 0L;
+
+        // Level-0 is compacted as a whole, along with all of level-1.
+        var levelBytes = totalFileSize(v.files[0]);
+        var toNextLevel = 0L;
+        var level0Triggered =
+            v.files[0].size() >= kL0_CompactionTrigger ||
+            levelBytes >= maxBytesForLevel(1);
+        if (level0Triggered) {
+            neededBytes = levelBytes;
+            toNextLevel = levelBytes;
+        }
+
+        for (var level = 1; level < kNumLevels-1; level++) {
+            levelBytes = totalFileSize(v.files[level]);
+            if (level == 1 && level0Triggered) {
+                neededBytes += levelBytes;
+            }
+            levelBytes += toNextLevel;
+            toNextLevel = 0;
+            var limit = (long) maxBytesForLevel(level);
+            if (levelBytes > limit) {
+                // The excess is merged into the next level;
+                // estimate the fan-out from the size ratio of the two levels.
+                toNextLevel = levelBytes - limit;
+                var nextLevelBytes = totalFileSize(v.files[level+1]);
+                neededBytes += (long)(toNextLevel * ((double)nextLevelBytes / levelBytes + 1));
+            }
+        }
+        return neededBytes;
     }
 
     final void appendVersion(Version v) {
@@ -436,7 +492,7 @@ class VersionSet implements Closeable {
         assert (descriptorLog == null);
         try {
             var descriptorFile = env.newAppendableFile(dscname);
-            descriptorLog = new LogWriter(descriptorFile);
+            descriptorLog = new LogWriter(descriptorFile,env.getFileSize(dscname));
             db.info("Reusing MANIFEST {0}", dscname.toString() );
         }
         catch (IOException r) {
@@ -468,10 +524,27 @@ class VersionSet implements Closeable {
      * Apply *edit to the current version to form a new descriptor that
      * is both saved to persistent state and installed as the new current version.
      * Will release *mu while actually writing to the file.
+     * Concurrent callers are queued, so edits are applied one at a time.
      * // REQUIRES: *mu is held on entry.
-     * // REQUIRES: no other thread concurrently calls LogAndApply()
      */
     void logAndApply(VersionEdit edit, ReentrantLock mu) { // Status LogAndApply(VersionEdit* edit, port::Mutex* mu)
+        if (manifestWritten == null) {
+            manifestWritten = mu.newCondition();
+        }
+        while (manifestWriting) {
+            manifestWritten.awaitUninterruptibly();
+        }
+        manifestWriting = true;
+        try {
+            apply(edit,mu);
+        }
+        finally {
+            manifestWriting = false;
+            manifestWritten.signalAll();
+        }
+    }
+
+    void apply(VersionEdit edit, ReentrantLock mu) {
         if (edit.hasLogNumber) {
             assert (edit.logNumber >= logNumber);
             assert (edit.logNumber < nextFileNumber);
@@ -573,7 +646,7 @@ class VersionSet implements Closeable {
             var files = current.files[level];
             for (var i = 0; i < files.size(); i++) {
                 var f = files.get(i);
-                edit.addFile(level, f.number, f.fileSize, f.smallest, f.largest );
+                edit.addFile(level, f.number, f.fileSize, f.smallest, f.largest, f.creationTime );
             }
         }
 
@@ -642,6 +715,66 @@ class VersionSet implements Closeable {
         return c;
     }
 
+    /**
+     * Record a compaction about to run, so that no other compaction picks its files.
+     */
+    void registerCompaction(Compaction c) {
+        c.markInputs(true);
+        compactionsInProgress.add(c);
+    }
+
+    /**
+     * Forget a compaction that has been installed or has failed.
+     */
+    void unregisterCompaction(Compaction c) {
+        if (compactionsInProgress.remove(c)) {
+            c.markInputs(false);
+        }
+    }
+
+    /**
+     * Returns true iff a compaction in progress reads from or writes to "level"
+     * somewhere in the user key range [smallest,largest].
+     */
+    boolean rangeInCompaction(int level, Slice smallest, Slice largest) {
+        for (var c : compactionsInProgress) {
+            if (c.level() <= level && level <= c.outputLevel() &&
+                overlaps(c, smallest, largest)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true iff c cannot run beside the compactions in progress:
+     * it shares an input file with one of them, both compact level-0,
+     * or both touch a level within the same key range.
+     */
+    boolean conflictsWithCompactions(Compaction c) {
+        for (var which = 0; which < c.numInputLevels(); which++) {
+            for (var f : c.inputs[which]) {
+                if (f.beingCompacted) return true;
+            }
+        }
+        for (var o : compactionsInProgress) {
+            if (c.level() == 0 && o.level() == 0) {
+                return true;
+            }
+            if (c.level() <= o.outputLevel() && o.level() <= c.outputLevel() &&
+                overlaps(o, c.smallest.userKey, c.largest.userKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean overlaps(Compaction c, Slice smallest, Slice largest) {
+        var ucmp = icmp.userComparator;
+        return ucmp.compare(smallest, c.largest.userKey) <= 0 &&
+               ucmp.compare(largest, c.smallest.userKey) >= 0;
+    }
+
     /**
      * Return the maximum overlapping data (in bytes) at next level for any file at a level >= 1.
      */
@@ -4,6 +4,8 @@ import java.io.Closeable;
 
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
@@ -22,44 +24,75 @@ class Versions {
      * Returns NULL if there is no compaction to be done.
      * Otherwise returns a pointer to a heap-allocated object that describes the compaction.
      * Caller should delete the result.
+     * <p>
+     * Files taken by the compactions in progress are skipped, and so is any
+     * compaction that would conflict with one of them; the caller registers
+     * the compaction returned before it picks another.
      */
     static Compaction pickCompaction(VersionSet vset) { // Compaction* VersionSet::PickCompaction() {
-        Compaction c;
-        int level;
-
         // We prefer compactions triggered by too much data in a level
         // over the compactions triggered by seeks.
         var current = vset.current();
-        var sizeCompaction = (current.compactionScore >= 1);
-        var seekCompaction = (current.fileToCompact != null);
-        if (sizeCompaction) {
-            level = current.compactionLevel;
-            assert (level >= 0);
-            assert (level+1 < kNumLevels);
-            c = new Compaction(level,vset.maxFileSizeForLevel(level));
-
-            // Pick the first file that comes after compact_pointer_[level]
-            for (var i = 0; i < current.files[level].size(); i++) {
-                var f = current.files[level].get(i);
-                if (vset.compactPointer[level] == null ||
-                    vset.icmp.compare(f.largest, vset.compactPointer[level]) > 0)
-                {
-                    c.inputs[0].add(f);
-                    break;
-                }
+        for (var level : levelsByScore(current)) {
+            var c = pickSizeCompaction(vset, current, level);
+            if (c != null) {
+                return c;
             }
-            if (c.inputs[0].isEmpty()) {
-                // Wrap-around to the beginning of the key space
-                c.inputs[0].add(current.files[level].get(0));
+        }
+        var f = current.fileToCompact;
+        if (f != null && !f.beingCompacted) {
+            var c = newCompaction(vset, current, current.fileToCompactLevel, f);
+            if (c != null) {
+                return c;
             }
-        } else if (seekCompaction) {
-            level = current.fileToCompactLevel;
-            c = new Compaction(level,vset.maxFileSizeForLevel(level));
-            c.inputs[0].add(current.fileToCompact);
-        } else {
+        }
+        return null;
+    }
+
+    // The levels whose score is >= 1, highest score first.
+    static List<Integer> levelsByScore(Version v) {
+        var levels = new ArrayList<Integer>();
+        for (var level = 0; level < kNumLevels-1; level++) {
+            if (v.levelScore[level] >= 1) levels.add(level);
+        }
+        levels.sort((a,b) -> Double.compare(v.levelScore[b], v.levelScore[a]));
+        return levels;
+    }
+
+    static Compaction pickSizeCompaction(VersionSet vset, Version current, int level) {
+        assert (level >= 0);
+        assert (level+1 < kNumLevels);
+        var files = current.files[level];
+        if (files.isEmpty()) {
             return null;
         }
+        // Pick the first file that comes after compact_pointer_[level],
+        // wrapping around to the beginning of the key space.
+        var start = 0;
+        if (vset.compactPointer[level] != null) {
+            while (start < files.size() &&
+                   vset.icmp.compare(files.get(start).largest, vset.compactPointer[level]) <= 0) {
+                start++;
+            }
+        }
+        for (var n = 0; n < files.size(); n++) {
+            var f = files.get((start + n) % files.size());
+            if (f.beingCompacted) {
+                continue;
+            }
+            var c = newCompaction(vset, current, level, f);
+            if (c != null || level == 0) {
+                return c; // level-0 compactions run one at a time
+            }
+        }
+        return null;
+    }
 
+    // Build the compaction of file f at level, or return NULL if it conflicts
+    // with a compaction in progress.
+    static Compaction newCompaction(VersionSet vset, Version current, int level, FileMetaData f) {
+        var c = new Compaction(level,vset.maxFileSizeForLevel(level));
+        c.inputs[0].add(f);
         c.inputVersion = current;
         c.inputVersion.ref();
 
@@ -73,8 +106,15 @@ class Versions {
             assert (!c.inputs[0].isEmpty());
         }
 
+        var compactPointer = vset.compactPointer[level];
         c.setupOtherInputs(vset); // SetupOtherInputs(c);
 
+        if (vset.conflictsWithCompactions(c)) {
+            // Leave compact_pointer_ where it was for the next try.
+            vset.compactPointer[level] = compactPointer;
+            c.close();
+            return null;
+        }
         return c;
     }
 
@@ -121,12 +161,14 @@ class Versions {
   static class Compaction implements Closeable {
 
     int level;
+    int outputLevel;
     long maxOutputFileSize;
     Version inputVersion;
     VersionEdit edit = new VersionEdit();
 
-    // Each compaction reads inputs from "level_" and "level_+1"
-    List<FileMetaData>[] inputs; // The two sets of inputs
+    // Each compaction reads inputs from "level_" and "level_+1";
+    // a universal compaction reads every level down to its output level.
+    List<FileMetaData>[] inputs; // The two sets of inputs; inputs[which] are at level_+which
     // std::vector<FileMetaData*> inputs_[2];
 
     // State used to check for number of of overlapping grandparent files
@@ -146,8 +188,20 @@ class Versions {
     // (i.e. for all L >= level_ + 2).
     int[] levelPtrs = new int[kNumLevels];
 
+    // The key range of all inputs; set by SetupOtherInputs()
+    InternalKey smallest, largest;
+
+    // Set when the inputs are only dropped, not merged (FIFO compaction)
+    boolean deletion;
+
     Compaction(int level, long maxOutputFileSize) { // const Options* options, int level)
+        this(level, level + 1, maxOutputFileSize);
+    }
+
+    Compaction(int level, int outputLevel, long maxOutputFileSize) {
+        assert (outputLevel > level && outputLevel < kNumLevels);
         this.level = level; //     : level_(level),
+        this.outputLevel = outputLevel;
         this.maxOutputFileSize = maxOutputFileSize; //  max_output_file_size_(MaxFileSizeForLevel(options, level)),
         inputVersion = null; //       input_version_(NULL),
         grandparentIndex = 0; //       grandparent_index_(0),
@@ -156,7 +210,10 @@ class Versions {
         for (var i = 0; i < kNumLevels; i++) {
             levelPtrs[i] = 0;
         }
-        inputs = new List[]{ new ArrayList<>(), new ArrayList<>()};
+        inputs = new List[outputLevel - level + 1];
+        for (var which = 0; which < inputs.length; which++) {
+            inputs[which] = new ArrayList<>();
+        }
         grandparents = new ArrayList<>();
     }
 
@@ -171,13 +228,22 @@ class Versions {
     // Inputs from "level" and "level+1" will be merged to produce a set of "level+1" files.
     int level() { return level; }
 
+    // Return the level the outputs are written to; level()+1 but for universal compactions.
+    int outputLevel() { return outputLevel; }
+
+    // The number of levels read, from level() to outputLevel().
+    int numInputLevels() { return inputs.length; }
+
+    // Is this a compaction that deletes its inputs and writes nothing?
+    boolean isDeletion() { return deletion; }
+
     // Return the object that holds the edits to the descriptor done by this compaction.
     VersionEdit edit() { return edit; }
 
-    // "which" must be either 0 or 1
+    // "which" must be less than numInputLevels()
     int numInputFiles(int which) { return inputs[which].size(); }
 
-    // Return the ith input file at "level()+which" ("which" must be 0 or 1).
+    // Return the ith input file at "level()+which".
     FileMetaData input(int which, int i) { return inputs[which].get(i); }
 
     // Maximum size of files to build during this compaction.
@@ -190,14 +256,14 @@ class Versions {
         // Avoid a move if there is lots of overlapping grandparent data.
         // Otherwise, the move could create a parent file
         //    that will require a very expensive merge later on.
-        return (numInputFiles(0) == 1 && numInputFiles(1) == 0 &&
+        return (numInputFiles(0) == 1 && numInputFiles(1) == 0 && numInputLevels() == 2 &&
                 vset.totalFileSize(grandparents) <=
                     vset.maxGrandParentOverlapBytes());
     }
 
     // Add all inputs to this compaction as delete operations to *edit.
     void addInputDeletions(VersionEdit edit) {
-        for (var which = 0; which < 2; which++) {
+        for (var which = 0; which < inputs.length; which++) {
             for (var i = 0; i < inputs[which].size(); i++) {
                 edit.deleteFile(level + which, inputs[which].get(i).number);
             }
@@ -209,7 +275,7 @@ class Versions {
     boolean isBaseLevelForKey(Slice userKey) {
         // Maybe use binary search to find right entry instead of linear search?
         var userCmp = inputVersion.vset.icmp.userComparator;
-        for (var lvl = level + 2; lvl < kNumLevels; lvl++) {
+        for (var lvl = outputLevel + 1; lvl < kNumLevels; lvl++) {
             var files = inputVersion.files[lvl];
             while (levelPtrs[lvl] < files.size()) {
                 var f = files.get(levelPtrs[lvl]);
@@ -251,6 +317,31 @@ class Versions {
         }
     }
 
+    // A copy that shares the inputs and the edit of this compaction, with its own state
+    // for ShouldStopBefore() and IsBaseLevelForKey(); for a subcompaction that runs
+    // over part of the key range on another thread. It holds no reference of its own
+    // to the input version.
+    Compaction subcompaction() {
+        var c = new Compaction(level,outputLevel,maxOutputFileSize);
+        c.inputVersion = inputVersion;
+        c.edit = edit;
+        c.inputs = inputs;
+        c.grandparents = grandparents;
+        c.smallest = smallest;
+        c.largest = largest;
+        return c;
+    }
+
+    // Mark the inputs as taken by this compaction, or release them.
+    // REQUIRES: mutex_ is held
+    void markInputs(boolean beingCompacted) {
+        for (var which = 0; which < inputs.length; which++) {
+            for (var f : inputs[which]) {
+                f.beingCompacted = beingCompacted;
+            }
+        }
+    }
+
     // Release the input version for the compaction, once the compaction is successful.
     void releaseInputs() {
         if (inputVersion != null) {
@@ -314,6 +405,8 @@ class Versions {
             grandparents =
                 current.getOverlappingInputs(lvl + 2, all_start, all_limit);
         }
+        this.smallest = all_start;
+        this.largest = all_limit;
 
         // Update the place where we will do the next compaction for this level.
         // We update this immediately instead of waiting for the VersionEdit
@@ -328,32 +421,51 @@ class Versions {
      * The caller should delete the iterator when no longer needed.
      */
     Cursor<InternalKey,Slice> makeInputIterator(VersionSet vset) { // Iterator* MakeInputIterator(Compaction* c);
+        return makeInputIterator(vset,null,null);
+    }
+
+    /**
+     * Create an iterator over the inputs whose user keys are in [begin,end);
+     * NULL means an open end. Every version of a user key falls in the same range.
+     */
+    Cursor<InternalKey,Slice> makeInputIterator(VersionSet vset, Slice begin, Slice end) {
         // ReadOptions options;
         // options.verify_checksums = options_->paranoid_checks;
         var fillCache = false;
+        var ucmp = vset.icmp.userComparator;
+        var start = (begin != null) ? internalKey(begin,kMaxSequenceNumber,kValueTypeForSeek) : null;
 
         // Level-0 files have to be merged together.
         // For other levels, we will make a concatenating iterator per level.
         // TODO(opt): use concatenating iterator for level-0 if there is no overlap
 
-        var space = (level() == 0 ? inputs[0].size() + 1 : 2);
+        var space = (level() == 0 ? inputs[0].size() + inputs.length - 1 : inputs.length);
         Cursor<InternalKey,Slice>[] list = new Cursor[space];
         var num = 0;
-        for (var which = 0; which < 2; which++) {
-            if (!inputs[which].isEmpty()) {
+        for (var which = 0; which < inputs.length; which++) {
+            var files = inputs[which];
+            if (begin != null || end != null) {
+                files = new ArrayList<>();
+                for (var f : inputs[which]) {
+                    if ((begin == null || ucmp.compare(f.largest.userKey,begin) >= 0) &&
+                        (end == null || ucmp.compare(f.smallest.userKey,end) < 0)) {
+                        files.add(f);
+                    }
+                }
+            }
+            if (!files.isEmpty()) {
                 if (level() + which == 0) {
-                    var files = inputs[which];
                     for (var i = 0; i < files.size(); i++) {
                         var f = files.get(i);
-                        list[num++] = vset.tableCache.newIterator(f.number,f.fileSize,fillCache);
+                        list[num++] = vset.tableCache.newIterator(f.number,f.fileSize,fillCache,start);
                         // list[num++] = table_cache_->NewIterator(
                         //     options, files[i]->number, files[i]->file_size);
                     }
                 } else {
                     // Create concatenating iterator for the files from this level
                     list[num++] = new TwoLevelIterator<>(
-                        inputs[which].iterator(),
-                        (FileMetaData f) -> vset.tableCache.newIterator(f.number,f.fileSize,fillCache)
+                        files.iterator(),
+                        (FileMetaData f) -> vset.tableCache.newIterator(f.number,f.fileSize,fillCache,start)
                     );
                     // list[num++] = NewTwoLevelIterator(
                     //     new Version::LevelFileNumIterator(icmp_, &c->inputs_[which]),
@@ -365,7 +477,39 @@ class Versions {
         var result = MergingIterator.of(vset.icmp, list, num);
         // Iterator* result = NewMergingIterator(&icmp_, list, num);
         // delete[] list;
-        return result;
+        return (begin != null || end != null) ? range(result,begin,end,ucmp) : result;
+    }
+
+    // Skip the keys before begin, and stop at end.
+    static Cursor<InternalKey,Slice> range(Cursor<InternalKey,Slice> input, Slice begin, Slice end, Comparator<Slice> ucmp) {
+        return new Cursor<InternalKey,Slice>() {
+            boolean ready, done;
+
+            @Override
+            public boolean hasNext() {
+                while (!ready && !done && input.hasNext()) {
+                    input.next();
+                    var u = input.getKey().userKey;
+                    if (end != null && ucmp.compare(u,end) >= 0) {
+                        done = true;
+                    } else if (begin == null || ucmp.compare(u,begin) >= 0) {
+                        ready = true;
+                    }
+                }
+                return ready;
+            }
+            @Override
+            public Entry<InternalKey,Slice> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                ready = false;
+                return this;
+            }
+
+            @Override public InternalKey getKey() { return input.getKey(); }
+            @Override public Slice getValue() { return input.getValue(); }
+
+            @Override public void close() { input.close(); }
+        };
     }
 
     //  Iterator* GetFileIterator(void* arg,
@@ -503,8 +647,9 @@ class Versions {
             // We are a little conservative and allow approximately one seek for every 16KB
             // of data before triggering a compaction.
 
-            f.allowedSeeks = (int)(f.fileSize / 16384);
-            if (f.allowedSeeks < 100) f.allowedSeeks = 100;
+            var allowedSeeks = (int)(f.fileSize / 16384);
+            if (allowedSeeks < 100) allowedSeeks = 100;
+            f.allowedSeeks.set(allowedSeeks);
 
             levels[level].deletedFiles.remove(f.number);
             levels[level].addedFiles.add(f);
@@ -0,0 +1,138 @@
+package lib.leveldb.db;
+
+import static lib.leveldb.db.DbFormat.*;
+
+/**
+ * Paces the write path to what compaction can keep up with (db/write_controller.cc).
+ *
+ * The stall condition is recalculated whenever a new version is installed.
+ * Memtable switches are stopped when level-0 is full or the compaction debt passes the hard limit,
+ * and writes are delayed when level-0 reaches the slowdown trigger or the debt passes the soft limit.
+ * A delayed write draws its size from a token bucket refilled at the delayed write rate;
+ * the rate is lowered while the debt keeps growing and raised again as it shrinks.
+ *
+ * REQUIRES: mutex_ is held for all methods
+ */
+class WriteController {
+
+    static final long kMinWriteRate = 16 << 10;  // Never throttle below 16KB/s
+    static final long kMicrosPerRefill = 1000;
+
+    static final double kIncSlowdownRatio = 0.8;
+    static final double kDecSlowdownRatio = 1 / kIncSlowdownRatio;
+    static final double kNearStopSlowdownRatio = 0.6;
+
+    final long maxDelayedWriteRate;
+    final long softPendingCompactionBytesLimit;
+    final long hardPendingCompactionBytesLimit;
+
+    // Level-0 file counts at which writes are delayed and stopped
+    int l0SlowdownWritesTrigger = kL0_SlowdownWritesTrigger;
+    int l0StopWritesTrigger = kL0_StopWritesTrigger;
+
+    // Version the stall condition was last calculated for
+    Version version;
+    long compactionNeededBytes;
+
+    boolean stopped;
+    long delayedWriteRate;  // bytes per second; zero while writes are not delayed
+
+    // Token bucket
+    long credit;            // bytes that may be written without a delay
+    long nextRefillTime;    // micros
+
+    WriteController(long delayedWriteRate, long softLimit, long hardLimit) {
+        this.maxDelayedWriteRate = delayedWriteRate;
+        this.softPendingCompactionBytesLimit = softLimit;
+        this.hardPendingCompactionBytesLimit = hardLimit;
+    }
+
+    WriteController level0Triggers(int slowdown, int stop) {
+        l0SlowdownWritesTrigger = slowdown;
+        l0StopWritesTrigger = stop;
+        return this;
+    }
+
+    boolean stopped() {
+        return stopped;
+    }
+
+    boolean delayed() {
+        return delayedWriteRate > 0;
+    }
+
+    /**
+     * Recalculate the stall condition if "v" is not the version it was last calculated for.
+     */
+    void update(Version v) {
+        if (v == version) {
+            return;
+        }
+        version = v;
+        var l0Files = v.files[0].size();
+        var neededBytes = v.compactionNeededBytes;
+
+        stopped = l0Files >= l0StopWritesTrigger ||
+                  (hardPendingCompactionBytesLimit > 0 &&
+                   neededBytes >= hardPendingCompactionBytesLimit);
+
+        // A stop only holds back the next memtable switch, so writes
+        // that still fit in the memtable are paced as well.
+        if (stopped ||
+            l0Files >= l0SlowdownWritesTrigger ||
+            (softPendingCompactionBytesLimit > 0 &&
+             neededBytes >= softPendingCompactionBytesLimit)) {
+            double rate = delayedWriteRate;
+            if (rate == 0) {
+                rate = maxDelayedWriteRate;  // Start at the configured rate
+                credit = 0;
+                nextRefillTime = 0;
+            } else if (l0Files >= l0StopWritesTrigger - 2) {
+                // Close to a full stop; back off harder.
+                rate *= kNearStopSlowdownRatio;
+            } else if (neededBytes > compactionNeededBytes) {
+                // Compaction is still falling behind.
+                rate *= kIncSlowdownRatio;
+            } else if (neededBytes < compactionNeededBytes) {
+                // Compaction is catching up.
+                rate *= kDecSlowdownRatio;
+            }
+            delayedWriteRate = Math.max(kMinWriteRate, Math.min(maxDelayedWriteRate, (long)rate));
+        } else {
+            delayedWriteRate = 0;
+        }
+        compactionNeededBytes = neededBytes;
+    }
+
+    /**
+     * Return the number of micros a write of "bytes" should be delayed.
+     */
+    long getDelay(long now, long bytes) {
+        if (!delayed()) {
+            return 0;
+        }
+        if (credit >= bytes) {
+            credit -= bytes;
+            return 0;
+        }
+        // Refill the bucket at most once per kMicrosPerRefill.
+        if (nextRefillTime == 0) {
+            nextRefillTime = now;
+        }
+        if (nextRefillTime <= now) {
+            var elapsed = now - nextRefillTime + kMicrosPerRefill;
+            credit += (long)(elapsed / 1e6 * delayedWriteRate + 0.999999);
+            nextRefillTime = now + kMicrosPerRefill;
+            if (credit >= bytes) {
+                credit -= bytes;
+                return 0;
+            }
+        }
+        // Borrow against the next refill.
+        var neededDelay = (long)((double)(bytes - credit) / delayedWriteRate * 1e6);
+        credit = 0;
+        nextRefillTime += neededDelay;
+        return Math.max(nextRefillTime - now, kMicrosPerRefill);
+    }
+
+}
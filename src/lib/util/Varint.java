@@ -45,7 +45,7 @@ public interface Varint {
 
     static int width(long l) {
         if (l < 0) l = ((l << 1) >>> 1);
-        return 9 - ((Long.numberOfLeadingZeros(l)-1)/7);
+        return 9 - ((Long.numberOfLeadingZeros(l|1)-1)/7); // a zero still takes one byte
     }
 
 }
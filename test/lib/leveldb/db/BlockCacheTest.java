@@ -0,0 +1,257 @@
+package lib.leveldb.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import lib.leveldb.Slice;
+
+public class BlockCacheTest {
+
+    static Block block(int size) {
+        // An empty block: all zeros, so the restart count is zero.
+        return new Block(new Slice(new byte[size]), null);
+    }
+
+    // Keys that land in the same shard as key 0.
+    static long[] sameShard(BlockCache cache, int n) {
+        var keys = new ArrayList<Long>();
+        var shard = cache.shard(0);
+        for (var k = 0L; keys.size() < n; k++) {
+            if (cache.shard(k) == shard) keys.add(k);
+        }
+        return keys.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    @Test
+    public void BlockCacheTest_HitAndMiss() {
+        var cache = new BlockCache(1 << 20);
+        assertNull(cache.lookup(100));
+        var b = block(40);
+        cache.release(cache.insert(100, b));
+        var h = cache.lookup(100);
+        assertSame(b, h.block);
+        cache.release(h);
+        assertEquals(1, cache.hits.sum());
+        assertEquals(1, cache.misses.sum());
+        assertEquals(1, cache.inserts.sum());
+        assertEquals(40, cache.usage());
+        assertEquals(0, cache.pinnedUsage());
+    }
+
+    @Test
+    public void BlockCacheTest_EvictByCharge() {
+        var cache = new BlockCache(100 << BlockCache.kNumShardBits);
+        var k = sameShard(cache, 3);
+        for (var key : k) {
+            cache.release(cache.insert(key, block(40)));
+        }
+        // 120 bytes in a 100 byte shard: the least recently used block goes.
+        assertNull(cache.lookup(k[0]));
+        assertEquals(1, cache.evictions.sum());
+        assertEquals(80, cache.usage());
+    }
+
+    @Test
+    public void BlockCacheTest_PinnedNotEvicted() {
+        var cache = new BlockCache(100 << BlockCache.kNumShardBits);
+        var k = sameShard(cache, 4);
+        var pinned = cache.insert(k[0], block(40));
+        cache.release(cache.insert(k[1], block(40)));
+        cache.release(cache.insert(k[2], block(40)));
+        assertEquals(40, cache.pinnedUsage());
+
+        // k[0] is older but pinned, so k[1] is evicted instead.
+        var h = cache.lookup(k[0]);
+        assertNotNull(h);
+        cache.release(h);
+        assertNull(cache.lookup(k[1]));
+
+        // Once released, eviction is back to plain LRU order.
+        cache.release(pinned);
+        assertEquals(0, cache.pinnedUsage());
+        cache.release(cache.insert(k[3], block(40)));
+        assertNull(cache.lookup(k[2]));
+    }
+
+    // Read each key once, as a scan with fillCache set would.
+    static void scan(BlockCache cache, long[] keys) {
+        for (var key : keys) {
+            var h = cache.lookup(key);
+            if (h == null) h = cache.insert(key, block(40));
+            cache.release(h);
+        }
+    }
+
+    static int cached(BlockCache cache, long[] keys) {
+        var n = 0;
+        for (var key : keys) {
+            var h = cache.lookup(key);
+            if (h != null) {
+                cache.release(h);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void BlockCacheTest_TinyLfuScanResistant() {
+        var lru = new BlockCache(1000 << BlockCache.kNumShardBits);
+        var lfu = new TinyLfuBlockCache(1000 << BlockCache.kNumShardBits);
+        for (var cache : new BlockCache[] { lru, lfu }) {
+            var k = sameShard(cache, 210);
+            var hot = Arrays.copyOfRange(k, 0, 10);
+            var cold = Arrays.copyOfRange(k, 10, 210);
+            for (var i = 0; i < 3; i++) scan(cache, hot);
+            scan(cache, cold);
+            assertTrue(cache.usage() <= 1000);
+            assertEquals(cache == lfu ? 10 : 0, cached(cache, hot));
+        }
+    }
+
+    @Test
+    public void BlockCacheTest_TinyLfuPinnedStaysInWindow() {
+        var cache = new TinyLfuBlockCache(1000 << BlockCache.kNumShardBits);
+        var k = sameShard(cache, 40);
+        var pinned = cache.insert(k[0], block(40));
+        scan(cache, Arrays.copyOfRange(k, 1, 40));
+        assertSame(pinned, cache.lookup(k[0]));
+        cache.release(pinned);
+        cache.release(pinned);
+        assertEquals(0, cache.pinnedUsage());
+        assertTrue(cache.usage() <= 1000);
+    }
+
+    @Test
+    public void BlockCacheTest_SecondaryCache() {
+        var cache = new BlockCache(100 << BlockCache.kNumShardBits)
+            .secondary(new CompressedBlockCache(1 << 20));
+        var k = sameShard(cache, 3);
+        for (var key : k) {
+            cache.release(cache.insert(key, block(40)));
+        }
+        // The evicted block is kept compressed below the primary cache.
+        assertNull(cache.lookup(k[0]));
+        var contents = cache.promote(k[0]);
+        assertNotNull(contents);
+        assertArrayEquals(new byte[40], Arrays.copyOfRange(contents.data, contents.offset, contents.offset + contents.length));
+        assertEquals(1, cache.secondary.inserts.sum());
+        assertTrue(cache.secondary.usage() < 40);
+        assertNull(cache.promote(k[1]));
+    }
+
+    @Test
+    public void BlockCacheTest_SecondaryCacheWraps() {
+        // One 100 byte slab per shard; random bytes do not compress.
+        var secondary = new CompressedBlockCache(100 << BlockCache.kNumShardBits);
+        var k = sameShard(new BlockCache(0), 3);
+        var random = new Random(301);
+        for (var key : k) {
+            var b = new byte[40];
+            random.nextBytes(b);
+            secondary.insert(key, new Slice(b));
+        }
+        // The third block does not fit, so the slab is cleared for it.
+        assertNull(secondary.lookup(k[0]));
+        assertNull(secondary.lookup(k[1]));
+        assertNotNull(secondary.lookup(k[2]));
+        assertEquals(2, secondary.evictions.sum());
+        assertEquals(40, secondary.usage());
+    }
+
+    @Test
+    public void BlockCacheTest_EraseFile() {
+        var cache = new TinyLfuBlockCache(1 << 20).secondary(new CompressedBlockCache(1 << 20));
+        for (var offset = 0; offset < 400; offset += 40) {
+            cache.release(cache.insert(TableFile.cacheKey(7,offset), block(40)));
+            cache.release(cache.insert(TableFile.cacheKey(8,offset), block(40)));
+        }
+        cache.secondary.insert(TableFile.cacheKey(7,400), new Slice(new byte[40]));
+        var pinned = cache.lookup(TableFile.cacheKey(7,0));
+
+        cache.eraseFile(7);
+        for (var offset = 0; offset < 400; offset += 40) {
+            assertNull(cache.lookup(TableFile.cacheKey(7,offset)));
+            var h = cache.lookup(TableFile.cacheKey(8,offset));
+            assertNotNull(h);
+            cache.release(h);
+        }
+        assertNull(cache.promote(TableFile.cacheKey(7,400)));
+        assertEquals(400, cache.usage());
+
+        // A block pinned when it was erased is still readable until released.
+        assertNotNull(pinned.block);
+        cache.release(pinned);
+        assertEquals(0, cache.pinnedUsage());
+
+        cache.erase(TableFile.cacheKey(8,0));
+        assertNull(cache.lookup(TableFile.cacheKey(8,0)));
+        assertEquals(360, cache.usage());
+    }
+
+
+    // Blocks in the file index of each shard.
+    static int indexed(BlockCache cache) {
+        var n = 0;
+        for (var s : cache.shards) {
+            for (var keys : s.files.values()) n += keys.size();
+        }
+        return n;
+    }
+
+    static int indexed(CompressedBlockCache cache) {
+        var n = 0;
+        for (var s : cache.shards) {
+            for (var keys : s.files.values()) n += keys.size();
+        }
+        return n;
+    }
+
+    // Blocks of the given files that can still be found here and in the secondary cache.
+    static int[] cached(BlockCache cache, int... files) {
+        var found = new int[2];
+        for (var f : files) {
+            for (var offset = 0; offset < 4000; offset += 40) {
+                var key = TableFile.cacheKey(f,offset);
+                var h = cache.lookup(key);
+                if (h != null) {
+                    found[0]++;
+                    cache.release(h);
+                }
+                if (cache.promote(key) != null) found[1]++;
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void BlockCacheTest_EraseFileAfterEvictions() {
+        for (var cache : new BlockCache[] { new BlockCache(6400), new TinyLfuBlockCache(6400) }) {
+            cache.secondary(new CompressedBlockCache(64000));
+            for (var offset = 0; offset < 4000; offset += 40) {
+                for (var f = 1; f <= 4; f++) {
+                    cache.release(cache.insert(TableFile.cacheKey(f,offset), block(40)));
+                }
+            }
+            assertTrue(cache.evictions.sum() > 0);
+
+            // The index follows evictions in both tiers.
+            var found = cached(cache, 1, 2, 3, 4);
+            assertEquals(found[0], indexed(cache));
+            assertEquals(found[1], indexed(cache.secondary));
+            assertTrue(cached(cache, 2)[0] + cached(cache, 2)[1] > 0);
+
+            cache.eraseFile(2);
+            assertArrayEquals(new int[] { 0, 0 }, cached(cache, 2));
+            found = cached(cache, 1, 3, 4);
+            assertEquals(found[0], indexed(cache));
+            assertEquals(found[1], indexed(cache.secondary));
+            assertEquals(found[0] * 40, cache.usage());
+        }
+    }
+
+}
@@ -131,9 +131,11 @@ public class CodingTest {
         }
         ByteDecoder p = data(s);
         for (int i = 0; i < values.size(); i++) {
+            int start = p.position();
             long actual;
             actual = p.getVarint64();
             assertEquals(values.get(i).longValue(), actual);
+            assertEquals(Varint.width(actual), p.position() - start);
         }
         assertEquals(0,p.remaining());
     }
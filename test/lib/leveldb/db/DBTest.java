@@ -0,0 +1,789 @@
+package lib.leveldb.db;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import lib.leveldb.DB;
+import lib.leveldb.Slice;
+import static lib.leveldb.db.DbFormat.*;
+import static lib.leveldb.db.TestUtil.*;
+
+public class DBTest {
+
+    Path dbname;
+    Factory.Options options;
+    TestEnv env;
+    DbImplBg impl;
+    DB db;
+
+    DB.Builder options() {
+        env = new TestEnv();
+        return new Factory().newBuilder().env(env).compression(DB.CompressionType.NoCompression);
+    }
+
+    // Open the DB behind "db", keeping hold of its implementation.
+    DB open(DB.Builder b) throws Exception {
+        if (dbname == null) {
+            dbname = Files.createTempDirectory("db_test");
+        }
+        options = ((Factory.Builder) b).o;
+        options.createIfMissing = true;
+        impl = new DbImplBg();
+        Factory.sanitizeOptions(impl, dbname, options);
+        impl.open();
+        return db = Factory.stub(impl);
+    }
+
+    DB reopen() throws Exception {
+        db.close();
+        var o = options;
+        impl = new DbImplBg();
+        Factory.sanitizeOptions(impl, dbname, o);
+        impl.open();
+        return db = Factory.stub(impl);
+    }
+
+    void destroy() throws Exception {
+        db.close();
+        env.shutdown();
+        // Every file goes, the info logs of earlier opens too.
+        try (var files = Files.list(dbname)) {
+            for (var f : files.toList()) Files.delete(f);
+        }
+        Files.delete(dbname);
+        dbname = null;
+    }
+
+    // Runs background work on pools of its own, rather than the ones FileEnv
+    // shares across databases, and counts the tasks scheduled to the LOW pool.
+    static class TestEnv extends FileEnv {
+        ThreadPoolExecutor low = singleThreadExecutor("db_test-bg");
+        ThreadPoolExecutor high = singleThreadExecutor("db_test-flush");
+        AtomicInteger lowTasks = new AtomicInteger();
+
+        ThreadPoolExecutor pool(Priority pri) {
+            return (pri == Priority.HIGH) ? high : low;
+        }
+
+        @Override
+        public Future<?> schedule(Runnable task) {
+            return schedule(task, Priority.LOW);
+        }
+
+        @Override
+        public Future<?> schedule(Runnable task, Priority pri) {
+            if (pri == Priority.LOW) lowTasks.incrementAndGet();
+            return pool(pri).submit(task);
+        }
+
+        @Override
+        public void setBackgroundThreads(int number, Priority pri) {
+            var e = pool(pri);
+            synchronized (e) {
+                if (number > e.getMaximumPoolSize()) {
+                    e.setMaximumPoolSize(number);
+                    e.setCorePoolSize(number);
+                }
+            }
+        }
+
+        void shutdown() {
+            low.shutdown();
+            high.shutdown();
+        }
+    }
+
+    // Leveled compaction, but every flush stays in level-0, where the tests compact it from.
+    void keepFlushesInLevel0() {
+        impl.versions.picker(new CompactionPicker() {
+            @Override
+            public Versions.Compaction pickCompaction(VersionSet vset) {
+                return Versions.pickCompaction(vset);
+            }
+            @Override
+            public int levelForMemTableOutput(Version v, Slice smallestUserKey, Slice largestUserKey) {
+                return 0;
+            }
+        });
+    }
+
+    // The entries stored for "k" in the memtables and tables, newest first.
+    List<String> internalEntries(String k) {
+        DbImpl.IterState state;
+        impl.mutex.lock();
+        try (impl.mutex) {
+            state = impl.newInternalIterator(false);
+        }
+        var entries = new ArrayList<String>();
+        try (var c = state.iter) {
+            while (c.hasNext()) {
+                c.next();
+                var ikey = c.getKey();
+                if (s(ikey.userKey).equals(k)) {
+                    entries.add(sequenceNumber(ikey) + (valueType(ikey) == kTypeValue ? ":" + s(c.getValue()) : ":del"));
+                }
+            }
+        }
+        return entries;
+    }
+
+    static String key(int i) {
+        return String.format("key%06d", i);
+    }
+
+    String get(String k) {
+        var v = db.get(s(k));
+        return (v != null) ? s(v) : null;
+    }
+
+    String get(String k, DB.Snapshot snapshot) {
+        var v = db.get(s(k), snapshot);
+        return (v != null) ? s(v) : null;
+    }
+
+    @Test
+    public void DBTest_DelayChargesWholeGroup() throws Exception {
+        for (var pipelined : new boolean[] { false, true }) {
+            open(options().pipelinedWrite(pipelined));
+
+            // Keep writes delayed, and hold each leader long enough for followers to queue up.
+            var charged = new AtomicLong();
+            impl.writeController = new WriteController(1 << 20, 0, 0) {
+                @Override void update(Version v) { delayedWriteRate = 1 << 20; }
+                @Override long getDelay(long now, long bytes) { charged.addAndGet(bytes); return 2000; }
+            };
+
+            var threads = new ArrayList<Thread>();
+            var written = new AtomicLong();
+            for (var t = 0; t < 8; t++) {
+                var id = t;
+                threads.add(new Thread(() -> {
+                    for (var i = 0; i < 200; i++) {
+                        var b = impl.batch();
+                        b.put(s(key(id * 1000 + i)), s(string(100, 'v')));
+                        written.addAndGet(b.byteSize());
+                        b.apply(false);
+                    }
+                }));
+            }
+            for (var t : threads) t.start();
+            for (var t : threads) t.join();
+
+            // Every group is charged in full, one group late.
+            assertTrue(charged.get() >= written.get() * 9 / 10,
+                       charged.get() + " of " + written.get());
+            assertEquals(string(100, 'v'), get(key(7199)));
+            destroy();
+        }
+    }
+
+
+    // Each of n threads applies batches of its own keys, every fourth of them
+    // with a deletion of a key the thread wrote before; sync writes are mixed in
+    // if asked.  Returns the number of updates, and fills in the expected contents.
+    long writeConcurrently(int n, int batches, boolean syncSome, Map<String,String> expected) throws Exception {
+        var threads = new ArrayList<Thread>();
+        var updates = new AtomicLong();
+        var errors = new ConcurrentHashMap<Throwable,Boolean>();
+        var contents = new ConcurrentHashMap<String,String>();
+        for (var t = 0; t < n; t++) {
+            var id = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (var i = 0; i < batches; i++) {
+                        var k = key(id * 100000 + i);
+                        var v = "v" + id + "." + i + string(50, 'x');
+                        var b = db.batch().put(s(k), s(v));
+                        contents.put(k, v);
+                        updates.incrementAndGet();
+                        if (i % 4 == 3) {
+                            var old = key(id * 100000 + i - 2);
+                            b.delete(s(old));
+                            contents.put(old, "null");
+                            updates.incrementAndGet();
+                        }
+                        b.apply(syncSome && i % 10 == id % 10);
+                    }
+                }
+                catch (Throwable e) {
+                    errors.put(e, true);
+                }
+            }));
+        }
+        for (var t : threads) t.start();
+        for (var t : threads) t.join();
+        assertEquals(Set.of(), errors.keySet());
+        expected.putAll(contents);
+        return updates.get();
+    }
+
+    void checkContents(Map<String,String> expected) {
+        for (var e : expected.entrySet()) {
+            assertEquals(e.getValue(), String.valueOf(get(e.getKey())), e.getKey());
+        }
+    }
+
+    @Test
+    public void DBTest_ConcurrentMemTableWrites() throws Exception {
+        for (var pipelined : new boolean[] { false, true }) {
+            open(options().allowConcurrentMemtableWrite(true).pipelinedWrite(pipelined).writeBufferSize(64 << 10));
+            var expected = new HashMap<String,String>();
+            var updates = writeConcurrently(8, 500, false, expected);
+            assertEquals(updates, impl.versions.lastSequence());
+            checkContents(expected);
+            reopen();
+            assertEquals(updates, impl.versions.lastSequence());
+            checkContents(expected);
+            destroy();
+        }
+    }
+
+    @Test
+    public void DBTest_ConcurrentMemTableWriteError() throws Exception {
+        for (var pipelined : new boolean[] { false, true }) {
+            // Inserting a key that starts with '!' fails once armed.
+            var armed = new AtomicBoolean();
+            var bytewise = Factory.byteComparator();
+            open(options().allowConcurrentMemtableWrite(true).pipelinedWrite(pipelined).comparator(
+                (x, xPos, xLen, y, yPos, yLen) -> {
+                    if (armed.get() && ((xLen > 0 && x[xPos] == '!') || (yLen > 0 && y[yPos] == '!'))) {
+                        throw new IllegalStateException("injected");
+                    }
+                    return bytewise.compare(x, xPos, xLen, y, yPos, yLen);
+                }));
+            db.put(s("a"), s("a"));
+            armed.set(true);
+
+            // A failed group, and every group after it, stays unpublished;
+            // the writes that returned are exactly the published ones.
+            var threads = new ArrayList<Thread>();
+            var succeeded = new AtomicLong(1);
+            var failed = new AtomicInteger();
+            for (var t = 0; t < 8; t++) {
+                var id = t;
+                threads.add(new Thread(() -> {
+                    for (var i = 0; i < 300; i++) {
+                        var k = (id == 0 && i == 100) ? "!boom" : key(id * 1000 + i);
+                        try {
+                            db.put(s(k), s("v"));
+                            succeeded.incrementAndGet();
+                        }
+                        catch (RuntimeException e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            for (var t : threads) t.start();
+            for (var t : threads) t.join();
+            armed.set(false);
+
+            assertTrue(failed.get() > 0);
+            assertEquals(succeeded.get(), impl.versions.lastSequence(), "pipelined " + pipelined);
+            expect(RuntimeException.class, () -> db.put(s("b"), s("b")));
+            destroy();
+        }
+    }
+
+    // Three overlapping level-0 tables with overwrites and deletions, each kept
+    // visible by a snapshot, compacted into level-1; returns what every snapshot sees.
+    List<String> compactLevel0(int maxSubcompactions) throws Exception {
+        open(options().maxSubcompactions(maxSubcompactions));
+        keepFlushesInLevel0();
+        var snapshots = new ArrayList<DB.Snapshot>();
+        for (var t = 0; t < 3; t++) {
+            for (var i = 50 * t; i < 50 * t + 100; i++) {
+                if (i % 7 == t) {
+                    db.delete(s(key(i)));
+                } else {
+                    db.put(s(key(i)), s("v" + t + "." + i));
+                }
+            }
+            impl.xCompactMemTable();
+            snapshots.add(db.getSnapshot());
+        }
+        assertEquals(3, impl.versions.current().files[0].size());
+        var tasks = env.lowTasks.get();
+        impl.xCompactRange(0, null, null);
+        if (maxSubcompactions > 1) {
+            // The compaction and its other shards all ran in the Env's LOW pool.
+            assertTrue(env.lowTasks.get() - tasks >= maxSubcompactions, Integer.toString(env.lowTasks.get() - tasks));
+        }
+
+        var v = impl.versions.current();
+        assertEquals(0, v.files[0].size());
+        var files = v.files[1];
+        if (maxSubcompactions > 1) {
+            // One output per shard at least, and no user key split over two of them.
+            assertTrue(files.size() > 1, Integer.toString(files.size()));
+        }
+        for (var i = 1; i < files.size(); i++) {
+            assertTrue(impl.userComparator().compare(files.get(i-1).largest.userKey,
+                                                     files.get(i).smallest.userKey) < 0);
+        }
+
+        var contents = new ArrayList<String>();
+        snapshots.add(null);
+        for (var snapshot : snapshots) {
+            try (var c = db.iterator(snapshot)) {
+                while (c.hasNext()) {
+                    c.next();
+                    var value = c.getValue(); // null for a deleted key
+                    contents.add(s(c.getKey()) + "=" + (value != null ? s(value) : null));
+                }
+            }
+            contents.add("--");
+        }
+        destroy();
+        return contents;
+    }
+
+    @Test
+    public void DBTest_SubcompactionsMatchUnsplit() throws Exception {
+        // The shard boundaries fall on keys with versions in two tables, e.g. key000099.
+        var unsplit = compactLevel0(1);
+        var split = compactLevel0(4);
+        assertEquals(unsplit, split);
+        assertTrue(unsplit.contains("key000099=v0.99"));
+        assertTrue(unsplit.contains("key000099=null"));
+    }
+
+
+    // Removes the values "remove", replaces the values "replace" and keeps the rest.
+    static class TestFilter implements DB.CompactionFilter {
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public String name() {
+            return "TestFilter";
+        }
+
+        @Override
+        public Slice filter(int level, Slice key, Slice value) {
+            seen.add(s(key));
+            switch (s(value)) {
+                case "remove": return null;
+                case "replace": return s("replaced");
+                default: return value;
+            }
+        }
+    }
+
+    @Test
+    public void DBTest_CompactionFilter() throws Exception {
+        var filter = new TestFilter();
+        open(options().compactionFilter(filter));
+        keepFlushesInLevel0();
+        db.put(s("a"), s("keep"));
+        db.put(s("b"), s("remove"));
+        db.put(s("c"), s("replace"));
+        impl.xCompactMemTable();
+        assertTrue(filter.seen.isEmpty()); // flushes are not filtered
+        assertEquals("remove", get("b"));
+
+        impl.xCompactRange(0, null, null);
+        assertEquals(Set.of("a", "b", "c"), filter.seen);
+        assertEquals("keep", get("a"));
+        assertEquals(null, get("b"));
+        assertEquals("replaced", get("c"));
+        // Nothing below level-1: the removed key leaves nothing behind.
+        assertEquals(List.of(), internalEntries("b"));
+        destroy();
+    }
+
+    @Test
+    public void DBTest_CompactionFilterNotBaseLevel() throws Exception {
+        var filter = new TestFilter();
+        open(options().compactionFilter(filter));
+        keepFlushesInLevel0();
+        db.put(s("b"), s("old"));
+        var oldSequence = impl.versions.lastSequence();
+        impl.xCompactMemTable();
+        impl.xCompactRange(0, null, null);
+        impl.xCompactRange(1, null, null);
+        assertEquals(1, impl.versions.current().files[2].size());
+
+        db.put(s("b"), s("remove"));
+        var sequence = impl.versions.lastSequence();
+        impl.xCompactMemTable();
+        impl.xCompactRange(0, null, null);
+
+        // The removed value becomes a deletion at its own sequence, which
+        // still hides the older value in level-2.
+        assertEquals(null, get("b"));
+        assertEquals(List.of(sequence + ":del", oldSequence + ":old"), internalEntries("b"));
+
+        // At the base level the deletion goes, and the older value with it.
+        impl.xCompactRange(1, null, null);
+        assertEquals(null, get("b"));
+        assertEquals(List.of(), internalEntries("b"));
+        reopen();
+        assertEquals(null, get("b"));
+        destroy();
+    }
+
+    @Test
+    public void DBTest_CompactionFilterSnapshot() throws Exception {
+        var filter = new TestFilter();
+        open(options().compactionFilter(filter));
+        keepFlushesInLevel0();
+        db.put(s("b"), s("remove"));
+        var snapshot = db.getSnapshot();
+        db.put(s("c"), s("remove"));
+        impl.xCompactMemTable();
+        impl.xCompactRange(0, null, null);
+
+        // A value a snapshot can see is not passed to the filter.
+        assertEquals(Set.of("c"), filter.seen);
+        assertEquals("remove", get("b"));
+        assertEquals("remove", get("b", snapshot));
+        assertEquals(null, get("c"));
+
+        db.releaseSnapshot(snapshot);
+        impl.xCompactRange(1, null, null);
+        assertEquals(Set.of("b", "c"), filter.seen);
+        assertEquals(null, get("b"));
+        destroy();
+    }
+
+
+    @Test
+    public void DBTest_RecoverSeveralLogs() throws Exception {
+        final int kKeys = 400;
+        final int kRounds = 4;
+        open(options().writeBufferSize(64 << 10).maxWriteBufferNumber(8));
+
+        // With the flush pool held up, every full memtable leaves its log behind.
+        var held = new CountDownLatch(1);
+        env.high.submit(() -> { held.await(); return null; });
+        var expected = new String[kKeys];
+        for (var r = 0; r < kRounds; r++) {
+            for (var i = 0; i < kKeys; i++) {
+                if (i % kRounds == r) {
+                    db.delete(s(key(i)));
+                    expected[i] = null;
+                } else {
+                    expected[i] = "v" + r + "." + i + string(100, 'x');
+                    db.put(s(key(i)), s(expected[i]));
+                }
+            }
+        }
+        var lastSequence = impl.versions.lastSequence();
+
+        // Recover from a copy of the files as they are now, as after a crash.
+        var crashed = Files.createTempDirectory("db_test");
+        var logs = 0;
+        try (var files = Files.list(dbname)) {
+            for (var f : files.toList()) {
+                var p = FileName.parseFileName(f);
+                if (p == null || p.type == FileName.FileType.kDBLockFile || p.type == FileName.FileType.kInfoLogFile) continue;
+                if (p.type == FileName.FileType.kLogFile) logs++;
+                Files.copy(f, crashed.resolve(f.getFileName()));
+            }
+        }
+        assertTrue(logs >= 3, Integer.toString(logs));
+        held.countDown();
+        destroy();
+
+        // Hold up compactions as well, so the tables the replay writes stay in level-0.
+        dbname = crashed;
+        var b = options().writeBufferSize(64 << 10).recoveryThreads(4);
+        var compactions = new CountDownLatch(1);
+        env.low.submit(() -> { compactions.await(); return null; });
+        open(b);
+        assertEquals(lastSequence, impl.versions.lastSequence());
+        for (var i = 0; i < kKeys; i++) {
+            assertEquals(expected[i], get(key(i)), key(i));
+        }
+        assertTrue(impl.versions.numLevelFiles(0) > 1, Integer.toString(impl.versions.numLevelFiles(0)));
+        compactions.countDown();
+
+        // The replayed data and sequence survive another open.
+        reopen();
+        assertEquals(lastSequence, impl.versions.lastSequence());
+        for (var i = 0; i < kKeys; i++) {
+            assertEquals(expected[i], get(key(i)), key(i));
+        }
+        destroy();
+    }
+
+
+    @Test
+    public void DBTest_PreallocatedLogs() throws Exception {
+        open(options().preallocateLogs(true).writeBufferSize(64 << 10));
+        var expected = new HashMap<String,String>();
+        for (var round = 0; round < 3; round++) {
+            // A spare log is preallocated in the background and synced...
+            impl.spareLog.join();
+            var spare = FileName.tempFileName(dbname, impl.spareLogNumber);
+            var size = Files.size(spare);
+            assertTrue(size > (64 << 10), Long.toString(size));
+
+            // ... and the next memtable switch renames it into place.
+            var number = impl.logfileNumber;
+            for (var i = 0; impl.logfileNumber == number; i++) {
+                var k = key(round * 10000 + i);
+                expected.put(k, k + string(100, 'v'));
+                db.put(s(k), s(expected.get(k)));
+            }
+            assertFalse(Files.exists(spare));
+            assertEquals(size, Files.size(FileName.logFileName(dbname, impl.logfileNumber)));
+        }
+        reopen();
+        checkContents(expected);
+        destroy();
+    }
+
+
+    @Test
+    public void DBTest_PipelinedWrites() throws Exception {
+        open(options().pipelinedWrite(true).writeBufferSize(64 << 10));
+        var expected = new HashMap<String,String>();
+        var updates = writeConcurrently(12, 400, true, expected);
+        assertEquals(updates, impl.versions.lastSequence());
+        checkContents(expected);
+        reopen();
+        assertEquals(updates, impl.versions.lastSequence());
+        checkContents(expected);
+
+        // close() stops the log writer thread.
+        var wal = impl.logWorker.thread;
+        assertEquals("leveldb-wal", wal.getName());
+        assertTrue(wal.isAlive());
+        destroy();
+        wal.join(10000);
+        assertFalse(wal.isAlive());
+    }
+
+    @Test
+    public void DBTest_PipelinedWriteLogError() throws Exception {
+        open(options().pipelinedWrite(true));
+        var threads = new ArrayList<Thread>();
+        var succeeded = new AtomicLong();
+        var failed = new AtomicInteger();
+        for (var t = 0; t < 8; t++) {
+            var id = t;
+            threads.add(new Thread(() -> {
+                // Write until the log error reaches this writer.
+                for (var i = 0; ; i++) {
+                    try {
+                        db.put(s(key(id * 100000 + i)), s("v"), i % 7 == 0);
+                        succeeded.incrementAndGet();
+                    }
+                    catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        return;
+                    }
+                }
+            }));
+        }
+        for (var t : threads) t.start();
+        while (succeeded.get() < 1000) {
+            Thread.sleep(1);
+        }
+        ((LogFile) impl.log.out).channel.close();
+        for (var t : threads) t.join();
+
+        // Every writer failed, and only the groups logged before the error were published.
+        assertEquals(8, failed.get());
+        assertEquals(succeeded.get(), impl.versions.lastSequence());
+        expect(RuntimeException.class, () -> db.put(s("a"), s("a")));
+        destroy();
+    }
+
+
+    // Wait for the background flushes and compactions to finish.
+    void waitForBackgroundWork() {
+        impl.mutex.lock();
+        try (impl.mutex) {
+            while (impl.bgCompactionScheduled > 0 || impl.bgFlushScheduled) {
+                impl.bgCv.awaitUninterruptibly();
+            }
+        }
+    }
+
+    @Test
+    public void DBTest_GetDuringSuperVersionChanges() throws Exception {
+        final int kKeys = 2000;
+        open(options().writeBufferSize(64 << 10));
+        keepFlushesInLevel0();
+        for (var i = 0; i < kKeys; i++) {
+            db.put(s(key(i)), s(key(i)));
+        }
+
+        // Readers look up the initial keys, and the keys the writer has added so far.
+        var done = new AtomicBoolean();
+        var written = new AtomicInteger(kKeys);
+        var errors = new ConcurrentHashMap<Throwable,Boolean>();
+        var seen = Collections.newSetFromMap(new IdentityHashMap<SuperVersion,Boolean>());
+        var threads = new ArrayList<Thread>();
+        for (var t = 0; t < 4; t++) {
+            var id = t;
+            threads.add(new Thread(() -> {
+                try {
+                    var rnd = new Random(id);
+                    while (!done.get()) {
+                        var k = key(rnd.nextInt(written.get()));
+                        assertEquals(k, get(k));
+                    }
+                }
+                catch (Throwable e) {
+                    errors.put(e, true);
+                }
+            }));
+        }
+        // Every SuperVersion installed while the test runs, or most of them.
+        threads.add(new Thread(() -> {
+            while (!done.get()) {
+                var sv = impl.superVersion;
+                synchronized (seen) { seen.add(sv); }
+                Thread.yield();
+            }
+        }));
+        for (var t : threads) t.start();
+
+        // Overwrite the initial keys and add new ones, switching memtables,
+        // flushing and compacting all the while.
+        for (var round = 0; round < 20; round++) {
+            for (var i = 0; i < kKeys; i += 3) {
+                db.put(s(key(i)), s(key(i)));
+            }
+            for (var i = 0; i < 200; i++) {
+                var n = written.get();
+                db.put(s(key(n)), s(key(n)));
+                written.incrementAndGet();
+            }
+            impl.xCompactMemTable();
+            if (round % 4 == 3) {
+                impl.xCompactRange(0, null, null);
+            }
+        }
+        done.set(true);
+        for (var t : threads) t.join();
+        assertEquals(Set.of(), errors.keySet());
+        waitForBackgroundWork();
+
+        // The replaced SuperVersions let go of their memtables and versions.
+        impl.mutex.lock();
+        try (impl.mutex) {
+            var current = impl.superVersion;
+            assertTrue(seen.size() > 20, Integer.toString(seen.size()));
+            for (var sv : seen) {
+                if (sv == current) continue;
+                assertEquals(0, sv.refs.get());
+                if (sv.current != current.current) {
+                    assertEquals(0, sv.current.refs);
+                }
+                if (sv.mem != current.mem && !List.of(current.imm).contains(sv.mem)) {
+                    assertEquals(0, sv.mem.refs);
+                }
+            }
+        }
+        destroy();
+    }
+
+
+    int immutableMemTables() {
+        impl.mutex.lock();
+        try (impl.mutex) {
+            return impl.immuTables.size();
+        }
+    }
+
+    // Write filler until the memtable is switched out.
+    void switchMemTable(int round) {
+        var n = immutableMemTables();
+        for (var i = 0; immutableMemTables() == n; i++) {
+            db.put(s(key(round * 100000 + i)), s(string(200, 'f')));
+        }
+    }
+
+    long logFiles() throws Exception {
+        try (var files = Files.list(dbname)) {
+            return files.filter((f) -> {
+                var p = FileName.parseFileName(f);
+                return p != null && p.type == FileName.FileType.kLogFile;
+            }).count();
+        }
+    }
+
+    @Test
+    public void DBTest_DeletionInNewerMemTable() throws Exception {
+        // Three immutable memtables may wait; none is flushed before then.
+        open(options().writeBufferSize(64 << 10).maxWriteBufferNumber(4).minWriteBufferNumberToMerge(3));
+        db.put(s("deleted"), s("old"));
+        db.put(s("overwritten"), s("old"));
+        switchMemTable(1);
+        db.delete(s("deleted"));
+        db.put(s("overwritten"), s("new"));
+        assertEquals(1, immutableMemTables());
+
+        // The newer memtable's entries hide the older memtable's.
+        assertEquals(null, get("deleted"));
+        assertEquals("new", get("overwritten"));
+        switchMemTable(2);
+        assertEquals(2, immutableMemTables());
+        assertEquals(null, get("deleted"));
+        assertEquals("new", get("overwritten"));
+        try (var c = db.iterator(null)) {
+            while (c.hasNext()) {
+                c.next();
+                if (s(c.getKey()).equals("deleted")) assertNull(c.getValue());
+            }
+        }
+        destroy();
+    }
+
+    @Test
+    public void DBTest_MergeImmutableMemTables() throws Exception {
+        open(options().writeBufferSize(64 << 10).maxWriteBufferNumber(4).minWriteBufferNumberToMerge(3));
+        keepFlushesInLevel0();
+        db.put(s("deleted"), s("old"));
+        db.put(s("overwritten"), s("old"));
+        switchMemTable(1);
+        db.delete(s("deleted"));
+        db.put(s("overwritten"), s("new"));
+        switchMemTable(2);
+        assertEquals(0, impl.versions.numLevelFiles(0));
+        assertEquals(3, logFiles());
+
+        // The third one starts a flush of all three into one level-0 table.
+        switchMemTable(3);
+        waitForBackgroundWork();
+        assertEquals(0, immutableMemTables());
+        assertEquals(1, impl.versions.numLevelFiles(0));
+        assertEquals(null, get("deleted"));
+        assertEquals("new", get("overwritten"));
+
+        // Only the log of the memtable in use is still needed.
+        assertEquals(impl.logfileNumber, impl.versions.logNumber());
+        assertEquals(1, logFiles());
+
+        var sequence = impl.versions.lastSequence();
+        reopen();
+        assertEquals(sequence, impl.versions.lastSequence());
+        assertEquals(null, get("deleted"));
+        assertEquals("new", get("overwritten"));
+        assertEquals(string(200, 'f'), get(key(300000)));
+        destroy();
+    }
+
+}
@@ -0,0 +1,180 @@
+package lib.leveldb.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import lib.leveldb.DB;
+import static lib.leveldb.db.LogFormat.*;
+import static lib.leveldb.db.TestUtil.*;
+
+public class LogTest {
+
+    // Construct a string of the specified length made out of the supplied partial string.
+    static String bigString(String partialString, int n) {
+        var result = new StringBuilder();
+        while (result.length() < n) {
+            result.append(partialString);
+        }
+        return result.substring(0,n);
+    }
+
+    static byte[] write(LogWriter writer, ByteArrayOutputStream dest, String... records) {
+        for (var r : records) {
+            writer.addRecord(s(r));
+        }
+        return dest.toByteArray();
+    }
+
+    static List<String> read(byte[] contents, long logNumber) {
+        var reader = new LogReader(new ByteArrayInputStream(contents)).logNumber(logNumber);
+        var records = new ArrayList<String>();
+        for (var r : reader) {
+            records.add(s(r));
+        }
+        return records;
+    }
+
+    @Test
+    public void LogTest_ReadWrite() {
+        var dest = new ByteArrayOutputStream();
+        var contents = write(new LogWriter(dest), dest, "foo", "bar", "", "xxxx");
+        assertEquals(Arrays.asList("foo", "bar", "", "xxxx"), read(contents,0));
+    }
+
+    @Test
+    public void LogTest_Fragmentation() {
+        var dest = new ByteArrayOutputStream();
+        var records = new String[] { "small", bigString("medium", 50000), bigString("large", 100000) };
+        var contents = write(new LogWriter(dest), dest, records);
+        assertEquals(Arrays.asList(records), read(contents,0));
+    }
+
+    @Test
+    public void LogTest_RecycledFragmentation() {
+        var dest = new ByteArrayOutputStream();
+        var records = new String[] { "small", bigString("medium", 50000), bigString("large", 100000) };
+        var contents = write(new LogWriter(dest).recycle(7), dest, records);
+        assertEquals(Arrays.asList(records), read(contents,7));
+    }
+
+    @Test
+    public void LogTest_PreallocatedTail() {
+        var dest = new ByteArrayOutputStream();
+        var written = write(new LogWriter(dest), dest, "foo", "bar");
+        var contents = Arrays.copyOf(written, 3 * kBlockSize); // zero filled
+        assertEquals(Arrays.asList("foo", "bar"), read(contents,0));
+    }
+
+    @Test
+    public void LogTest_RecycledTail() {
+        // The previous life of the file
+        var old = new ByteArrayOutputStream();
+        var contents = write(new LogWriter(old).recycle(1), old,
+            "old1", bigString("old2", 2 * kBlockSize), "old3");
+
+        // Overwrite the start of it as log 2
+        var dest = new ByteArrayOutputStream();
+        var written = write(new LogWriter(dest).recycle(2), dest, "new1", bigString("new2", 1000));
+        System.arraycopy(written, 0, contents, 0, written.length);
+
+        assertEquals(Arrays.asList("new1", bigString("new2", 1000)), read(contents,2));
+    }
+
+    // The log writing side of a DB on dir, as configured by the options; not opened.
+    static DbImpl logOwner(Path dir, DB.Builder b) {
+        var options = ((Factory.Builder) b.compression(DB.CompressionType.NoCompression)).o;
+        var impl = new DbImplBg();
+        Factory.sanitizeOptions(impl, dir, options);
+        return impl;
+    }
+
+    static List<String> read(Path fname, long logNumber) throws IOException {
+        try (var in = Files.newInputStream(fname)) {
+            var reader = new LogReader(in).logNumber(logNumber);
+            var records = new ArrayList<String>();
+            for (var r : reader) {
+                records.add(s(r));
+            }
+            return records;
+        }
+    }
+
+    // Records of every size class: empty, within a block, spanning blocks,
+    // and larger than the write buffer of the Periodic policy.
+    static String record(int i) {
+        var sizes = new int[] { 0, 10, 1000, kBlockSize - 3, 3 * kBlockSize, 20 * kBlockSize };
+        return bigString("record" + i + ".", sizes[i % sizes.length]);
+    }
+
+    @Test
+    public void LogTest_FlushPolicies() throws Exception {
+        var dir = Files.createTempDirectory("log_test");
+        for (var policy : DB.FlushPolicy.values()) {
+            for (var recycle : new int[] { 0, 4 }) {
+                var impl = logOwner(dir, new Factory().newBuilder()
+                    .walFlushPolicy(policy).walFlushMillis(1 << 30).recycleLogFileNum(recycle));
+                var fname = FileName.logFileName(dir, 5);
+                var written = new ArrayList<String>();
+
+                var log = impl.logWriter(impl.env.newWritableChannel(fname, false), 5, 0);
+                for (var i = 0; i < 24; i++) {
+                    written.add(record(i));
+                    log.addRecord(s(record(i)));
+                    if (policy == DB.FlushPolicy.EveryRecord) {
+                        assertEquals(written, read(fname, 5), policy + " " + i);
+                    }
+                    if (i % 3 == 2) {
+                        // A group commit
+                        impl.flushLog(log, false);
+                        if (policy != DB.FlushPolicy.Periodic) {
+                            assertEquals(written, read(fname, 5), policy + " " + i);
+                        }
+                    }
+                }
+                log.addRecord(s("tail"));
+                written.add("tail");
+                if (policy == DB.FlushPolicy.Periodic) {
+                    // Buffered until walBytesPerFlush or walFlushMillis, or a sync.
+                    assertTrue(read(fname, 5).size() < written.size());
+                    impl.flushLog(log, true);
+                    assertEquals(written, read(fname, 5));
+                }
+                log.close();
+                assertEquals(written, read(fname, 5), policy.name());
+
+                // Continue the log after its last record, in the middle of a block.
+                LogReader reader;
+                try (var in = Files.newInputStream(fname)) {
+                    reader = new LogReader(in).logNumber(5);
+                    for (var r : reader) assertNotNull(r);
+                }
+                assertTrue(reader.end % kBlockSize != 0);
+                log = impl.openLogWriter(5, reader.end);
+                for (var i = 0; i < 7; i++) {
+                    written.add(record(i) + "+");
+                    log.addRecord(s(record(i) + "+"));
+                    impl.flushLog(log, i % 2 == 0);
+                }
+                log.close();
+                assertEquals(written, read(fname, 5), policy.name());
+                Files.delete(fname);
+            }
+        }
+        try (var files = Files.list(dir)) {
+            for (var f : files.toList()) Files.delete(f);
+        }
+        Files.delete(dir);
+    }
+
+}
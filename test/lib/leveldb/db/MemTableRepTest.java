@@ -0,0 +1,177 @@
+package lib.leveldb.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import lib.leveldb.DB.MemTableType;
+import static lib.leveldb.db.DbFormat.*;
+import static lib.leveldb.db.TestUtil.*;
+
+public class MemTableRepTest {
+
+    static final int kKeys = 200;
+    static final int kVersions = 5;
+
+    InternalKeyComparator icmp = Factory.internalComparator(null);
+
+    static String key(int i) {
+        return String.format("key%04d", i);
+    }
+
+    // Version j of key i has sequence i + j * kKeys + 1, so the versions of
+    // a key interleave with those of the other keys.
+    static long sequence(int i, int j) {
+        return i + j * kKeys + 1;
+    }
+
+    static String value(int i, int j) {
+        return key(i) + "." + j;
+    }
+
+    // Every version of every key, in random order; every fifth version is a deletion.
+    static List<int[]> versions(long seed) {
+        var list = new ArrayList<int[]>();
+        for (var i = 0; i < kKeys; i++) {
+            for (var j = 0; j < kVersions; j++) {
+                list.add(new int[] { i, j });
+            }
+        }
+        Collections.shuffle(list, new Random(seed));
+        return list;
+    }
+
+    static void add(MemTable mem, int i, int j) {
+        if ((i + j) % 5 == 0) {
+            mem.add(sequence(i,j), kTypeDeletion, s(key(i)), null);
+        } else {
+            mem.add(sequence(i,j), kTypeValue, s(key(i)), s(value(i,j)));
+        }
+    }
+
+    // Entries come out by increasing user key, then by decreasing sequence;
+    // n entries of them, unless n is negative.
+    void checkOrder(MemTable mem, int n) {
+        var count = 0;
+        InternalKey last = null;
+        for (var it = mem.table.iterator(); it.hasNext(); count++) {
+            var k = mem.entry(it.nextLong()).getKey();
+            if (last != null) {
+                assertTrue(icmp.compare(last, k) < 0, s(last.userKey) + " " + s(k.userKey));
+            }
+            last = k;
+        }
+        if (n >= 0) {
+            assertEquals(n, count);
+        }
+    }
+
+    // A lookup finds the newest version at or before the snapshot.
+    void checkLookups(MemTable mem) {
+        for (var i = 0; i < kKeys; i++) {
+            for (var j = 0; j < kVersions; j++) {
+                var found = mem.get(sequence(i,j), s(key(i)));
+                assertNotNull(found, key(i) + "@" + j);
+                if ((i + j) % 5 == 0) {
+                    assertSame(MemTable.deleted, found);
+                } else {
+                    assertEquals(value(i,j), s(found));
+                }
+                // seek() lands on that version itself.
+                var entry = mem.table.seek(lookupKey(s(key(i)), sequence(i,j)));
+                var k = mem.entry(entry).getKey();
+                assertEquals(key(i), s(k.userKey));
+                assertEquals(sequence(i,j), sequenceNumber(k));
+            }
+            // Nothing before the first version.
+            assertNull(mem.get(sequence(i,0) - 1, s(key(i))));
+        }
+        assertNull(mem.get(kMaxSequenceNumber, s("key")));
+        assertNull(mem.get(kMaxSequenceNumber, s(key(kKeys))));
+    }
+
+    void checkRep(MemTableType type) {
+        var mem = new MemTable(icmp, type, 4 << 20);
+        var list = versions(301);
+        // Read half way through, then add the rest.
+        var half = list.size() / 2;
+        for (var v : list.subList(0, half)) {
+            add(mem, v[0], v[1]);
+        }
+        checkOrder(mem, half);
+        for (var v : list.subList(half, list.size())) {
+            add(mem, v[0], v[1]);
+        }
+        checkOrder(mem, list.size());
+        checkLookups(mem);
+    }
+
+    @Test
+    public void MemTableRepTest_SkipList() {
+        checkRep(MemTableType.SkipList);
+    }
+
+    @Test
+    public void MemTableRepTest_Vector() {
+        checkRep(MemTableType.Vector);
+    }
+
+    @Test
+    public void MemTableRepTest_VectorMemoryUsage() {
+        // The sorted copy made for readers counts as well as the entries.
+        var mem = new MemTable(icmp, MemTableType.Vector, 4 << 20);
+        for (var v : versions(303)) {
+            add(mem, v[0], v[1]);
+        }
+        var unsorted = mem.table.memoryUsage();
+        checkOrder(mem, kKeys * kVersions);
+        assertEquals(unsorted + kKeys * kVersions * 8L, mem.table.memoryUsage());
+    }
+
+    @Test
+    public void MemTableRepTest_HashLinkList() {
+        checkRep(MemTableType.HashLinkList);
+    }
+
+    @Test
+    public void MemTableRepTest_ConcurrentInsert() throws Exception {
+        final int kThreads = 4;
+        for (var type : MemTableType.values()) {
+            var mem = new MemTable(icmp, type, 4 << 20);
+            var list = versions(302);
+            var threads = new Thread[kThreads + 1];
+            for (var t = 0; t < kThreads; t++) {
+                final var base = t;
+                threads[t] = new Thread(() -> {
+                    for (var n = base; n < list.size(); n += kThreads) {
+                        add(mem, list.get(n)[0], list.get(n)[1]);
+                    }
+                });
+            }
+            // Ordered reads while the inserts go on.
+            var error = new AtomicReference<Throwable>();
+            threads[kThreads] = new Thread(() -> {
+                try {
+                    for (var n = 0; n < 20; n++) {
+                        checkOrder(mem, -1);
+                    }
+                }
+                catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            for (var t : threads) t.start();
+            for (var t : threads) t.join();
+            assertNull(error.get());
+
+            checkOrder(mem, list.size());
+            checkLookups(mem);
+        }
+    }
+
+}
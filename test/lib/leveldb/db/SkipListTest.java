@@ -0,0 +1,194 @@
+package lib.leveldb.db;
+
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class SkipListTest {
+
+    // The list stores the key itself in the node's key slot.
+    static SkipList<Long> newList() {
+        return new SkipList<>((a, b) -> Long.compare(a, b));
+    }
+
+    @Test
+    public void SkipTest_Empty() {
+        var list = newList();
+        assertFalse(list.contains(10L));
+
+        var iter = list.new Iterator();
+        assertFalse(iter.valid());
+        iter.seekToFirst();
+        assertFalse(iter.valid());
+        iter.seek(100L);
+        assertFalse(iter.valid());
+    }
+
+    @Test
+    public void SkipTest_InsertAndLookup() {
+        final int N = 2000;
+        final int R = 5000;
+        var rnd = new Random(1000);
+        var keys = new TreeSet<Long>();
+        var list = newList();
+        for (var i = 0; i < N; i++) {
+            long key = rnd.nextInt(R);
+            if (keys.add(key)) {
+                list.insert(key,key);
+            }
+        }
+
+        for (long i = 0; i < R; i++) {
+            if (list.contains(i)) {
+                assertTrue(keys.contains(i));
+            } else {
+                assertFalse(keys.contains(i));
+            }
+        }
+
+        // Simple iterator tests
+        {
+            var iter = list.new Iterator();
+            assertFalse(iter.valid());
+
+            iter.seek(0L);
+            assertTrue(iter.valid());
+            assertEquals(keys.first().longValue(), iter.key());
+
+            iter.seekToFirst();
+            assertTrue(iter.valid());
+            assertEquals(keys.first().longValue(), iter.key());
+        }
+
+        // Forward iteration test
+        for (long i = 0; i < R; i++) {
+            var iter = list.new Iterator();
+            iter.seek(i);
+
+            // Compare against model iterator
+            var model = keys.tailSet(i).iterator();
+            for (var j = 0; j < 3; j++) {
+                if (!model.hasNext()) {
+                    assertFalse(iter.valid());
+                    break;
+                } else {
+                    assertTrue(iter.valid());
+                    assertEquals(model.next().longValue(), iter.key());
+                    iter.next();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void SkipTest_ConcurrentInsert() throws Exception {
+        final int kThreads = 4;
+        final int kPerThread = 5000;
+        var list = newList();
+        var threads = new Thread[kThreads];
+        for (var t = 0; t < kThreads; t++) {
+            final long base = t;
+            threads[t] = new Thread(() -> {
+                // interleave the keys of all threads
+                for (long i = 0; i < kPerThread; i++) {
+                    var key = i * kThreads + base;
+                    list.insert(key,key);
+                }
+            });
+        }
+        for (var t : threads) t.start();
+        for (var t : threads) t.join();
+
+        var iter = list.new Iterator();
+        iter.seekToFirst();
+        for (long i = 0; i < kThreads * kPerThread; i++) {
+            assertTrue(iter.valid());
+            assertEquals(i, iter.key());
+            iter.next();
+        }
+        assertFalse(iter.valid());
+    }
+
+
+    @Test
+    public void SkipTest_ConcurrentArenaInsert() throws Exception {
+        // Records of assorted sizes, some allocated as blocks of their own,
+        // each filled with its key; nodes and records come from shared
+        // allocators, so an overlap shows up as a clobbered record.
+        final int kThreads = 8;
+        final int kPerThread = 3000;
+        var arena = new Arena();
+        SkipList<Long> list = new SkipList<>((a, b) -> Long.compare(recordKey(arena, a), b));
+        var errors = new AtomicReference<Throwable>();
+        var threads = new Thread[kThreads + 1];
+        for (var t = 0; t < kThreads; t++) {
+            final long base = t;
+            threads[t] = new Thread(() -> {
+                for (long i = 0; i < kPerThread; i++) {
+                    var key = i * kThreads + base;
+                    var size = recordSize(key);
+                    var record = arena.allocate(size);
+                    var b = arena.block(record);
+                    var p = Arena.offset(record);
+                    for (var j = 0; j < size; j++) {
+                        b[p + j] = (byte)(key >>> (8 * (j % 8)));
+                    }
+                    list.insert(record, key);
+                }
+            });
+        }
+        // A reader sees the keys in order while the inserts go on.
+        threads[kThreads] = new Thread(() -> {
+            try {
+                for (var n = 0; n < 50; n++) {
+                    var iter = list.new Iterator();
+                    var last = -1L;
+                    for (iter.seekToFirst(); iter.valid(); iter.next()) {
+                        var key = recordKey(arena, iter.key());
+                        assertTrue(key > last, key + " after " + last);
+                        last = key;
+                    }
+                }
+            }
+            catch (Throwable e) {
+                errors.set(e);
+            }
+        });
+        for (var t : threads) t.start();
+        for (var t : threads) t.join();
+        assertNull(errors.get());
+
+        var iter = list.new Iterator();
+        iter.seekToFirst();
+        for (long i = 0; i < kThreads * kPerThread; i++) {
+            assertTrue(iter.valid());
+            var b = arena.block(iter.key());
+            var p = Arena.offset(iter.key());
+            assertEquals(i, recordKey(arena, iter.key()));
+            for (var j = 0; j < recordSize(i); j++) {
+                assertEquals((byte)(i >>> (8 * (j % 8))), b[p + j], i + "@" + j);
+            }
+            iter.next();
+        }
+        assertFalse(iter.valid());
+    }
+
+    static int recordSize(long key) {
+        return 8 + (int)((key % 50 == 0) ? 2100 + key % 2000 : key % 100);
+    }
+
+    // The key a record starts with, little-endian.
+    static long recordKey(Arena arena, long record) {
+        var b = arena.block(record);
+        var p = Arena.offset(record);
+        var key = 0L;
+        for (var j = 7; j >= 0; j--) {
+            key = (key << 8) | (b[p + j] & 0xff);
+        }
+        return key;
+    }
+
+}
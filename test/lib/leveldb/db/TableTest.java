@@ -0,0 +1,402 @@
+package lib.leveldb.db;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import lib.io.MappedFileReader;
+import lib.io.PositionalReader;
+import lib.util.BinarySearch;
+
+import lib.leveldb.DB;
+import lib.leveldb.Env;
+import lib.leveldb.Slice;
+import lib.leveldb.io.Cursors;
+import static lib.leveldb.db.DbFormat.*;
+import static lib.leveldb.db.TestUtil.*;
+
+public class TableTest {
+
+    Env env = new FileEnv(){};
+    InternalKeyComparator icmp = Factory.internalComparator(null);
+
+    static String key(int i) {
+        return String.format("key%06d", i);
+    }
+
+    // Write n keys, with every other key left out, and open the table again.
+    Table build(Path dir, int partitionSize, DB.FilterPolicy policy, BlockCache cache, int n) throws Exception {
+        return build(dir, partitionSize, false, policy, cache, n);
+    }
+
+    Table build(Path dir, int partitionSize, boolean hashIndex, DB.FilterPolicy policy, BlockCache cache, int n) throws Exception {
+        var meta = store(dir, 1, partitionSize, hashIndex, policy, n);
+        return Table.load(dir, 1, meta.fileSize, env, icmp, policy, cache, true, false);
+    }
+
+    FileMetaData store(Path dir, long number, int partitionSize, boolean hashIndex, DB.FilterPolicy policy, int n) {
+        var entries = new ArrayList<Map.Entry<InternalKey,Slice>>();
+        for (var i = 0; i < n; i += 2) {
+            entries.add(Cursors.entry(internalKey(s(key(i)), 100, kTypeValue), s("value" + i)));
+        }
+        return Table.store(dir, number, 1024, 16, partitionSize, hashIndex,
+                           env, icmp, policy,
+                           Cursors.wrap(entries.iterator()), TableFile.kNoCompression);
+    }
+
+    // Maps files in chunks that blocks straddle.
+    static final int kChunkSize = 4000;
+    Env mappedEnv = new FileEnv() {
+        @Override
+        public PositionalReader newMappedFile(Path fname) throws IOException {
+            return new MappedFileReader(fname, kChunkSize);
+        }
+    };
+
+    void check(Table table, int n) {
+        for (var i = 0; i < n; i++) {
+            var r = table.internalGet(lookupKey(s(key(i)), 200), true);
+            if (i % 2 == 0) {
+                assertNotNull(r, key(i));
+                assertEquals("value" + i, s(r.getValue()));
+            } else {
+                assertNull(r, key(i));
+            }
+        }
+        var count = 0;
+        try (var c = table.newIterator(true)) {
+            while (c.hasNext()) {
+                c.next();
+                assertEquals(key(2 * count), s(c.getKey().userKey));
+                count++;
+            }
+        }
+        assertEquals((n + 1) / 2, count);
+    }
+
+    @Test
+    public void TableTest_PartitionedIndex() throws Exception {
+        var dir = Files.createTempDirectory("table_test");
+        var policy = new BloomFilterPolicy(10);
+        for (var partitionSize : new int[] { 0, 256 }) {
+            for (var cache : new BlockCache[] { null, new BlockCache(1 << 20) }) {
+                for (var filter : new DB.FilterPolicy[] { null, policy }) {
+                    var table = build(dir, partitionSize, filter, cache, 5000);
+                    var tf = (TableFile) table;
+                    assertEquals(partitionSize > 0, tf.partitioned);
+                    if (partitionSize > 0) {
+                        // Several partitions, and a filter for each when there is a policy.
+                        assertTrue(tf.dataOffset.length > 1);
+                        assertEquals(filter != null, tf.filterOffset != null);
+                    }
+                    check(table, 5000);
+                    if (cache != null) {
+                        assertEquals(0, cache.pinnedUsage());
+                    }
+                    table.close();
+                }
+            }
+        }
+        Files.delete(FileName.tableFileName(dir, 1));
+        Files.delete(dir);
+    }
+
+    @Test
+    public void TableTest_DataBlockHashIndex() throws Exception {
+        var dir = Files.createTempDirectory("table_test");
+        for (var partitionSize : new int[] { 0, 256 }) {
+            var table = build(dir, partitionSize, true, null, new BlockCache(1 << 20), 5000);
+            check(table, 5000);
+            table.close();
+        }
+        Files.delete(FileName.tableFileName(dir, 1));
+        Files.delete(dir);
+    }
+
+    @Test
+    public void TableTest_DataBlockHashIndexVersions() {
+        // Versions of one user key spread over several restart intervals,
+        // and a deletion; lookups must find the newest version <= the snapshot.
+        var builder = new BlockBuilder(4, icmp).hashIndex(true);
+        for (var i = 0; i < 50; i++) {
+            var n = (i % 5 == 0) ? 9 : 1;
+            for (var j = n; j > 0; j--) {
+                var type = (i == 20 && j == n) ? kTypeDeletion : kTypeValue;
+                builder.add(internalKey(s(key(2 * i)), 100 * j, type), s("value" + i + "." + j));
+            }
+        }
+        var contents = builder.finish();
+        assertTrue(Block.hashIndexSize(contents) > 0);
+        var block = new Block(contents, icmp);
+        assertEquals(block.trailer, Block.restartOffset(contents, block.restarts));
+        for (var i = 0; i < 100; i++) {
+            var n = (i % 10 == 0) ? 9 : 1;
+            for (var seq : new long[] { 50, 150, 450, 2000 }) {
+                var r = block.seek(lookupKey(s(key(i)), seq));
+                var j = (int) Math.min(n, seq / 100);
+                if (i % 2 == 1 || j == 0) {
+                    assertNull(r, key(i) + "@" + seq);
+                } else {
+                    assertNotNull(r, key(i) + "@" + seq);
+                    if (i == 40 && j == n) {
+                        assertNull(r.getValue());
+                    } else {
+                        assertEquals("value" + (i / 2) + "." + j, s(r.getValue()));
+                    }
+                }
+            }
+        }
+        // Every entry is still there for an iterator.
+        var count = 0;
+        for (var c = block.newIterator(); c.hasNext(); c.next()) count++;
+        assertEquals(40 * 1 + 10 * 9, count);
+    }
+
+    @Test
+    public void TableTest_IteratorFrom() throws Exception {
+        // An iterator that starts at a key skips the blocks before it, and
+        // may still return a few keys before the start from its first block.
+        var dir = Files.createTempDirectory("table_test");
+        for (var partitionSize : new int[] { 0, 256 }) {
+            var table = build(dir, partitionSize, null, null, 5000);
+            for (var i : new int[] { 0, 1, 2500, 3001, 4998, 4999, 6000 }) {
+                var start = internalKey(s(key(i)), kMaxSequenceNumber, kValueTypeForSeek);
+                var first = -1;
+                var count = 0;
+                try (var c = table.newIterator(false, start)) {
+                    while (c.hasNext()) {
+                        c.next();
+                        var k = Integer.parseInt(s(c.getKey().userKey).substring(3));
+                        if (k >= i && first < 0) first = k;
+                        count++;
+                    }
+                }
+                var expect = Math.min(i + (i % 2), 5000);
+                assertEquals(expect < 5000 ? expect : -1, first, key(i));
+                assertTrue(count >= (5000 - expect) / 2, key(i));
+                assertTrue(count < (5000 - expect) / 2 + 100, key(i));
+            }
+            table.close();
+        }
+        Files.delete(FileName.tableFileName(dir, 1));
+        Files.delete(dir);
+    }
+
+    @Test
+    public void TableTest_IndexKeys() throws Exception {
+        // Keys with equal user keys are ordered by decreasing sequence.
+        var list = new ArrayList<InternalKey>();
+        for (var i = 0; i < 100; i++) {
+            list.add(internalKey(s(key(2 * i)), 300 - i, kTypeValue));
+            list.add(internalKey(s(key(2 * i)), 200 - i, kTypeValue));
+        }
+        var keys = new byte[4096];
+        var start = new int[list.size() + 1];
+        for (var i = 0; i < list.size(); i++) {
+            var b = appendInternalKey(list.get(i));
+            System.arraycopy(b, 0, keys, start[i], b.length);
+            start[i+1] = start[i] + b.length;
+        }
+        var index = new IndexKeys(keys, start, icmp.comparator());
+        var array = BinarySearch.array(list.toArray(new InternalKey[0]));
+        for (var i = 0; i < 202; i++) {
+            for (var seq : new long[] { 50, 150, 250, 350 }) {
+                var k = lookupKey(s(key(i)), seq);
+                assertEquals(BinarySearch.ceiling(array, k, icmp), index.ceiling(k), key(i) + "@" + seq);
+            }
+        }
+        assertEquals(0, icmp.compare(list.get(7), index.get(7)));
+    }
+
+
+    // Point lookups from several threads, while another thread keeps
+    // compacting the table into a new one, as a compaction reads its inputs.
+    void checkConcurrentGets(Path dir, Table table, int n) throws Exception {
+        var done = new AtomicBoolean();
+        var errors = new ConcurrentHashMap<Throwable,Boolean>();
+        var threads = new ArrayList<Thread>();
+        for (var t = 0; t < 4; t++) {
+            var id = t;
+            threads.add(new Thread(() -> {
+                try {
+                    var rnd = new Random(id);
+                    while (!done.get()) {
+                        var i = rnd.nextInt(n);
+                        var r = table.internalGet(lookupKey(s(key(i)), 200), true);
+                        if (i % 2 == 0) {
+                            assertNotNull(r, key(i));
+                            assertEquals("value" + i, s(r.getValue()));
+                        } else {
+                            assertNull(r, key(i));
+                        }
+                    }
+                }
+                catch (Throwable e) {
+                    errors.put(e, true);
+                }
+            }));
+        }
+        for (var t : threads) t.start();
+        try {
+            for (var round = 0; round < 10; round++) {
+                var meta = Table.store(dir, 2, 1024, 16, 0, false,
+                                       env, icmp, null,
+                                       table.newIterator(false), TableFile.kNoCompression);
+                var copy = Table.load(dir, 2, meta.fileSize, env, icmp, null, null, true, false);
+                check(copy, n);
+                copy.close();
+            }
+        }
+        finally {
+            done.set(true);
+            for (var t : threads) t.join();
+        }
+        assertEquals(Set.of(), errors.keySet());
+        Files.delete(FileName.tableFileName(dir, 2));
+    }
+
+    @Test
+    public void TableTest_ConcurrentGets() throws Exception {
+        var dir = Files.createTempDirectory("table_test");
+        for (var partitionSize : new int[] { 0, 256 }) {
+            // A cache far smaller than the table, so blocks are evicted all the time.
+            var cache = new BlockCache(16 << 10);
+            var table = build(dir, partitionSize, new BloomFilterPolicy(10), cache, 20000);
+            checkConcurrentGets(dir, table, 20000);
+            assertEquals(0, cache.pinnedUsage());
+            table.close();
+        }
+        Files.delete(FileName.tableFileName(dir, 1));
+        Files.delete(dir);
+    }
+
+
+    @Test
+    public void TableTest_MappedFileReader() throws Exception {
+        var dir = Files.createTempDirectory("table_test");
+        var fname = dir.resolve("data");
+        var data = new byte[3 * kChunkSize + 100];
+        for (var i = 0; i < data.length; i++) data[i] = (byte)(i % 251);
+        Files.write(fname, data);
+
+        var reader = new MappedFileReader(fname, kChunkSize);
+        assertEquals(data.length, reader.length());
+        for (var pos : new int[] { 0, kChunkSize - 100, 2 * kChunkSize - 1, data.length - 50 }) {
+            // Reads within a chunk, across one boundary and across two.
+            for (var len : new int[] { 1, 100, kChunkSize + 10 }) {
+                var b = new byte[len + 2];
+                var n = reader.read(pos, b, 1, len);
+                assertEquals(Math.min(len, data.length - pos), n);
+                for (var i = 0; i < n; i++) {
+                    assertEquals(data[pos + i], b[1 + i], pos + "+" + i);
+                }
+                assertEquals(0, b[0]);
+            }
+        }
+        assertEquals(0, reader.read(data.length, new byte[10], 0, 10));
+
+        // Once unmapped, a read fails instead of touching the mapping.
+        reader.close();
+        expect(NullPointerException.class, () -> {
+            try { reader.read(0, new byte[10], 0, 10); }
+            catch (IOException e) { throw new UncheckedIOException(e); }
+        });
+        Files.delete(fname);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void TableTest_MappedTable() throws Exception {
+        var dir = Files.createTempDirectory("table_test");
+        for (var partitionSize : new int[] { 0, 256 }) {
+            var meta = store(dir, 1, partitionSize, false, null, 20000);
+            var cache = new BlockCache(16 << 10);
+            var table = Table.load(dir, 1, meta.fileSize, mappedEnv, icmp, null, cache, true, true);
+            assertEquals(meta.fileSize, ((TableFile) table).mappedBytes());
+            assertTrue(meta.fileSize > 10 * kChunkSize);
+            check(table, 20000);
+            checkConcurrentGets(dir, table, 20000);
+            table.close();
+        }
+        Files.delete(FileName.tableFileName(dir, 1));
+        Files.delete(dir);
+    }
+
+    @Test
+    public void TableTest_MmapLimit() throws Exception {
+        var dir = Files.createTempDirectory("table_test");
+        var size = 0L;
+        for (var number = 1; number <= 4; number++) {
+            size = store(dir, number, 0, false, null, 5000).fileSize;
+        }
+        // Room for one mapped table, and one open table in the cache.
+        var tables = new TableCache(dir, mappedEnv).comparator(icmp)
+            .cache(new BlockCache(1 << 20), 1).mmap(size + size / 2).open();
+
+        var iter = tables.newIterator(1, size, false);
+        assertEquals(size, tables.mappedBytes());
+        assertNotNull(tables.get(2, size, lookupKey(s(key(0)), 200), false));
+        // Table 1 left the cache but is still held, and mapped, by the iterator.
+        assertNotNull(tables.get(3, size, lookupKey(s(key(0)), 200), false));
+        assertEquals(size, tables.mappedBytes());
+
+        // Closing the last reader unmaps it, and makes room for another.
+        iter.close();
+        for (var i = 0; i < 1000 && tables.mappedBytes() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, tables.mappedBytes());
+        assertNotNull(tables.get(4, size, lookupKey(s(key(0)), 200), false));
+        assertEquals(size, tables.mappedBytes());
+
+        tables.close();
+        for (var number = 1; number <= 4; number++) {
+            Files.delete(FileName.tableFileName(dir, number));
+        }
+        Files.delete(dir);
+    }
+
+
+    @Test
+    public void TableTest_GetKeepsBlockPinned() throws Exception {
+        // The index is searched in memory; the comparisons made with a cached
+        // block pinned are those of the seek in the data block.
+        var dir = Files.createTempDirectory("table_test");
+        var cache = new BlockCache(1 << 20);
+        var pinned = new AtomicLong();
+        var cmp = new KeyComparator<InternalKey>() {
+            @Override public DB.Comparator comparator() { return icmp.comparator(); }
+            @Override public String name() { return icmp.name(); }
+            @Override public int compare(InternalKey a, InternalKey b) {
+                pinned.accumulateAndGet(cache.pinnedUsage(), Math::max);
+                return icmp.compare(a, b);
+            }
+        };
+        var meta = store(dir, 1, 0, false, null, 2000);
+        var table = Table.load(dir, 1, meta.fileSize, env, cmp, null, cache, true, false);
+        for (var i = 0; i < 2000; i += 2) {
+            for (var fill : new boolean[] { true, true, false }) {
+                pinned.set(0);
+                var r = table.internalGet(lookupKey(s(key(i)), 200), fill);
+                assertEquals("value" + i, s(r.getValue()));
+                assertTrue(pinned.get() > 0, key(i));
+                assertEquals(0, cache.pinnedUsage());
+            }
+        }
+        table.close();
+        Files.delete(FileName.tableFileName(dir, 1));
+        Files.delete(dir);
+    }
+
+}
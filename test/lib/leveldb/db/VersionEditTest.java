@@ -40,4 +40,23 @@ public class VersionEditTest {
         testEncodeDecode(edit);
     }
 
+    @Test
+    public void VersionEditTest_CreationTime() {
+        VersionEdit edit = new VersionEdit();
+        edit.addFile(0, 300, 400,
+                     internalKey(s("foo"), 500, kTypeValue),
+                     internalKey(s("zoo"), 600, kTypeValue),
+                     1700000000L);
+        edit.addFile(1, 301, 401,
+                     internalKey(s("foo"), 501, kTypeValue),
+                     internalKey(s("zoo"), 601, kTypeValue));
+        testEncodeDecode(edit);
+
+        byte[] encoded = edit.encodeTo();
+        VersionEdit parsed = new VersionEdit();
+        parsed.decodeFrom(encoded,0,encoded.length);
+        assertEquals(1700000000L, ((FileMetaData)parsed.newFiles.get(0)[VersionEdit.second]).creationTime);
+        assertEquals(0, ((FileMetaData)parsed.newFiles.get(1)[VersionEdit.second]).creationTime);
+    }
+
 }
@@ -169,4 +169,151 @@ public class VersionSetTest {
         assertTrue(overlaps("600", "700"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void CompactionPickerTest_SkipsFilesBeingCompacted() {
+        var vset = new VersionSet(null, null).comparator(cmp).files(false, 2 << 20).open();
+        var v = vset.current();
+        for (var k : new String[] { "a", "c", "e" }) {
+            add(k + "1", k + "2");
+            v.files[1].add(files.get(files.size() - 1));
+            add(k + "0", k + "3");
+            v.files[2].add(files.get(files.size() - 1));
+        }
+        v.levelScore[1] = 2;
+
+        // Each pick takes the next file that is not being compacted.
+        var picked = new ArrayList<Versions.Compaction>();
+        Versions.Compaction c;
+        while ((c = Versions.pickCompaction(vset)) != null) {
+            assertEquals(1, c.numInputFiles(0));
+            assertEquals(1, c.numInputFiles(1));
+            assertTrue(!c.input(0, 0).beingCompacted);
+            vset.registerCompaction(c);
+            picked.add(c);
+        }
+        assertEquals(3, picked.size());
+        assertTrue(vset.rangeInCompaction(2, s("c"), s("c5")));
+        assertTrue(!vset.rangeInCompaction(3, s("c"), s("c5")));
+        assertTrue(!vset.rangeInCompaction(1, s("b"), s("b5")));
+
+        // Once a compaction is done its files can be picked again.
+        vset.unregisterCompaction(picked.get(1));
+        c = Versions.pickCompaction(vset);
+        assertNotNull(c);
+        assertEquals("c1", s(c.input(0, 0).smallest.userKey));
+        assertTrue(!vset.conflictsWithCompactions(c));
+        vset.registerCompaction(c);
+        assertTrue(vset.conflictsWithCompactions(c));
+    }
+
+    FileMetaData run(Version v, int level, String smallest, String largest, long size) {
+        add(smallest, largest);
+        var f = files.get(files.size() - 1);
+        f.fileSize = size;
+        v.files[level].add(f);
+        return f;
+    }
+
+    @Test
+    public void CompactionPickerTest_Fifo() {
+        var env = new FileEnv(){};
+        var picker = new FifoCompactionPicker(1000, 3600);
+        var vset = new VersionSet(null, env).comparator(cmp).files(false, 2 << 20).picker(picker).open();
+        var v = vset.current();
+        var now = env.currentTime();
+        for (var i = 0; i < 5; i++) {
+            run(v, 0, "a", "z", 200).creationTime = now - 60 * (5 - i);
+        }
+        assertNull(picker.pickCompaction(vset));
+
+        // Over the size budget: the oldest table goes.
+        run(v, 0, "a", "z", 200).creationTime = now;
+        var c = picker.pickCompaction(vset);
+        assertNotNull(c);
+        assertTrue(c.isDeletion());
+        assertEquals(1, c.numInputFiles(0));
+        assertEquals(1, c.input(0, 0).number);
+        vset.registerCompaction(c);
+        assertNull(picker.pickCompaction(vset));
+        vset.unregisterCompaction(c);
+        c.close();
+
+        // Past the time to live: every expired table goes.
+        v.files[0].get(2).creationTime = now - 7200;
+        v.files[0].get(1).creationTime = now - 7200;
+        c = picker.pickCompaction(vset);
+        assertNotNull(c);
+        assertEquals(3, c.numInputFiles(0));
+        c.close();
+    }
+
+    @Test
+    public void CompactionPickerTest_FifoCompactRange() {
+        var picker = new FifoCompactionPicker(1000, 0);
+        var vset = new VersionSet(null, new FileEnv(){}).comparator(cmp).files(false, 2 << 20).picker(picker).open();
+        var v = vset.current();
+        for (var i = 0; i < 5; i++) {
+            run(v, 0, "a", "z", 200);
+        }
+        run(v, 1, "a", "z", 200);
+
+        // Within the budget a manual compaction does nothing, where leveled would merge.
+        assertNotNull(CompactionPicker.leveled.compactRange(vset, 0, null, null));
+        assertNull(picker.compactRange(vset, 0, null, null));
+        assertNull(picker.compactRange(vset, 1, null, null));
+
+        // Over the budget it drops the oldest table, and never merges into level-1.
+        run(v, 0, "a", "z", 200);
+        var c = picker.compactRange(vset, 0, null, null);
+        assertNotNull(c);
+        assertTrue(c.isDeletion());
+        assertEquals(1, c.numInputFiles(0));
+        assertEquals(1, c.input(0, 0).number);
+        assertEquals(0, c.numInputFiles(1));
+        c.close();
+    }
+
+    @Test
+    public void CompactionPickerTest_Universal() {
+        var picker = new UniversalCompactionPicker(1, 200);
+        var vset = new VersionSet(null, null).comparator(cmp).files(false, 2 << 20).picker(picker).open();
+        var v = vset.current();
+        for (var i = 0; i < kL0_CompactionTrigger - 1; i++) {
+            run(v, 0, "a", "z", 100);
+        }
+        assertNull(picker.pickCompaction(vset));
+        run(v, 0, "a", "z", 100);
+
+        // Nothing below level-0: the runs are merged into the last level.
+        assertEquals(kNumLevels - 1, picker.outputLevel(vset, v));
+
+        // A much larger run stays where it is; the new run goes just above it.
+        run(v, 5, "a", "z", 1000);
+        assertEquals(4, picker.outputLevel(vset, v));
+
+        // A run of about the same size as level-0 is merged along.
+        run(v, 4, "a", "z", 400);
+        assertEquals(4, picker.outputLevel(vset, v));
+        var c = picker.pickCompaction(vset);
+        assertNotNull(c);
+        assertEquals(0, c.level());
+        assertEquals(4, c.outputLevel());
+        assertEquals(kL0_CompactionTrigger, c.numInputFiles(0));
+        assertEquals(1, c.numInputFiles(4));
+        assertTrue(c.isBaseLevelForKey(s("m")) == false);
+        vset.registerCompaction(c);
+        assertNull(picker.pickCompaction(vset));
+        vset.unregisterCompaction(c);
+        c.close();
+
+        // Level-1 leaves no room above it, so it is merged whatever its size.
+        run(v, 6, "a", "z", 100000);
+        run(v, 1, "a", "z", 5000);
+        assertEquals(5, picker.outputLevel(vset, v));
+
+        // Too much data in the newer runs: everything is merged into the last level.
+        run(v, 2, "a", "z", 200000);
+        assertEquals(kNumLevels - 1, picker.outputLevel(vset, v));
+    }
+
+}
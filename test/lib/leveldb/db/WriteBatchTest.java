@@ -0,0 +1,129 @@
+package lib.leveldb.db;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import static lib.leveldb.db.DbFormat.*;
+
+import static lib.leveldb.db.TestUtil.*;
+
+public class WriteBatchTest {
+
+    static Batch.Write newBatch() {
+        return new Batch.Write() {
+            @Override public void apply(boolean sync) {}
+        };
+    }
+
+    static String printContents(Batch.Write b) {
+        var mem = new MemTable(Factory.internalComparator(null));
+        var state = new StringBuilder();
+        var count = 0;
+        DbImplFg.insertInto(b,mem);
+        for (var e : mem) {
+            var ikey = e.getKey();
+            switch (valueType(ikey)) {
+                case kTypeValue:
+                    state.append("Put(").append(s(ikey.userKey)).append(", ").append(s(e.getValue())).append(")");
+                    count++;
+                    break;
+                case kTypeDeletion:
+                    state.append("Delete(").append(s(ikey.userKey)).append(")");
+                    count++;
+                    break;
+            }
+            state.append("@").append(sequenceNumber(ikey));
+        }
+        mem.close();
+        if (count != b.count()) {
+            state.append("CountMismatch()");
+        }
+        return state.toString();
+    }
+
+    // Decode the log record the way recovery does.
+    static String printRecord(Batch.Write b) {
+        var r = new Batch.Read();
+        r.setContents(b.contents());
+        var state = new StringBuilder().append(r.sequence()).append(":");
+        for (var e : r) {
+            state.append(e.getValue() != null ? "Put(" : "Delete(").append(s(e.getKey()));
+            if (e.getValue() != null) {
+                state.append(", ").append(s(e.getValue()));
+            }
+            state.append(")");
+        }
+        return state.toString();
+    }
+
+    @Test
+    public void WriteBatchTest_Empty() {
+        var batch = newBatch();
+        assertEquals("", printContents(batch));
+        assertEquals(0, batch.count());
+        assertEquals(Batch.kHeader, batch.contents().length);
+    }
+
+    @Test
+    public void WriteBatchTest_Multiple() {
+        var batch = newBatch();
+        batch.put(s("foo"), s("bar"));
+        batch.delete(s("box"));
+        batch.put(s("baz"), s("boo"));
+        batch.setSequence(100);
+        assertEquals(100, batch.sequence());
+        assertEquals(3, batch.count());
+        assertEquals("Put(baz, boo)@102" +
+                     "Delete(box)@101" +
+                     "Put(foo, bar)@100",
+                     printContents(batch));
+        assertEquals("100:Put(foo, bar)Delete(box)Put(baz, boo)", printRecord(batch));
+    }
+
+    @Test
+    public void WriteBatchTest_Append() {
+        var b1 = newBatch();
+        var b2 = newBatch();
+        b1.setSequence(200);
+        b2.setSequence(300);
+        b1.append(b2);
+        assertEquals("", printContents(b1));
+        b2.put(s("a"), s("va"));
+        b1.append(b2);
+        assertEquals("Put(a, va)@200", printContents(b1));
+        b2.clear();
+        b2.put(s("b"), s("vb"));
+        b1.append(b2);
+        assertEquals("Put(a, va)@200" +
+                     "Put(b, vb)@201",
+                     printContents(b1));
+        b2.delete(s("foo"));
+        b1.append(b2);
+        assertEquals("Put(a, va)@200" +
+                     "Put(b, vb)@202" +
+                     "Put(b, vb)@201" +
+                     "Delete(foo)@203",
+                     printContents(b1));
+    }
+
+    @Test
+    public void WriteBatchTest_ApproximateSize() {
+        var batch = newBatch();
+        var emptySize = batch.byteSize();
+
+        batch.put(s("foo"), s("bar"));
+        var oneKeySize = batch.byteSize();
+        assertTrue(emptySize < oneKeySize);
+
+        batch.put(s("baz"), s("boo"));
+        var twoKeysSize = batch.byteSize();
+        assertTrue(oneKeySize < twoKeysSize);
+
+        batch.delete(s("box"));
+        var postDeleteSize = batch.byteSize();
+        assertTrue(twoKeysSize < postDeleteSize);
+
+        assertEquals(postDeleteSize, batch.contents().length);
+    }
+
+}
@@ -0,0 +1,81 @@
+package lib.leveldb.db;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import static lib.leveldb.db.DbFormat.*;
+
+public class WriteControllerTest {
+
+    static Version version(int l0Files, long neededBytes) {
+        var v = new Version(null);
+        for (var i = 0; i < l0Files; i++) {
+            v.files[0].add(new FileMetaData());
+        }
+        v.compactionNeededBytes = neededBytes;
+        return v;
+    }
+
+    @Test
+    public void WriteControllerTest_Stall() {
+        var controller = new WriteController(10 << 20, 1000, 2000);
+
+        controller.update(version(kL0_SlowdownWritesTrigger - 1, 0));
+        assertFalse(controller.delayed());
+        assertFalse(controller.stopped());
+        assertEquals(0, controller.getDelay(0, 1 << 20));
+
+        controller.update(version(kL0_SlowdownWritesTrigger, 0));
+        assertTrue(controller.delayed());
+        assertEquals(10 << 20, controller.delayedWriteRate);
+
+        // Debt past the soft limit delays, past the hard limit stops.
+        controller.update(version(0, 1000));
+        assertTrue(controller.delayed());
+        assertFalse(controller.stopped());
+        controller.update(version(0, 2000));
+        assertTrue(controller.stopped());
+        controller.update(version(kL0_StopWritesTrigger, 0));
+        assertTrue(controller.stopped());
+
+        controller.update(version(0, 0));
+        assertFalse(controller.delayed());
+        assertFalse(controller.stopped());
+    }
+
+    @Test
+    public void WriteControllerTest_ChangeRate() {
+        var controller = new WriteController(10 << 20, 1000, 0);
+
+        controller.update(version(0, 1000));
+        assertEquals(10 << 20, controller.delayedWriteRate);
+        // Growing debt lowers the rate, shrinking debt raises it again.
+        controller.update(version(0, 1500));
+        assertEquals(8 << 20, controller.delayedWriteRate, 1);
+        controller.update(version(0, 1200));
+        assertEquals(10 << 20, controller.delayedWriteRate, 1);
+        // Never above the configured rate.
+        controller.update(version(0, 1100));
+        assertEquals(10 << 20, controller.delayedWriteRate);
+        // Backs off harder close to a stop.
+        controller.update(version(kL0_StopWritesTrigger - 1, 1100));
+        assertEquals(6 << 20, controller.delayedWriteRate, 1);
+    }
+
+    @Test
+    public void WriteControllerTest_Delay() {
+        var controller = new WriteController(1 << 20, 1000, 0);
+        controller.update(version(0, 1000));
+
+        var now = 1000000L;
+        // The first refill covers one kMicrosPerRefill worth of bytes.
+        assertEquals(0, controller.getDelay(now, 1000));
+        // A second of bytes has to wait about a second.
+        var delay = controller.getDelay(now, 1 << 20);
+        assertTrue(delay > 990000 && delay < 1010000, Long.toString(delay));
+        // Following writes queue up behind it.
+        delay = controller.getDelay(now, 1 << 20);
+        assertTrue(delay > 1990000 && delay < 2010000, Long.toString(delay));
+    }
+
+}
@@ -33,7 +33,8 @@ public class Dbf {
     static void scan(String fn, int v, BiConsumer<Slice,PrintStream> action) throws Exception {
         var out = (v == 1) ? System.out : (v == 2) ? System.err : null;
         var in = new ByteArray(bytes(fn));
-        var rdr = new LogReader(in);
+        var name = FileName.parseFileName(Paths.get(fn));
+        var rdr = new LogReader(in).logNumber(name != null ? name.number : 0);
         rdr.forEach(record -> {
             var begin = in.mark();
             if (out != null) in.snap(out,rdr.offset);
@@ -8,8 +8,8 @@ import java.util.Arrays;
 
 import static lib.util.Iteration.*;
 
-import lib.io.SeekableInputStream;
-import lib.io.RandomAccessInputStream;
+import lib.io.PositionalReader;
+import lib.io.FileChannelReader;
 
 import lib.leveldb.io.Hex;
 import lib.leveldb.io.Escape;
@@ -42,8 +42,8 @@ public class SSTable {
         data(index,out,err);
     }
 
-    static SeekableInputStream input(String fn) throws IOException {
-        return new RandomAccessInputStream(Paths.get(fn));
+    static PositionalReader input(String fn) throws IOException {
+        return new FileChannelReader(Paths.get(fn));
     }
     static InternalKeyComparator comparator() {
         return new InternalKeyComparator(new BytewiseComparator());